@@ -0,0 +1,84 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cmd 2/3的分发：解析、在注册表里查目标、复制payload、写给目标。目标和发送者在同一个reactor上，不经过任务队列。
+ * 运行方式见{@link FramingBenchmark}。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private static final int FRAMES = 64;
+    private static final int TARGETS = 4;
+
+    @Param({"16", "512"})
+    public int bodySize;
+
+    private Harness harness;
+    private PushServer.Attachment sender;
+    private PushServer.Attachment[] targets;
+    private ByteBuffer single;
+    private ByteBuffer offline;
+    private ByteBuffer multi;
+
+    @Setup
+    public void setup() throws IOException {
+        harness = new Harness();
+        sender = harness.connect(0);
+        targets = new PushServer.Attachment[TARGETS];
+        for (int i = 0; i < TARGETS; ++i) {
+            targets[i] = harness.connect(i + 1);
+        }
+        single = Harness.repeat(singlePush(1), FRAMES);
+        offline = Harness.repeat(singlePush(1000), FRAMES);
+        ByteBuffer frame = ByteBuffer.allocate(9 + TARGETS * 4 + bodySize);
+        frame.putInt(frame.capacity()).put((byte) 3).putInt(TARGETS);
+        for (int i = 0; i < TARGETS; ++i) {
+            frame.putInt(i + 1);
+        }
+        frame.position(frame.capacity());
+        frame.flip();
+        multi = Harness.repeat(frame, FRAMES);
+    }
+
+    private ByteBuffer singlePush(int id) {
+        ByteBuffer frame = ByteBuffer.allocate(9 + bodySize);
+        frame.putInt(frame.capacity()).put((byte) 2).putInt(id);
+        frame.position(frame.capacity());
+        frame.flip();
+        return frame;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long singlePush() {
+        harness.read(sender, single, Integer.MAX_VALUE);
+        return ((MemoryChannel) targets[0].channel).written;
+    }
+
+    /**
+     * 目标不在线，也没有离线存储，只有查找
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long singlePushOffline() {
+        harness.read(sender, offline, Integer.MAX_VALUE);
+        return ((MemoryChannel) sender.channel).written;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long multiPush() {
+        harness.read(sender, multi, Integer.MAX_VALUE);
+        return ((MemoryChannel) targets[TARGETS - 1].channel).written;
+    }
+}
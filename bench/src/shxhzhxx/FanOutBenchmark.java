@@ -0,0 +1,67 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条消息扇出到targets个目标：多推（cmd 3）和分组发布（cmd 9），结果按一次扇出计。
+ * 运行方式见{@link FramingBenchmark}。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    private static final int GROUP = 1;
+    private static final int BODY_SIZE = 128;
+
+    @Param({"1", "16", "200"})
+    public int targets;
+
+    private Harness harness;
+    private PushServer.Attachment sender;
+    private PushServer.Attachment last;
+    private ByteBuffer multi;
+    private ByteBuffer publish;
+
+    @Setup
+    public void setup() throws IOException {
+        harness = new Harness();
+        sender = harness.connect(0);
+        ByteBuffer create = ByteBuffer.allocate(9);
+        create.putInt(9).put((byte) 6).putInt(GROUP).flip();
+        harness.read(sender, create, Integer.MAX_VALUE);
+        multi = ByteBuffer.allocate(9 + targets * 4 + BODY_SIZE);
+        multi.putInt(multi.capacity()).put((byte) 3).putInt(targets);
+        for (int id = 1; id <= targets; ++id) {
+            last = harness.connect(id);
+            ByteBuffer join = ByteBuffer.allocate(9);
+            join.putInt(9).put((byte) 7).putInt(GROUP).flip();
+            harness.read(last, join, Integer.MAX_VALUE);
+            multi.putInt(id);
+        }
+        multi.position(multi.capacity());
+        multi.flip();
+        publish = ByteBuffer.allocate(9 + BODY_SIZE);
+        publish.putInt(publish.capacity()).put((byte) 9).putInt(GROUP);
+        publish.position(publish.capacity());
+        publish.flip();
+    }
+
+    @Benchmark
+    public long multiPush() {
+        harness.read(sender, multi, Integer.MAX_VALUE);
+        return ((MemoryChannel) last.channel).written;
+    }
+
+    @Benchmark
+    public long publish() {
+        harness.read(sender, publish, Integer.MAX_VALUE);
+        return ((MemoryChannel) last.channel).written;
+    }
+}
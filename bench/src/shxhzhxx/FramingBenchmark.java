@@ -0,0 +1,57 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读路径上的长度/cmd解析：一次读到{@link #FRAMES}个echo消息，逐个解析、分发、写回。
+ * chunk小于消息总长时每次读都会留下半个消息，测的是复制到池里的缓冲区再拷回来的开销。
+ * <p>
+ * 结果按消息计，ops/s就是每秒处理的消息数。加上-prof gc可以看到每个消息分配的字节数。
+ * <p>
+ * 运行（IntelliJ编译bench模块时会用jmh-generator-annprocess生成基准测试的代码）：
+ * java -cp out/production/PushServer:out/production/bench:&lt;jmh的jar&gt; org.openjdk.jmh.Main [类名的正则] [-prof gc]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    static final int FRAMES = 64;
+
+    @Param({"0", "64", "512"})
+    public int bodySize;
+
+    /**
+     * 每次read最多读到的字节数，1000不是消息长度的整数倍
+     */
+    @Param({"65536", "1000"})
+    public int chunk;
+
+    private Harness harness;
+    private PushServer.Attachment at;
+    private ByteBuffer data;
+
+    @Setup
+    public void setup() throws IOException {
+        harness = new Harness();
+        at = harness.connect(0);
+        ByteBuffer echo = ByteBuffer.allocate(5 + bodySize);
+        echo.putInt(5 + bodySize).put((byte) 0);
+        echo.position(echo.capacity());
+        echo.flip();
+        data = Harness.repeat(echo, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long echo() {
+        harness.read(at, data, chunk);
+        return ((MemoryChannel) at.channel).written;
+    }
+}
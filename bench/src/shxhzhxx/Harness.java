@@ -0,0 +1,57 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基准测试用的服务端：不监听端口、不启动线程，连接都是{@link MemoryChannel}，
+ * 由测试线程调用{@link #read}驱动真实的解析、查找、分发和写的代码。
+ */
+final class Harness {
+    static final int MAX_MESSAGE_SIZE = 1024;
+
+    final PushServer server;
+    final PushServer.Reactor reactor;
+
+    Harness() throws IOException {
+        server = new PushServer(0, MAX_MESSAGE_SIZE);
+        reactor = server.new Reactor(0);
+    }
+
+    /**
+     * @param id 不为0时通过bind消息绑定
+     */
+    PushServer.Attachment connect(int id) {
+        PushServer.Attachment at = server.new Attachment(new MemoryChannel(), reactor);
+        if (id != 0) {
+            ByteBuffer bind = ByteBuffer.allocate(9);
+            bind.putInt(9).put((byte) 1).putInt(id).flip();
+            read(at, bind, Integer.MAX_VALUE);
+        }
+        return at;
+    }
+
+    /**
+     * 把data作为at收到的数据，读到没有剩余为止
+     */
+    void read(PushServer.Attachment at, ByteBuffer data, int chunk) {
+        MemoryChannel channel = (MemoryChannel) at.channel;
+        data.rewind();
+        channel.feed(data, chunk);
+        while (channel.hasInput()) {
+            reactor.read(at);
+        }
+    }
+
+    /**
+     * 把count个frame连在一起，模拟一次读到多个消息
+     */
+    static ByteBuffer repeat(ByteBuffer frame, int count) {
+        ByteBuffer data = ByteBuffer.allocate(count * frame.remaining());
+        for (int i = 0; i < count; ++i) {
+            data.put(frame.duplicate());
+        }
+        data.flip();
+        return data;
+    }
+}
@@ -0,0 +1,172 @@
+package shxhzhxx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 对比{@link IntMap}和原来的HashMap&lt;Integer, Attachment&gt;作为id注册表的性能：
+ * 插入（总耗时和单次最长耗时，后者反映扩容停顿）、命中查找、未命中查找、删除，以及插入后的堆占用。
+ * <p>
+ * 运行：java -Xms8g -Xmx8g -cp out/production/PushServer:out/production/bench shxhzhxx.IntMapBenchmark [size...]
+ */
+public class IntMapBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = {100_000, 1_000_000, 5_000_000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%-8s %10s %12s %14s %12s %12s %12s %10s\n",
+                "map", "size", "put ns/op", "max put us", "get ns/op", "miss ns/op", "remove ns/op", "heap MB");
+        for (int size : sizes) {
+            int[] ids = randomIds(size, new Random(size));
+            int[] misses = randomIds(size, new Random(-size));
+            int[] order = shuffled(ids, new Random(size + 1));
+            for (int round = 0; round < ROUNDS; ++round) {
+                boolean print = round == ROUNDS - 1;
+                run(new HashMapTarget(), ids, order, misses, print);
+                run(new IntMapTarget(), ids, order, misses, print);
+            }
+        }
+    }
+
+    private static void run(Target target, int[] ids, int[] order, int[] misses, boolean print) {
+        Object value = new Object();
+        long before = usedHeap();
+        long maxPut = 0;
+        long start = System.nanoTime();
+        for (int id : ids) {
+            long t = System.nanoTime();
+            target.put(id, value);
+            maxPut = Math.max(maxPut, System.nanoTime() - t);
+        }
+        long put = System.nanoTime() - start;
+        long heap = usedHeap() - before;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int id : order) {
+            if (target.get(id) != null)
+                ++found;
+        }
+        long get = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int id : misses) {
+            if (target.get(id) != null)
+                ++found;
+        }
+        long miss = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int id : order) {
+            target.remove(id);
+        }
+        long remove = System.nanoTime() - start;
+
+        if (found < ids.length)
+            throw new IllegalStateException("lost ids");
+        if (print) {
+            int n = ids.length;
+            System.out.printf("%-8s %10d %12.1f %14.1f %12.1f %12.1f %12.1f %10.1f\n", target.name(), n,
+                    (double) put / n, maxPut / 1000.0, (double) get / n, (double) miss / n, (double) remove / n,
+                    heap / 1024.0 / 1024.0);
+        }
+    }
+
+    /**
+     * 不重复、非0的随机id，未命中查找用另一组随机数，可能偶尔命中，不影响结果
+     */
+    private static int[] randomIds(int size, Random random) {
+        IntMap<Object> seen = new IntMap<>(size);
+        int[] ids = new int[size];
+        for (int i = 0; i < size; ) {
+            int id = random.nextInt();
+            if (id != 0 && seen.put(id, Boolean.TRUE) == null)
+                ids[i++] = id;
+        }
+        return ids;
+    }
+
+    private static int[] shuffled(int[] ids, Random random) {
+        int[] order = ids.clone();
+        for (int i = order.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Target {
+        String name();
+
+        void put(int id, Object value);
+
+        Object get(int id);
+
+        void remove(int id);
+    }
+
+    private static class HashMapTarget implements Target {
+        private final Map<Integer, Object> map = new HashMap<>();
+
+        @Override
+        public String name() {
+            return "HashMap";
+        }
+
+        @Override
+        public void put(int id, Object value) {
+            map.put(id, value);
+        }
+
+        @Override
+        public Object get(int id) {
+            return map.get(id);
+        }
+
+        @Override
+        public void remove(int id) {
+            map.remove(id);
+        }
+    }
+
+    private static class IntMapTarget implements Target {
+        private final IntMap<Object> map = new IntMap<>();
+
+        @Override
+        public String name() {
+            return "IntMap";
+        }
+
+        @Override
+        public void put(int id, Object value) {
+            map.put(id, value);
+        }
+
+        @Override
+        public Object get(int id) {
+            return map.get(id);
+        }
+
+        @Override
+        public void remove(int id) {
+            map.remove(id);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压测工具：建立connections个v2连接，按bindRate的速度依次绑定，然后按pushRate的速度从随机的连接推送给fanOut个随机的在线id。
+ * 消息的前8个字节是发送时的System.nanoTime()，收到时算出端到端的投递延迟。
+ * 所有连接都在一个selector线程上，收发都在同一个进程里，所以不需要对时。
+ * <p>
+ * 每秒打印一行当时的吞吐和延迟，结束时打印预热之后的总计：推送/投递的吞吐、丢失的投递数、延迟的p50/p99/p999。
+ * 默认在本进程里启动一个服务端（server=embedded），server=external时连接host:port上已经在运行的服务端。
+ * 内置的服务端用transport=selector（默认）或者transport=thread（每个连接一个线程，见{@link PushServer#setThreadPerConnection}），
+ * 服务端不支持v2时按旧协议收发，没有bind确认和累计确认。
+ * <p>
+ * 比较两种transport的连接密度：所有连接都绑定之后GC一次，打印本进程的堆内存、直接内存和线程数，
+ * 客户端的部分两边一样，改变connections看差值。
+ * 运行：java -cp out/production/PushServer:out/production/bench shxhzhxx.LoadGenerator [key=value...]，
+ * 不带参数运行会打印所有设置和默认值。
+ */
+public class LoadGenerator {
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("server", "embedded");
+        DEFAULTS.put("host", "127.0.0.1");
+        DEFAULTS.put("port", "3889");
+        DEFAULTS.put("reactors", "2");
+        DEFAULTS.put("transport", "selector");
+        DEFAULTS.put("maxMessageSize", "1024");
+        DEFAULTS.put("connections", "1000");
+        DEFAULTS.put("bindRate", "2000");
+        DEFAULTS.put("pushRate", "10000");
+        DEFAULTS.put("fanOut", "1");
+        DEFAULTS.put("payload", "64");
+        DEFAULTS.put("warmup", "5");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("idBase", "1000000");
+    }
+
+    /**
+     * 每收到这么多推送发一次累计确认
+     */
+    private static final int ACK_BATCH = 32;
+    private static final int OUT_BUFFER = 64 * 1024;
+
+    private final Map<String, String> settings;
+    private final int connections;
+    private final int bindRate;
+    private final int pushRate;
+    private final int fanOut;
+    private final int payload;
+    private final SplittableRandom random = new SplittableRandom(1);
+    private final Conn[] conns;
+    private final ArrayDeque<Conn> bindQueue = new ArrayDeque<>();
+    private final List<Conn> bound = new ArrayList<>();
+    private final int[] targets;
+    private final ByteBuffer frame;
+    private Selector selector;
+    private int maxMessageSize;
+    private boolean embedded;
+    private String density;
+
+    private long pushes = 0;
+    private long expected = 0;
+    private long delivered = 0;
+    private long backlogged = 0;
+    private final Latency latency = new Latency();
+
+    private LoadGenerator(Map<String, String> settings) {
+        this.settings = settings;
+        connections = integer("connections");
+        bindRate = integer("bindRate");
+        pushRate = integer("pushRate");
+        fanOut = integer("fanOut");
+        payload = integer("payload");
+        if (payload < 8)
+            throw new IllegalArgumentException("payload < 8");
+        if (fanOut < 1 || fanOut > connections)
+            throw new IllegalArgumentException("fanOut not in [1, connections]");
+        conns = new Conn[connections];
+        targets = new int[fanOut];
+        frame = ByteBuffer.allocate(9 + fanOut * 4 + payload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0 || !DEFAULTS.containsKey(arg.substring(0, i))) {
+                System.out.println("usage: LoadGenerator [key=value...], keys and defaults: " + DEFAULTS);
+                return;
+            }
+            settings.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        if (args.length == 0)
+            System.out.println("settings (key=value to override): " + DEFAULTS);
+        new LoadGenerator(settings).run();
+    }
+
+    private int integer(String key) {
+        return Integer.parseInt(settings.get(key));
+    }
+
+    private void run() throws IOException, InterruptedException {
+        String host = settings.get("host");
+        int port = integer("port");
+        embedded = "embedded".equals(settings.get("server"));
+        if (embedded) {
+            PushServer server = new PushServer(port, integer("maxMessageSize"), integer("reactors"));
+            server.setThreadPerConnection("thread".equals(settings.get("transport")));
+            Thread thread = new Thread(server::start, "PushServer-accept");
+            thread.setDaemon(true);
+            thread.start();
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        selector = Selector.open();
+        int idBase = integer("idBase");
+        for (int i = 0; i < connections; ++i) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(host, port));
+            Conn conn = new Conn(channel, idBase + i);
+            conn.key = channel.register(selector, SelectionKey.OP_CONNECT, conn);
+            conns[i] = conn;
+        }
+
+        long warmup = TimeUnit.SECONDS.toNanos(integer("warmup"));
+        long duration = TimeUnit.SECONDS.toNanos(integer("duration"));
+        long start = System.nanoTime();
+        long bindStart = 0;
+        int binds = 0;
+        long pushStart = 0;
+        long paced = 0;
+        long measureStart = 0;
+        long lastReport = start;
+        Snapshot last = new Snapshot();
+        for (; ; ) {
+            selector.select(1);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Conn conn = (Conn) key.attachment();
+                if (!key.isValid())
+                    continue;
+                if (key.isConnectable()) {
+                    conn.finishConnect();
+                } else {
+                    if (key.isWritable())
+                        conn.flush();
+                    if (key.isValid() && key.isReadable())
+                        conn.read();
+                }
+            }
+            selector.selectedKeys().clear();
+            long now = System.nanoTime();
+
+            if (!bindQueue.isEmpty()) {
+                if (bindStart == 0)
+                    bindStart = now;
+                long allowed = (now - bindStart) * bindRate / 1_000_000_000L;
+                while (binds < allowed && !bindQueue.isEmpty()) {
+                    bindQueue.poll().bind();
+                    ++binds;
+                }
+            }
+            if (density == null && bound.size() == connections) {
+                density = density();
+                System.out.println(density);
+            }
+            if (bound.size() >= fanOut) {
+                if (pushStart == 0)
+                    pushStart = now;
+                long allowed = (now - pushStart) * pushRate / 1_000_000_000L;
+                for (; paced < allowed; ++paced) {
+                    push(now);
+                }
+            }
+            if (measureStart == 0 && pushStart != 0 && now - pushStart >= warmup) {
+                measureStart = now;
+                latency.reset();
+                last = new Snapshot();
+                pushes = expected = delivered = backlogged = 0;
+                System.out.println("warmup done");
+            }
+            if (now - lastReport >= 1_000_000_000L) {
+                Snapshot current = new Snapshot();
+                System.out.printf("%3ds bound %d/%d, push %d/s, delivered %d/s, backlogged %d/s, p50 %dus, p99 %dus, p999 %dus\n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start), bound.size(), connections,
+                        current.pushes - last.pushes, current.delivered - last.delivered,
+                        current.backlogged - last.backlogged, latency.percentile(0.5),
+                        latency.percentile(0.99), latency.percentile(0.999));
+                last = current;
+                lastReport = now;
+            }
+            if (measureStart != 0 && now - measureStart >= duration) {
+                summary(now - measureStart);
+                return;
+            }
+        }
+    }
+
+    private void push(long now) {
+        Conn sender = bound.get(random.nextInt(bound.size()));
+        for (int i = 0; i < fanOut; ++i) {
+            //目标可能重复，fanOut远小于连接数时影响不大
+            targets[i] = bound.get(random.nextInt(bound.size())).id;
+        }
+        frame.clear();
+        if (fanOut == 1) {
+            frame.putInt(9 + payload).put((byte) 2).putInt(targets[0]);
+        } else {
+            frame.putInt(9 + fanOut * 4 + payload).put((byte) 3).putInt(fanOut);
+            for (int target : targets) {
+                frame.putInt(target);
+            }
+        }
+        frame.putLong(now);
+        frame.position(frame.position() + payload - 8);
+        frame.flip();
+        if (frame.remaining() > maxMessageSize)
+            throw new IllegalStateException("frame " + frame.remaining() + " > maxMessageSize " + maxMessageSize);
+        if (sender.send(frame)) {
+            ++pushes;
+            expected += fanOut;
+        } else {
+            ++backlogged;
+        }
+    }
+
+    /**
+     * 包括客户端这一侧的连接
+     */
+    private String density() {
+        if (!embedded)
+            return "bound " + connections;
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName()))
+                direct = pool.getMemoryUsed();
+        }
+        return String.format("bound %d, transport %s, heap %d KB, direct %d KB, threads %d",
+                connections, settings.get("transport"), heap >> 10, direct >> 10,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private void summary(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println("--------");
+        System.out.printf("connections %d, fanOut %d, payload %d bytes, %.1fs after warmup\n",
+                connections, fanOut, payload, seconds);
+        System.out.println(density);
+        System.out.printf("push %.0f/s (target %d/s), delivered %.0f/s, backlogged %d\n",
+                pushes / seconds, pushRate, delivered / seconds, backlogged);
+        //最后一秒发出的推送可能还在路上
+        System.out.printf("expected deliveries %d, delivered %d, missing %d\n",
+                expected, delivered, Math.max(0, expected - delivered));
+        System.out.printf("latency us: p50 %d, p99 %d, p999 %d, max %d, samples %d\n",
+                latency.percentile(0.5), latency.percentile(0.99), latency.percentile(0.999),
+                latency.max, latency.count);
+    }
+
+    private class Snapshot {
+        private final long pushes = LoadGenerator.this.pushes;
+        private final long delivered = LoadGenerator.this.delivered;
+        private final long backlogged = LoadGenerator.this.backlogged;
+    }
+
+    private class Conn {
+        private final SocketChannel channel;
+        private final int id;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(64);
+        private final ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER);
+        private boolean negotiated = false;
+        private boolean v2;
+        private int receivedSeq = 0;
+        private int ackedSeq = 0;
+
+        private Conn(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+        }
+
+        private void finishConnect() {
+            try {
+                channel.finishConnect();
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                throw new IllegalStateException("connect failed: " + e.getMessage());
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            ByteBuffer request = ByteBuffer.allocate(9);
+            request.putInt(9).put((byte) 4).putInt(PushServer.FEATURE_V2).flip();
+            send(request);
+        }
+
+        private void bind() {
+            ByteBuffer request = ByteBuffer.allocate(9);
+            request.putInt(9).put((byte) 1).putInt(id).flip();
+            send(request);
+            if (!v2)
+                bound.add(this);
+        }
+
+        /**
+         * 放进发送缓冲区并尽量写出
+         *
+         * @return false表示发送缓冲区满了，这条消息没有发
+         */
+        private boolean send(ByteBuffer frame) {
+            if (out.remaining() < frame.remaining()) {
+                flush();
+                if (out.remaining() < frame.remaining())
+                    return false;
+            }
+            out.put(frame);
+            flush();
+            return true;
+        }
+
+        private void flush() {
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                throw new IllegalStateException("write failed, id " + id + ": " + e.getMessage());
+            }
+            out.compact();
+            int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        }
+
+        private void read() {
+            int len;
+            try {
+                len = channel.read(in);
+            } catch (IOException e) {
+                len = -1;
+            }
+            if (len < 0)
+                throw new IllegalStateException("connection closed by server, id " + id);
+            in.flip();
+            while (in.remaining() >= 4) {
+                int size = in.getInt(in.position());
+                if (in.remaining() < size)
+                    break;
+                int start = in.position();
+                if (!negotiated) {
+                    //[12][size][features]
+                    maxMessageSize = in.getInt(start + 4);
+                    v2 = (in.getInt(start + 8) & PushServer.FEATURE_V2) != 0;
+                    negotiated = true;
+                    in.position(start + size);
+                    ByteBuffer larger = ByteBuffer.allocate(2 * maxMessageSize);
+                    larger.put(in).flip();
+                    in = larger;
+                    bindQueue.add(this);
+                    continue;
+                }
+                if (!v2) {
+                    //旧协议只会收到推送[sendNanos]
+                    latency.record(System.nanoTime() - in.getLong(start + 4));
+                    ++delivered;
+                    in.position(start + size);
+                    continue;
+                }
+                switch (in.get(start + 4)) {
+                    case 1://bind ack
+                        bound.add(this);
+                        break;
+                    case 2://push [seq][sendNanos]
+                        receivedSeq = in.getInt(start + 5);
+                        latency.record(System.nanoTime() - in.getLong(start + 9));
+                        ++delivered;
+                        if (receivedSeq - ackedSeq >= ACK_BATCH)
+                            ack();
+                        break;
+                    default:
+                        break;
+                }
+                in.position(start + size);
+            }
+            in.compact();
+        }
+
+        private void ack() {
+            ByteBuffer request = ByteBuffer.allocate(9);
+            request.putInt(9).put((byte) 11).putInt(receivedSeq).flip();
+            if (send(request))
+                ackedSeq = receivedSeq;
+        }
+    }
+
+    /**
+     * 微秒为单位的延迟直方图，每个2的幂区间再分成16个线性的子区间，百分位的误差在1/16以内
+     */
+    private static final class Latency {
+        private final long[] counts = new long[64 * 16];
+        private long count = 0;
+        private long max = 0;
+
+        private void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            ++counts[index(micros)];
+            ++count;
+            max = Math.max(max, micros);
+        }
+
+        private static int index(long value) {
+            if (value < 16)
+                return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - 3) * 16 + (int) ((value >>> (exp - 4)) & 15);
+        }
+
+        /**
+         * 子区间的上界
+         */
+        private static long upper(int index) {
+            if (index < 16)
+                return index;
+            int exp = index / 16 + 3;
+            return ((17L + index % 16) << (exp - 4)) - 1;
+        }
+
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(max, upper(i));
+            }
+            return 0;
+        }
+
+        private void reset() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 端到端：在本机启动服务端，每个测试线程是一个客户端，给自己绑定的id单推一条消息再把它读回来。
+ * 客户端数用-t指定，结果是所有客户端合计的往返次数（以及-bm sample下的往返延迟）。
+ * transport=thread时每个连接一个线程（见{@link PushServer#setThreadPerConnection}），reactors不起作用。
+ * 运行方式见{@link FramingBenchmark}。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1", "4"})
+        public int reactors;
+        @Param({"selector", "thread"})
+        public String transport;
+
+        private int port;
+        private final AtomicInteger nextId = new AtomicInteger();
+
+        @Setup
+        public void setup() throws IOException, InterruptedException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            PushServer server = new PushServer(port, Harness.MAX_MESSAGE_SIZE, reactors);
+            server.setThreadPerConnection("thread".equals(transport));
+            Thread thread = new Thread(server::start, "PushServer-accept");
+            thread.setDaemon(true);
+            thread.start();
+            //等服务端开始监听
+            for (int i = 0; i < 100; ++i) {
+                try (SocketChannel probe = SocketChannel.open()) {
+                    probe.connect(new InetSocketAddress("127.0.0.1", port));
+                    return;
+                } catch (IOException e) {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                }
+            }
+            throw new IOException("server not started");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({"64"})
+        public int bodySize;
+
+        private SocketChannel channel;
+        private ByteBuffer request;
+        private ByteBuffer response;
+
+        @Setup
+        public void setup(Server server) throws IOException {
+            int id = server.nextId.incrementAndGet();
+            channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port));
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer bind = ByteBuffer.allocate(9);
+            bind.putInt(9).put((byte) 1).putInt(id).flip();
+            channel.write(bind);
+            request = ByteBuffer.allocate(9 + bodySize);
+            request.putInt(9 + bodySize).put((byte) 2).putInt(id);
+            response = ByteBuffer.allocate(4 + bodySize);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Client client) throws IOException {
+        client.request.clear();
+        while (client.request.hasRemaining()) {
+            client.channel.write(client.request);
+        }
+        client.response.clear();
+        while (client.response.hasRemaining()) {
+            if (client.channel.read(client.response) < 0)
+                throw new IOException("closed");
+        }
+        return client.response.getInt(0);
+    }
+}
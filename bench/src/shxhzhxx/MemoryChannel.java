@@ -0,0 +1,152 @@
+package shxhzhxx;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * 代替真实连接的内存channel：读的时候从头给出预先准备好的数据，写的时候全部接受并丢弃，只记字节数。
+ * 不能注册到selector，只能配合{@link PushServer.Reactor#read}在测试线程上直接使用。
+ */
+final class MemoryChannel extends SocketChannel {
+    private ByteBuffer input = ByteBuffer.allocate(0);
+    private int chunk = Integer.MAX_VALUE;
+    long written = 0;
+
+    MemoryChannel() {
+        super(SelectorProvider.provider());
+    }
+
+    /**
+     * 之后的read依次读出data的内容，每次最多chunk字节
+     */
+    void feed(ByteBuffer data, int chunk) {
+        this.input = data;
+        this.chunk = chunk;
+    }
+
+    /**
+     * 从头再读一遍上次feed的数据
+     */
+    void rewind() {
+        input.rewind();
+    }
+
+    boolean hasInput() {
+        return input.hasRemaining();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        int n = Math.min(Math.min(dst.remaining(), input.remaining()), chunk);
+        int limit = input.limit();
+        input.limit(input.position() + n);
+        dst.put(input);
+        input.limit(limit);
+        return n;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            n += read(dsts[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        src.position(src.limit());
+        written += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() {
+        return this;
+    }
+
+    @Override
+    public Socket socket() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() {
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) {
+    }
+}
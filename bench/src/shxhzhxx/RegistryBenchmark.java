@@ -0,0 +1,70 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id注册表的查找，包括分段加锁。reactors决定分段数，多线程竞争用-t指定线程数。
+ * 运行方式见{@link FramingBenchmark}。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param({"1", "8"})
+    public int reactors;
+
+    private PushServer server;
+    private int[] hits;
+    private int[] misses;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new PushServer(0, Harness.MAX_MESSAGE_SIZE, reactors);
+        PushServer.Reactor reactor = server.new Reactor(0);
+        PushServer.Attachment at = server.new Attachment(new MemoryChannel(), reactor);
+        Random random = new Random(size);
+        for (int id = 1; id <= size; ++id) {
+            server.bindId(id, at);
+        }
+        hits = new int[LOOKUPS];
+        misses = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; ++i) {
+            hits[i] = 1 + random.nextInt(size);
+            misses[i] = size + 1 + random.nextInt(Integer.MAX_VALUE - size - 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int hit() {
+        int found = 0;
+        for (int id : hits) {
+            if (server.lookup(id) != null)
+                ++found;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int miss() {
+        int found = 0;
+        for (int id : misses) {
+            if (server.lookup(id) != null)
+                ++found;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,37 @@
+package shxhzhxx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PushServer.Attachment#write(ByteBuffer)}在发送队列为空、channel一次写完时的开销。
+ * 运行方式见{@link FramingBenchmark}。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+    @Param({"16", "1024"})
+    public int size;
+
+    private PushServer.Attachment at;
+    private ByteBuffer message;
+
+    @Setup
+    public void setup() throws IOException {
+        at = new Harness().connect(0);
+        message = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public boolean write() {
+        message.clear();
+        return at.write(message);
+    }
+}
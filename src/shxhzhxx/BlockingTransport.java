@@ -0,0 +1,472 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个连接一个线程、阻塞读写的transport。运行在Java 21以上时每个连接是一个虚拟线程，阻塞时不占用平台线程；
+ * 更早的JDK上退回到平台线程，只适合连接不多的部署。
+ * <p>
+ * 只支持最初的命令：echo、bind、单推、多推、get buffer size、get ip，不协商v2（get buffer size回复的features总是0），
+ * 推送是[len][data]，带{@link PushServer#PRIORITY}的推送和普通推送排在一起。
+ * 分组、带结果的推送、分片、广播、心跳、统计和集群的命令会记录"not supported"的日志后断开连接，其他命令按未知的cmd断开。
+ * <p>
+ * 连接自己的回复在读线程上直接写出；其他连接发来的推送放进发送队列，有消息排队时才启动这个连接的写线程，
+ * 空闲{@link #WRITER_IDLE_MILLIS}后写线程退出，所以空闲的连接只占一个线程，发送者也不会因为目标读得慢而阻塞。
+ * 发送队列的上限和溢出策略同{@link PushServer#setOutboundLimit}。
+ * 队列的锁用{@link ReentrantLock}而不是synchronized，阻塞在synchronized里的虚拟线程会占住它的平台线程。
+ */
+final class BlockingTransport implements Transport {
+    private static final int STRIPES = 64;
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
+    private final int maxMessageSize;
+    private final int outboundLimit;
+    private final PushServer.OverflowPolicy overflowPolicy;
+    private final Log logger;
+    private final ThreadFactory threads;
+    private final boolean virtual;
+    /**
+     * id到连接的注册表，按id分段加锁，锁内不做I/O
+     */
+    private final IntMap<Conn>[] map;
+    private final Set<Conn> conns = ConcurrentHashMap.newKeySet();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder overflowDropped = new LongAdder();
+
+    BlockingTransport(int maxMessageSize, int outboundLimit, PushServer.OverflowPolicy overflowPolicy, Log logger) {
+        this.maxMessageSize = maxMessageSize;
+        this.outboundLimit = outboundLimit;
+        this.overflowPolicy = overflowPolicy;
+        this.logger = logger;
+        ThreadFactory factory = virtualThreads("PushServer-conn-");
+        virtual = factory != null;
+        if (factory == null) {
+            AtomicInteger next = new AtomicInteger();
+            factory = r -> new Thread(r, "PushServer-conn-" + next.getAndIncrement());
+        }
+        threads = factory;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        IntMap<Conn>[] map = new IntMap[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            map[i] = new IntMap<>();
+        }
+        this.map = map;
+    }
+
+    /**
+     * Thread.ofVirtual()是Java 21的API，通过反射调用，在更早的JDK上编译和运行都不受影响
+     *
+     * @return 不支持虚拟线程时为null
+     */
+    private static ThreadFactory virtualThreads(String prefix) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, prefix, 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //Java 19、20上没有打开preview时是UnsupportedOperationException
+            return null;
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void register(SocketChannel channel) {
+        Conn conn = new Conn(channel);
+        conns.add(conn);
+        threads.newThread(conn).start();
+    }
+
+    @Override
+    public String stats() {
+        int ids = 0;
+        for (IntMap<Conn> stripe : map) {
+            synchronized (stripe) {
+                ids += stripe.size();
+            }
+        }
+        return String.format("connections: %d, ids: %d\nbytes in: %d, out: %d\nframes in: %d, frames out: %d, overflow dropped: %d",
+                conns.size(), ids, bytesIn.sum(), bytesOut.sum(), framesIn.sum(), framesOut.sum(), overflowDropped.sum());
+    }
+
+    @Override
+    public void shutdown() {
+        for (Conn conn : conns) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return virtual ? "transport: virtual threads" : "transport: platform threads";
+    }
+
+    private IntMap<Conn> stripe(int id) {
+        return map[(IntMap.hash(id) >>> 16) & (STRIPES - 1)];
+    }
+
+    private Conn lookup(int id) {
+        IntMap<Conn> stripe = stripe(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+
+    private final class Conn implements Runnable {
+        private final SocketChannel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        /**
+         * 发送队列，元素是完整的消息[len][data]，lock保护
+         */
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        /**
+         * 还没写完的字节数，包括已经取出、正在写的消息，lock保护
+         */
+        private int outboundBytes = 0;
+        /**
+         * 读线程正在直接写或者写线程在运行，lock保护
+         */
+        private boolean writing = false;
+        private boolean closed = false;
+        /**
+         * 只在这个连接的读线程上使用
+         */
+        private final ByteBuffer in;
+        /**
+         * bind之后不再改变，其他线程关闭这个连接时读
+         */
+        private volatile int id = 0;
+
+        private Conn(SocketChannel channel) {
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(maxMessageSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (; ; ) {
+                    int n = channel.read(in);
+                    if (n < 0)
+                        return;
+                    bytesIn.add(n);
+                    in.flip();
+                    while (in.remaining() >= 4) {
+                        int start = in.position();
+                        int len = in.getInt(start);
+                        if (len > maxMessageSize || len < 5) {
+                            //invalid len
+                            logger.log("invalid len: %d", len);
+                            return;
+                        }
+                        if (in.remaining() < len)
+                            break;
+                        framesIn.increment();
+                        if (!dispatch(start, len))
+                            return;
+                        in.position(start + len);
+                    }
+                    in.compact();
+                }
+            } catch (IOException e) {
+                //broken pipe
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return false时关闭连接
+         */
+        private boolean dispatch(int start, int len) {
+            int cmd = PushServer.baseCmd(in.get(start + 4) & 0xff);
+            switch (cmd) {
+                default://unknown cmd
+                    logger.log("unknown cmd: %d", in.get(start + 4));
+                    return false;
+                case 6:
+                case 7:
+                case 8:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 13:
+                case 14:
+                case 15:
+                case 16:
+                case 17:
+                case 18:
+                case 19:
+                case 21:
+                case 22:
+                case 23:
+                    logger.log("cmd %d not supported by thread per connection", cmd);
+                    return false;
+                case 0://echo
+                    ByteBuffer reply = ByteBuffer.allocate(len - 1);
+                    reply.putInt(len - 1);
+                    reply.put(in.array(), start + 5, len - 5).flip();
+                    return offer(reply, true);
+                case 1://bind
+                    if (this.id != 0) {//already bind
+                        logger.log("already bind: %d", this.id);
+                        return false;
+                    } else if (len != 9) {//invalid param
+                        logger.log("bind invalid param, len(%d)!=9", len);
+                        return false;
+                    }
+                    int id = in.getInt(start + 5);
+                    if (id == 0) {//invalid param
+                        logger.log("bind invalid param, id=0");
+                        return false;
+                    }
+                    this.id = id;
+                    IntMap<Conn> stripe = stripe(id);
+                    Conn prev;
+                    synchronized (stripe) {
+                        prev = stripe.put(id, this);
+                    }
+                    if (prev != null)
+                        prev.close();
+                    return true;
+                case 2://single push
+                    if (len < 9) {
+                        logger.log("single push invalid param, len(%d)<9", len);
+                        return false;
+                    }
+                    Conn target = lookup(in.getInt(start + 5));
+                    if (target != null)
+                        target.push(message(start + 9, len - 9));
+                    return true;
+                case 3://multi push
+                    int num = len < 9 ? -1 : in.getInt(start + 5);
+                    if (num < 0 || num > (len - 9) / 4) {
+                        logger.log("multi push invalid param, len(%d), num(%d)", len, num);
+                        return false;
+                    }
+                    ByteBuffer message = null;
+                    for (int i = 0; i < num; ++i) {
+                        target = lookup(in.getInt(start + 9 + 4 * i));
+                        if (target == null)
+                            continue;
+                        if (message == null)
+                            message = message(start + 9 + num * 4, len - 9 - num * 4);
+                        //各目标共用同一份数据，各自的position
+                        target.push(message.duplicate());
+                    }
+                    return true;
+                case 4://get buffer size in bytes, [features]
+                    if (len != 5 && len != 9) {
+                        logger.log("get buffer size invalid param, len(%d)!=5 and len(%d)!=9", len, len);
+                        return false;
+                    }
+                    reply = ByteBuffer.allocate(12);
+                    reply.putInt(len + 3).putInt(maxMessageSize);
+                    if (len == 9)
+                        reply.putInt(0);
+                    reply.flip();
+                    return offer(reply, true);
+                case 5://get ip
+                    InetAddress inetAddress = channel.socket().getInetAddress();
+                    if (len != 5 || inetAddress == null) {
+                        logger.log("get ip invalid param, len(%d)!=5 or inetAddress == null", len);
+                        return false;
+                    }
+                    byte[] address = inetAddress.getHostAddress().getBytes();
+                    reply = ByteBuffer.allocate(address.length + 4);
+                    reply.putInt(address.length + 4).put(address).flip();
+                    return offer(reply, true);
+            }
+        }
+
+        /**
+         * in会被下一次读覆盖，推送的数据复制到一个新的[len][data]里
+         */
+        private ByteBuffer message(int offset, int length) {
+            ByteBuffer message = ByteBuffer.allocate(length + 4);
+            message.putInt(length + 4).put(in.array(), offset, length).flip();
+            return message;
+        }
+
+        /**
+         * 在发送者的线程上调用，只放进发送队列；超过上限时按溢出策略处理
+         */
+        private void push(ByteBuffer message) {
+            if (!offer(message, false))
+                close();
+        }
+
+        /**
+         * 放进发送队列，由{@link #drain()}写出。inline时是这个连接自己的读线程，没有别的消息要写时直接写出
+         *
+         * @return false表示需要关闭这个连接：按{@link PushServer.OverflowPolicy#CLOSE}溢出或者直接写失败
+         */
+        private boolean offer(ByteBuffer message, boolean inline) {
+            int size = message.remaining();
+            lock.lock();
+            try {
+                if (closed)
+                    return true;
+                if (outboundBytes + size > outboundLimit) {
+                    switch (overflowPolicy) {
+                        case CLOSE:
+                            logger.log("outbound overflow, id: %d, pending: %d", id, outboundBytes);
+                            return false;
+                        case DROP_NEWEST:
+                            overflowDropped.increment();
+                            return true;
+                        case DROP_OLDEST:
+                            ByteBuffer oldest;
+                            while (outboundBytes + size > outboundLimit && (oldest = outbound.poll()) != null) {
+                                outboundBytes -= oldest.remaining();
+                                overflowDropped.increment();
+                            }
+                            if (outboundBytes + size > outboundLimit) {
+                                //剩下的是正在写的
+                                overflowDropped.increment();
+                                return true;
+                            }
+                            break;
+                    }
+                }
+                outboundBytes += size;
+                if (writing) {
+                    outbound.offer(message);
+                    notEmpty.signal();
+                    return true;
+                }
+                writing = true;
+                if (!inline) {
+                    outbound.offer(message);
+                    threads.newThread(this::drain).start();
+                    return true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                while (message.hasRemaining()) {
+                    bytesOut.add(channel.write(message));
+                }
+            } catch (IOException e) {
+                //broken pipe
+                return false;
+            }
+            framesOut.increment();
+            lock.lock();
+            try {
+                outboundBytes -= size;
+                if (outbound.isEmpty() || closed) {
+                    writing = false;
+                    return true;
+                }
+                //写的时候有推送排队
+                threads.newThread(this::drain).start();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 写线程：每次取出队列中所有的消息，gathering write写完后再取下一批，空闲{@link #WRITER_IDLE_MILLIS}后退出，
+         * 写失败时关闭这个连接
+         */
+        private void drain() {
+            ByteBuffer[] batch = new ByteBuffer[16];
+            try {
+                for (; ; ) {
+                    int count;
+                    lock.lock();
+                    try {
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(WRITER_IDLE_MILLIS);
+                        while (outbound.isEmpty() && !closed && nanos > 0) {
+                            nanos = notEmpty.awaitNanos(nanos);
+                        }
+                        if (closed)
+                            return;
+                        if (outbound.isEmpty()) {
+                            writing = false;
+                            return;
+                        }
+                        if (batch.length < outbound.size())
+                            batch = new ByteBuffer[Integer.highestOneBit(outbound.size()) << 1];
+                        count = 0;
+                        ByteBuffer message;
+                        while ((message = outbound.poll()) != null) {
+                            batch[count++] = message;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    long size = 0;
+                    for (int i = 0; i < count; ++i) {
+                        size += batch[i].remaining();
+                    }
+                    int offset = 0;
+                    while (offset < count) {
+                        bytesOut.add(channel.write(batch, offset, count - offset));
+                        while (offset < count && !batch[offset].hasRemaining()) {
+                            batch[offset++] = null;
+                        }
+                    }
+                    framesOut.add(count);
+                    lock.lock();
+                    try {
+                        outboundBytes -= size;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                //broken pipe
+                close();
+            }
+        }
+
+        private void close() {
+            if (!conns.remove(this))
+                return;
+            lock.lock();
+            try {
+                closed = true;
+                outbound.clear();
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            int id = this.id;
+            if (id != 0) {
+                IntMap<Conn> stripe = stripe(id);
+                synchronized (stripe) {
+                    stripe.remove(id, this);
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
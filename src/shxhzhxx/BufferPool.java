@@ -0,0 +1,127 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按2的幂分级的堆外缓冲池，线程安全。
+ * 每一级的缓冲区从一整块direct内存（slab）中切出来，归还后留在池里复用，不会还给系统。
+ */
+public final class BufferPool {
+    private static final int MIN_SIZE = 64;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final SizeClass[] classes;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+
+    /**
+     * @param maxSize 池能提供的最大缓冲区，更大的请求直接分配不入池的堆内存
+     */
+    public BufferPool(int maxSize) {
+        int count = 1;
+        for (int size = MIN_SIZE; size < maxSize; size <<= 1) {
+            ++count;
+        }
+        classes = new SizeClass[count];
+        for (int i = 0, size = MIN_SIZE; i < count; ++i, size <<= 1) {
+            classes[i] = new SizeClass(size);
+        }
+    }
+
+    /**
+     * @return position为0、limit等于capacity的缓冲区，capacity不小于size
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sizeClass = classOf(size);
+        if (sizeClass == null) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer == null) {
+            buffer = sizeClass.grow();
+        }
+        sizeClass.inUse.incrementAndGet();
+        inUseBytes.addAndGet(sizeClass.size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还之后调用者不能再使用buffer，也不能重复归还。
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = classOf(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+            return;
+        }
+        sizeClass.inUse.decrementAndGet();
+        inUseBytes.addAndGet(-sizeClass.size);
+        sizeClass.free.offer(buffer);
+    }
+
+    private SizeClass classOf(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size)
+                return sizeClass;
+        }
+        return null;
+    }
+
+    /**
+     * 已经从系统申请的direct内存字节数
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * 正在被借用的字节数（按级别大小计）
+     */
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BufferPool{allocated=").append(allocatedBytes.get())
+                .append(", inUse=").append(inUseBytes.get());
+        for (SizeClass sizeClass : classes) {
+            sb.append(", ").append(sizeClass.size).append(':')
+                    .append(sizeClass.inUse.get()).append('/').append(sizeClass.total.get());
+        }
+        return sb.append('}').toString();
+    }
+
+    private final class SizeClass {
+        private final int size;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inUse = new AtomicInteger();
+        private final AtomicInteger total = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        /**
+         * 申请一块slab，留下一个返回给调用者，其余放入空闲队列。
+         */
+        private ByteBuffer grow() {
+            int count = Math.max(1, SLAB_SIZE / size);
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+            allocatedBytes.addAndGet(count * size);
+            total.addAndGet(count);
+            for (int i = 1; i < count; ++i) {
+                slab.limit((i + 1) * size).position(i * size);
+                free.offer(slab.slice());
+            }
+            slab.limit(size).position(0);
+            return slab.slice();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群模式下到另一个节点的单向长连接，连的是对方给客户端用的同一个端口。只发不收，对方发给我们的数据走它自己的连接。
+ * <p>
+ * reactor把要发的消息追加到待发送的缓冲区里就返回，后台线程每次把攒下的所有消息用一次写发出去（双缓冲）。
+ * 连接断开后自动重连，重连成功先发hello，再通过{@link Listener#onConnect}发一份本节点当前绑定的所有id，
+ * 断开期间的目录变化都包含在这份快照里，所以断开时目录消息直接丢弃；推送在断开或者缓冲区满时丢弃并返回false。
+ * <p>
+ * 节点之间的消息：
+ * <pre>
+ * cmd 15 hello         [node:int][key:long]，对方用key确认这是集群里的节点
+ * cmd 16 bind          [id:int * n]，这些id绑定在发送者上
+ * cmd 17 unbind        [id:int * n]
+ * cmd 18 转发的多推     [num:int][id:int * num][data]，格式和cmd 3一样，接收者只投递给本节点的连接
+ * cmd 19 转发的单推     [id:int][data]
+ * 18和19可以或上{@link PushServer#PRIORITY}
+ * cmd 23 转发的广播     [data]，接收者只发给本节点的连接，不报告进度
+ * </pre>
+ */
+final class ClusterLink implements Runnable {
+    interface Listener {
+        /**
+         * 在连接线程上回调，这时hello已经放进缓冲区，在这里用{@link #bind(int[], int)}发送目录快照
+         */
+        void onConnect(ClusterLink link);
+    }
+
+    private static final long MAX_BACKOFF = 5000;
+
+    private final int node;
+    private final InetSocketAddress address;
+    private final int self;
+    private final long key;
+    private final int limit;
+    private final int maxMessageSize;
+    private final Log log;
+    private final Listener listener;
+
+    private ByteBuffer pending;
+    private ByteBuffer flushing;
+    private boolean connected = false;
+    private boolean waiting = false;
+    private volatile boolean running = true;
+    private volatile SocketChannel channel;
+    private Thread thread;
+
+    /**
+     * @param node  对方在集群中的序号
+     * @param self  本节点的序号
+     * @param limit 待发送的推送最多攒多少字节，目录消息不受这个限制
+     */
+    ClusterLink(int node, InetSocketAddress address, int self, long key, int limit, int maxMessageSize,
+                Log log, Listener listener) {
+        this.node = node;
+        this.address = address;
+        this.self = self;
+        this.key = key;
+        this.limit = limit;
+        this.maxMessageSize = maxMessageSize;
+        this.log = log;
+        this.listener = listener;
+        pending = ByteBuffer.allocate(limit);
+        flushing = ByteBuffer.allocate(limit);
+    }
+
+    int node() {
+        return node;
+    }
+
+    void start() {
+        thread = new Thread(this, "PushServer-cluster-" + node);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        SocketChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    void bind(int id) {
+        synchronized (this) {
+            if (!connected)
+                return;
+            reserve(9, true);
+            pending.putInt(9).put((byte) 16).putInt(id);
+            wake();
+        }
+    }
+
+    void unbind(int id) {
+        synchronized (this) {
+            if (!connected)
+                return;
+            reserve(9, true);
+            pending.putInt(9).put((byte) 17).putInt(id);
+            wake();
+        }
+    }
+
+    /**
+     * 目录快照，分成不超过maxMessageSize的多条cmd 16
+     */
+    void bind(int[] ids, int count) {
+        int per = (maxMessageSize - 5) / 4;
+        synchronized (this) {
+            if (!connected)
+                return;
+            for (int i = 0; i < count; i += per) {
+                int n = Math.min(per, count - i);
+                reserve(5 + n * 4, true);
+                pending.putInt(5 + n * 4).put((byte) 16);
+                for (int j = i; j < i + n; ++j) {
+                    pending.putInt(ids[j]);
+                }
+            }
+            wake();
+        }
+    }
+
+    /**
+     * 把body转发给这个节点上的ids[0, count)，按maxMessageSize拆成多条cmd 18，连一个id都放不下时逐个用cmd 19
+     *
+     * @param urgent 见{@link PushServer#PRIORITY}
+     * @return 转发的消息数，0表示连接断开或者缓冲区满，推送被丢弃
+     */
+    int forward(int[] ids, int count, ByteBuffer body, boolean urgent) {
+        int size = body.remaining();
+        int per = (maxMessageSize - 9 - size) / 4;
+        if (per < 1) {
+            int frames = 0;
+            for (int i = 0; i < count; ++i) {
+                frames += forward(ids[i], body, urgent);
+            }
+            return frames;
+        }
+        int frames = (count + per - 1) / per;
+        synchronized (this) {
+            if (!connected || !reserve(frames * (9 + size) + count * 4, false))
+                return 0;
+            for (int i = 0; i < count; i += per) {
+                int n = Math.min(per, count - i);
+                pending.putInt(9 + n * 4 + size).put((byte) (urgent ? 18 | PushServer.PRIORITY : 18)).putInt(n);
+                for (int j = i; j < i + n; ++j) {
+                    pending.putInt(ids[j]);
+                }
+                pending.put(body.duplicate());
+            }
+            wake();
+        }
+        return frames;
+    }
+
+    /**
+     * 长度和原来的cmd 2一样，一定不超过maxMessageSize
+     *
+     * @return 同{@link #forward(int[], int, ByteBuffer, boolean)}
+     */
+    int forward(int id, ByteBuffer body, boolean urgent) {
+        int len = 9 + body.remaining();
+        synchronized (this) {
+            if (!connected || !reserve(len, false))
+                return 0;
+            pending.putInt(len).put((byte) (urgent ? 19 | PushServer.PRIORITY : 19)).putInt(id);
+            pending.put(body.duplicate());
+            wake();
+        }
+        return 1;
+    }
+
+    /**
+     * 广播给这个节点上所有绑定了id的连接
+     *
+     * @return false表示连接断开或者缓冲区满，广播没有转发
+     */
+    boolean broadcast(ByteBuffer body) {
+        int len = 5 + body.remaining();
+        synchronized (this) {
+            if (!connected || !reserve(len, false))
+                return false;
+            pending.putInt(len).put((byte) 23);
+            pending.put(body.duplicate());
+            wake();
+        }
+        return true;
+    }
+
+    /**
+     * 调用者持有锁。目录消息不能丢，缓冲区不够时扩容
+     */
+    private boolean reserve(int size, boolean grow) {
+        if (pending.remaining() >= size)
+            return true;
+        if (!grow)
+            return false;
+        int capacity = pending.capacity();
+        while (capacity - pending.position() < size) {
+            capacity <<= 1;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+        return true;
+    }
+
+    private void wake() {
+        if (waiting)
+            notify();
+    }
+
+    @Override
+    public void run() {
+        long backoff = 100;
+        while (running) {
+            if (channel == null) {
+                if (connect()) {
+                    backoff = 100;
+                } else {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+                continue;
+            }
+            synchronized (this) {
+                while (running && pending.position() == 0) {
+                    waiting = true;
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        waiting = false;
+                    }
+                }
+                ByteBuffer t = pending;
+                pending = flushing;
+                flushing = t;
+            }
+            flushing.flip();
+            try {
+                while (flushing.hasRemaining()) {
+                    channel.write(flushing);
+                }
+            } catch (IOException e) {
+                if (running)
+                    log.log("cluster link to node %d broken", node);
+                disconnect();
+            }
+            //快照可能让缓冲区变得很大，发完之后换回正常大小
+            if (flushing.capacity() > limit)
+                flushing = ByteBuffer.allocate(limit);
+            flushing.clear();
+        }
+        disconnect();
+    }
+
+    private boolean connect() {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, 3000);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+        synchronized (this) {
+            pending.clear();
+            pending.putInt(17).put((byte) 15).putInt(self).putLong(key);
+            connected = true;
+            this.channel = channel;
+        }
+        log.log("cluster link to node %d connected", node);
+        listener.onConnect(this);
+        return true;
+    }
+
+    private void disconnect() {
+        SocketChannel channel;
+        synchronized (this) {
+            connected = false;
+            pending.clear();
+            channel = this.channel;
+            this.channel = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * 压缩发给客户端的推送，见{@link PushServer#FEATURE_DEFLATE}。不是线程安全的，每个reactor一个。
+ * <p>
+ * 用zlib格式、最快的压缩级别：推送一般很短，省下的主要是重复的JSON字段名，更高的级别收益不大，CPU开销却高得多。
+ */
+final class Compressor {
+    /**
+     * 更短的推送不压缩，zlib的头和校验就有6字节
+     */
+    static final int MIN_SIZE = 64;
+
+    private final BufferPool pool;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] input;
+    private final byte[] output;
+
+    Compressor(BufferPool pool, int maxSize) {
+        this.pool = pool;
+        this.input = new byte[maxSize];
+        this.output = new byte[maxSize];
+    }
+
+    /**
+     * @return 压缩后的内容，太短或者压缩后没有变小时返回null
+     */
+    Payload compress(Payload payload) {
+        int size = payload.size();
+        if (size < MIN_SIZE || size > input.length)
+            return null;
+        payload.view().get(input, 0, size);
+        deflater.reset();
+        deflater.setInput(input, 0, size);
+        deflater.finish();
+        int len = deflater.deflate(output, 0, size - 1);
+        if (!deflater.finished())
+            return null;
+        return Payload.copyOf(pool, ByteBuffer.wrap(output, 0, len));
+    }
+
+    /**
+     * 释放Deflater的本地内存
+     */
+    void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,260 @@
+package shxhzhxx;
+
+/**
+ * int到对象的开放寻址（线性探测）哈希表，key不装箱，也没有每个元素一个的节点对象。不是线程安全的。
+ * <p>
+ * 扩容是渐进的：超过负载因子时只分配新表，之后每次put/remove顺带把旧表的一小段搬到新表，
+ * 搬完之前查找会依次查新表和旧表，所以大量bind时不会因为一次性rehash卡住。
+ * <p>
+ * key 0 被用来表示空槽，不能作为key。
+ */
+final class IntMap<V> {
+    private static final int MIGRATE_STEP = 16;
+
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    /**
+     * 扩容中的旧表，不做删除时的后移，被删除或搬走的槽保留key、value置为null（墓碑），
+     * 这样没搬完的元素的探测链不会被打断。
+     */
+    private int[] oldKeys;
+    private Object[] oldValues;
+    private int oldSize = 0;
+    private int migrated = 0;
+
+    IntMap() {
+        this(16);
+    }
+
+    IntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size + oldSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return (V) values[i];
+        }
+        if (oldKeys != null) {
+            int i = indexOfOld(key);
+            if (i >= 0)
+                return (V) oldValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return 被替换掉的value
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (key == 0)
+            throw new IllegalArgumentException("key == 0");
+        if (value == null)
+            throw new NullPointerException("value");
+        migrate();
+        Object prev = null;
+        if (oldKeys != null) {
+            int i = indexOfOld(key);
+            if (i >= 0) {
+                prev = oldValues[i];
+                oldValues[i] = null;
+                --oldSize;
+            }
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                prev = values[i];
+                values[i] = value;
+                return (V) prev;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        ++size;
+        if (size + oldSize > keys.length >> 1) {
+            grow();
+        }
+        return (V) prev;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        migrate();
+        int i = indexOf(key);
+        if (i >= 0) {
+            Object prev = values[i];
+            removeAt(i);
+            return (V) prev;
+        }
+        if (oldKeys != null) {
+            i = indexOfOld(key);
+            if (i >= 0) {
+                Object prev = oldValues[i];
+                oldValues[i] = null;
+                --oldSize;
+                return (V) prev;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 只有key当前对应的就是value时才删除
+     */
+    boolean remove(int key, V value) {
+        migrate();
+        int i = indexOf(key);
+        if (i >= 0) {
+            if (values[i] != value)
+                return false;
+            removeAt(i);
+            return true;
+        }
+        if (oldKeys != null) {
+            i = indexOfOld(key);
+            if (i >= 0 && oldValues[i] == value) {
+                oldValues[i] = null;
+                --oldSize;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 所有key，顺序不确定
+     */
+    int[] keys() {
+        int[] result = new int[size()];
+        int n = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0)
+                result[n++] = keys[i];
+        }
+        if (oldKeys != null) {
+            for (int i = migrated; i < oldKeys.length; ++i) {
+                if (oldValues[i] != null)
+                    result[n++] = oldKeys[i];
+            }
+        }
+        return result;
+    }
+
+    void clear() {
+        keys = new int[16];
+        values = new Object[16];
+        size = 0;
+        oldKeys = null;
+        oldValues = null;
+        oldSize = 0;
+    }
+
+    private int indexOf(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOfOld(int key) {
+        int mask = oldKeys.length - 1;
+        for (int i = hash(key) & mask; oldKeys[i] != 0; i = (i + 1) & mask) {
+            if (oldKeys[i] == key)
+                return oldValues[i] == null ? -1 : i;
+        }
+        return -1;
+    }
+
+    /**
+     * 线性探测的删除：把后面探测链上的元素往前移，填补空出来的槽。
+     */
+    private void removeAt(int i) {
+        int mask = keys.length - 1;
+        int j = i;
+        for (; ; ) {
+            j = (j + 1) & mask;
+            int key = keys[j];
+            if (key == 0)
+                break;
+            int home = hash(key) & mask;
+            //j的元素能否移到i：home不在(i, j]区间内
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = key;
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = null;
+        --size;
+    }
+
+    private void grow() {
+        if (oldKeys != null) {
+            //上次扩容还没搬完，先一次搬完
+            while (oldKeys != null) {
+                migrate();
+            }
+        }
+        oldKeys = keys;
+        oldValues = values;
+        oldSize = size;
+        migrated = 0;
+        keys = new int[oldKeys.length << 1];
+        values = new Object[oldKeys.length << 1];
+        size = 0;
+    }
+
+    /**
+     * 新表容量是旧表两倍，负载因子1/2，再次触发扩容前至少还有旧表容量/2次插入，
+     * 每次搬{@link #MIGRATE_STEP}个槽足够在那之前搬完。
+     */
+    private void migrate() {
+        if (oldKeys == null)
+            return;
+        int end = Math.min(migrated + MIGRATE_STEP, oldKeys.length);
+        int mask = keys.length - 1;
+        for (; migrated < end; ++migrated) {
+            Object value = oldValues[migrated];
+            if (value == null)
+                continue;
+            int key = oldKeys[migrated];
+            int i = hash(key) & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            ++size;
+            --oldSize;
+            oldValues[migrated] = null;
+        }
+        if (migrated == oldKeys.length) {
+            oldKeys = null;
+            oldValues = null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package shxhzhxx;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志：调用线程只把格式串和参数放进一个无锁的环形缓冲区，格式化和输出都在后台线程上做，
+ * reactor不会因为控制台或者文件的I/O被卡住。
+ * <p>
+ * 参数只支持最多两个整数或者一个对象，整数不装箱，记录一条日志不分配内存；关闭日志时只有一次volatile读。
+ * 缓冲区满时丢弃新的日志并计数。
+ * <p>
+ * 同一个格式串（按对象地址区分，一般是代码里的字面量）每秒最多输出{@link #BURST}条，超过后每{@link #SAMPLE}条输出一条，
+ * 其余的只计数，在这个格式串下一次输出时一起报告，避免异常的客户端刷屏。
+ */
+final class Log implements Runnable {
+    private static final int BURST = 10;
+    private static final int SAMPLE = 100;
+    private static final int SITES = 256;
+
+    private final String name;
+    private final PrintStream out;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * 按格式串的哈希分成{@link #SITES}组做限流，冲突的格式串共用额度
+     */
+    private final AtomicLongArray windows = new AtomicLongArray(SITES);
+    private final AtomicLongArray counts = new AtomicLongArray(SITES);
+    private final AtomicLongArray suppressed = new AtomicLongArray(SITES);
+    private volatile boolean enabled = true;
+    private volatile boolean running = false;
+    private volatile Thread thread;
+
+    /**
+     * @param capacity 缓冲区能放下的日志条数，向上取到2的幂
+     */
+    Log(String name, PrintStream out, int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.name = name;
+        this.out = out;
+        this.slots = new Slot[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; ++i) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 启动后台线程，之前记录的日志留在缓冲区里，启动后输出
+     */
+    synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this, name + "-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 输出缓冲区里剩下的日志后停止后台线程
+     */
+    void close() {
+        running = false;
+        Thread thread = this.thread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void log(String format) {
+        if (enabled)
+            publish(format, 0, 0, 0, null);
+    }
+
+    void log(String format, long a) {
+        if (enabled)
+            publish(format, 1, a, 0, null);
+    }
+
+    void log(String format, long a, long b) {
+        if (enabled)
+            publish(format, 2, a, b, null);
+    }
+
+    void log(String format, Object o) {
+        if (enabled)
+            publish(format, -1, 0, 0, o);
+    }
+
+    private void publish(String format, int argc, long a, long b, Object o) {
+        int site = (System.identityHashCode(format) * 0x9E3779B9) >>> 24;
+        long window = System.nanoTime() >>> 30;//约1秒
+        long w = windows.get(site);
+        if (w != window && windows.compareAndSet(site, w, window))
+            counts.set(site, 0);
+        long n = counts.incrementAndGet(site);
+        if (n > BURST && (n - BURST) % SAMPLE != 0) {
+            suppressed.incrementAndGet(site);
+            return;
+        }
+        //有界MPSC队列：每个槽的sequence等于pos时可写，等于pos+1时可读
+        long pos = tail.get();
+        Slot slot;
+        for (; ; ) {
+            slot = slots[(int) (pos & mask)];
+            long dif = slot.sequence - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (dif < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.format = format;
+        slot.argc = argc;
+        slot.a = a;
+        slot.b = b;
+        slot.o = o;
+        slot.suppressed = suppressed.getAndSet(site, 0);
+        slot.sequence = pos + 1;
+    }
+
+    @Override
+    public void run() {
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder sb = new StringBuilder();
+        for (; ; ) {
+            boolean stopping = !running;
+            int written = 0;
+            for (; ; ) {
+                Slot slot = slots[(int) (head & mask)];
+                if (slot.sequence != head + 1)
+                    break;
+                sb.setLength(0);
+                sb.append(date.format(new Date(slot.time))).append(" [").append(slot.thread).append("] ");
+                try {
+                    switch (slot.argc) {
+                        case -1:
+                            sb.append(String.format(slot.format, slot.o));
+                            break;
+                        case 0:
+                            sb.append(slot.format);
+                            break;
+                        case 1:
+                            sb.append(String.format(slot.format, slot.a));
+                            break;
+                        default:
+                            sb.append(String.format(slot.format, slot.a, slot.b));
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    sb.append(slot.format).append(" (bad format: ").append(e).append(')');
+                }
+                if (slot.suppressed > 0)
+                    sb.append(" (").append(slot.suppressed).append(" similar suppressed)");
+                slot.format = null;
+                slot.o = null;
+                slot.thread = null;
+                slot.sequence = head + slots.length;
+                ++head;
+                out.println(sb);
+                ++written;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+                out.printf("%s [%s] %d log events dropped\n", date.format(new Date()), name, lost);
+            if (stopping) {
+                out.flush();
+                return;
+            }
+            if (written == 0)
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+    }
+
+    private static final class Slot {
+        private volatile long sequence;
+        private long time;
+        private String thread;
+        private String format;
+        private int argc;
+        private long a;
+        private long b;
+        private Object o;
+        private long suppressed;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个reactor的计数器和直方图，只由所属的reactor线程写，记录时不加锁、不分配内存。
+ * <p>
+ * 其他线程做快照时直接读这些字段，读到的可能是稍旧的值，作为统计数据足够了。
+ */
+final class Metrics {
+    /**
+     * 按cmd分别统计的范围，更大的cmd都是未知的，合在一起统计，这样快照的大小是有上限的
+     */
+    static final int OPCODES = 32;
+    /**
+     * 按cmd统计收到的消息
+     */
+    private final long[] framesIn = new long[OPCODES];
+    private long unknownFramesIn;
+    /**
+     * 按类型统计发出的消息，类型和v2协议中服务端消息的类型一致（旧协议的推送也算作2）
+     */
+    final long[] framesOut = new long[OPCODES];
+    long bytesIn;
+    long bytesOut;
+    long opened;
+    long closed;
+    /**
+     * 目标不在线又没有离线存储，直接丢弃的推送
+     */
+    long offlineDropped;
+    /**
+     * 目标不在线，写入离线存储的推送
+     */
+    long offlineStored;
+    /**
+     * 发送队列超过上限时按DROP_NEWEST/DROP_OLDEST丢弃的消息
+     */
+    long overflowDropped;
+    /**
+     * 关闭时发送队列中还有没写完的数据的连接，包括发送队列溢出、写失败和空闲超时
+     */
+    long partialWriteCloses;
+    long idleEvicted;
+    /**
+     * 集群模式下转发给其他节点的消息数，多推按节点拆分后每个节点算一条
+     */
+    long forwarded;
+    /**
+     * 到目标节点的连接断开或者积压太多，没能转发的推送
+     */
+    long forwardDropped;
+    /**
+     * 超过按cmd限速（见{@link PushServer#setRateLimit}）被暂停读的次数
+     */
+    long throttled;
+    /**
+     * 超过推送目标数限速（见{@link PushServer#setFanOutLimit}）被暂停读的次数
+     */
+    long fanOutThrottled;
+    /**
+     * 处理一个消息的纳秒数
+     */
+    final Histogram dispatchNanos = new Histogram();
+    /**
+     * 多推和分组发布的目标数
+     */
+    final Histogram fanOut = new Histogram();
+
+    void frameIn(int cmd) {
+        if (cmd < OPCODES)
+            ++framesIn[cmd];
+        else
+            ++unknownFramesIn;
+    }
+
+    void merge(Metrics other) {
+        for (int i = 0; i < OPCODES; ++i) {
+            framesIn[i] += other.framesIn[i];
+            framesOut[i] += other.framesOut[i];
+        }
+        unknownFramesIn += other.unknownFramesIn;
+        bytesIn += other.bytesIn;
+        bytesOut += other.bytesOut;
+        opened += other.opened;
+        closed += other.closed;
+        offlineDropped += other.offlineDropped;
+        offlineStored += other.offlineStored;
+        overflowDropped += other.overflowDropped;
+        partialWriteCloses += other.partialWriteCloses;
+        idleEvicted += other.idleEvicted;
+        forwarded += other.forwarded;
+        forwardDropped += other.forwardDropped;
+        throttled += other.throttled;
+        fanOutThrottled += other.fanOutThrottled;
+        dispatchNanos.merge(other.dispatchNanos);
+        fanOut.merge(other.fanOut);
+    }
+
+    /**
+     * 二进制快照，所有数字都是大端：
+     * <pre>
+     * [connections:int][ids:int][groups:int][poolInUse:long][poolAllocated:long]
+     * [bytesIn:long][bytesOut:long][offlineDropped:long][offlineStored:long]
+     * [overflowDropped:long][partialWriteCloses:long][idleEvicted:long][unknownFramesIn:long]
+     * [forwarded:long][forwardDropped:long][throttled:long][fanOutThrottled:long]
+     * [n:int]{[cmd:byte][count:long]} * n      收到的消息，只列出不为0的、小于32的cmd
+     * [n:int]{[type:byte][count:long]} * n     发出的消息
+     * dispatchNanos, fanOut：[count:long][sum:long][max:long][p50:long][p99:long][p999:long]
+     * </pre>
+     */
+    void write(ByteBuffer dst, int ids, int groups, BufferPool pool) {
+        dst.putInt((int) (opened - closed));
+        dst.putInt(ids);
+        dst.putInt(groups);
+        dst.putLong(pool.getInUseBytes());
+        dst.putLong(pool.getAllocatedBytes());
+        dst.putLong(bytesIn);
+        dst.putLong(bytesOut);
+        dst.putLong(offlineDropped);
+        dst.putLong(offlineStored);
+        dst.putLong(overflowDropped);
+        dst.putLong(partialWriteCloses);
+        dst.putLong(idleEvicted);
+        dst.putLong(unknownFramesIn);
+        dst.putLong(forwarded);
+        dst.putLong(forwardDropped);
+        dst.putLong(throttled);
+        dst.putLong(fanOutThrottled);
+        writeFrames(dst, framesIn);
+        writeFrames(dst, framesOut);
+        dispatchNanos.write(dst);
+        fanOut.write(dst);
+    }
+
+    /**
+     * {@link #write}需要的最大字节数
+     */
+    static int maxSize() {
+        return 12 + 8 * 14 + 2 * (4 + OPCODES * 9) + 2 * 48;
+    }
+
+    private static void writeFrames(ByteBuffer dst, long[] frames) {
+        int position = dst.position();
+        dst.putInt(0);
+        int n = 0;
+        for (int i = 0; i < frames.length; ++i) {
+            if (frames[i] != 0) {
+                dst.put((byte) i);
+                dst.putLong(frames[i]);
+                ++n;
+            }
+        }
+        dst.putInt(position, n);
+    }
+
+    String format(int ids, int groups, BufferPool pool) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("connections: %d, ids: %d, groups: %d, pool: %d/%d bytes in use\n",
+                opened - closed, ids, groups, pool.getInUseBytes(), pool.getAllocatedBytes()));
+        sb.append(String.format("bytes in: %d, out: %d\n", bytesIn, bytesOut));
+        sb.append("frames in:");
+        formatFrames(sb, framesIn);
+        if (unknownFramesIn != 0)
+            sb.append(" unknown=").append(unknownFramesIn);
+        sb.append("\nframes out:");
+        formatFrames(sb, framesOut);
+        sb.append(String.format("\noffline dropped: %d, stored: %d, overflow dropped: %d, partial write closes: %d, idle evicted: %d\n",
+                offlineDropped, offlineStored, overflowDropped, partialWriteCloses, idleEvicted));
+        if (forwarded != 0 || forwardDropped != 0)
+            sb.append(String.format("forwarded: %d, forward dropped: %d\n", forwarded, forwardDropped));
+        if (throttled != 0 || fanOutThrottled != 0)
+            sb.append(String.format("throttled: %d, fan out throttled: %d\n", throttled, fanOutThrottled));
+        sb.append(String.format("dispatch us: p50 %.1f, p99 %.1f, p999 %.1f, max %.1f, count %d\n",
+                dispatchNanos.percentile(0.5) / 1000.0, dispatchNanos.percentile(0.99) / 1000.0,
+                dispatchNanos.percentile(0.999) / 1000.0, dispatchNanos.max / 1000.0, dispatchNanos.count));
+        sb.append(String.format("fan out: p50 %d, p99 %d, max %d, count %d",
+                fanOut.percentile(0.5), fanOut.percentile(0.99), fanOut.max, fanOut.count));
+        return sb.toString();
+    }
+
+    private static void formatFrames(StringBuilder sb, long[] frames) {
+        for (int i = 0; i < frames.length; ++i) {
+            if (frames[i] != 0)
+                sb.append(' ').append(i).append('=').append(frames[i]);
+        }
+    }
+
+    /**
+     * 按2的幂分桶的直方图，第i个桶记录[2^i, 2^(i+1))的值，0记在第0个桶。百分位取所在桶的上界，误差在2倍以内。
+     */
+    static final class Histogram {
+        private final long[] buckets = new long[64];
+        long count;
+        long sum;
+        long max;
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            ++buckets[value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value)];
+            ++count;
+            sum += value;
+            if (value > max)
+                max = value;
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(max, i == 63 ? Long.MAX_VALUE : (2L << i) - 1);
+            }
+            return 0;
+        }
+
+        private void merge(Histogram other) {
+            for (int i = 0; i < buckets.length; ++i) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        private void write(ByteBuffer dst) {
+            dst.putLong(count);
+            dst.putLong(sum);
+            dst.putLong(max);
+            dst.putLong(percentile(0.5));
+            dst.putLong(percentile(0.99));
+            dst.putLong(percentile(0.999));
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package shxhzhxx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 离线消息存储：发给不在线id的推送追加写入内存映射的段文件，id绑定后按顺序取出重放。
+ * <p>
+ * 所有文件操作都在一个后台线程上，reactor只往无锁队列里放请求，不会被磁盘阻塞。
+ * 每条记录只写一次，多推/分组发布时所有不在线的id共用一条记录，内存中的索引只记每个id对应记录的位置。
+ * 段文件写满就换下一个，整个段都过期之后直接删除文件，不需要逐条清理。
+ * <p>
+ * 记录格式：[len:int][time:long][num:int][id:int * num][payload]，len是整条记录的长度，
+ * 写的时候最后才写len，启动时扫描段文件遇到len为0就说明后面没有完整的记录了。
+ * 一个id的消息被取走后追加一条num为-1的记录[len][time][-1][id]，表示这个id之前的记录都已经送出，重启后不会再重放。
+ */
+final class OfflineStore implements Runnable {
+    interface Listener {
+        boolean isOnline(int id);
+
+        /**
+         * 在存储线程上回调，payloads按推送的顺序排列，每个用完要release
+         */
+        void onReplay(int id, List<Payload> payloads);
+    }
+
+    private static final int RECORD_HEADER = 16;
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final long ttl;
+    private final int perIdCap;
+    private final int segmentSize;
+    private final BufferPool pool;
+    private final Listener listener;
+    private final Log log;
+
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    //以下只在存储线程上访问
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final IntMap<Refs> index = new IntMap<>();
+    private long lastReclaim = 0;
+
+    /**
+     * @param ttl         消息保存的毫秒数
+     * @param perIdCap    每个id最多保存的消息数，超过后丢弃最早的
+     * @param segmentSize 每个段文件的字节数，至少要能放下一条最大的记录
+     */
+    OfflineStore(File dir, long ttl, int perIdCap, int segmentSize, BufferPool pool, Listener listener, Log log) {
+        this.dir = dir;
+        this.ttl = ttl;
+        this.perIdCap = perIdCap;
+        this.segmentSize = segmentSize;
+        this.pool = pool;
+        this.listener = listener;
+        this.log = log;
+    }
+
+    /**
+     * 扫描已有的段文件重建索引，然后启动存储线程
+     */
+    void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can not create " + dir);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            int[] seqs = new int[files.length];
+            int n = 0;
+            for (File file : files) {
+                try {
+                    seqs[n] = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                    ++n;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            Arrays.sort(seqs, 0, n);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < n; ++i) {
+                Segment segment = new Segment(seqs[i]);
+                segment.scan(now);
+                if (segment.lastAppend + ttl < now) {
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                }
+            }
+        }
+        thread = new Thread(this, "PushServer-offline-store");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * 保存一条推送给ids[0, count)，payload的引用交给存储，写完后由存储release
+     */
+    void append(int[] ids, int count, Payload payload) {
+        offer(new Request(Arrays.copyOf(ids, count), payload));
+    }
+
+    void append(int id, Payload payload) {
+        offer(new Request(new int[]{id}, payload));
+    }
+
+    /**
+     * 取出id保存的所有消息，结果通过{@link Listener#onReplay}返回，即使没有消息也会回调
+     */
+    void replay(int id) {
+        offer(new Request(new int[]{id}, null));
+    }
+
+    private void offer(Request request) {
+        requests.offer(request);
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Request request;
+            while ((request = requests.poll()) != null) {
+                try {
+                    if (request.payload == null) {
+                        listener.onReplay(request.ids[0], take(request.ids[0]));
+                    } else {
+                        write(request);
+                    }
+                } catch (IOException e) {
+                    log.log("offline store exception: %s", e.getMessage());
+                } finally {
+                    if (request.payload != null)
+                        request.payload.release();
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReclaim >= 1000) {
+                lastReclaim = now;
+                reclaim(now);
+            }
+            LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+        }
+        Request request;
+        while ((request = requests.poll()) != null) {
+            if (request.payload != null)
+                request.payload.release();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void write(Request request) throws IOException {
+        int size = RECORD_HEADER + request.ids.length * 4 + request.payload.size();
+        if (size > segmentSize) {
+            throw new IOException("record too large: " + size);
+        }
+        Segment segment = writable(size);
+        long now = System.currentTimeMillis();
+        int offset = segment.append(request.ids, request.payload.view(), size, now);
+        long ref = ((long) segment.seq << 32) | offset;
+        for (int id : request.ids) {
+            Refs refs = index.get(id);
+            if (refs == null) {
+                refs = new Refs();
+                index.put(id, refs);
+            }
+            refs.add(ref);
+        }
+        //绑定和追加之间有竞争：追加的请求晚于重放的请求到达时，id已经在线，立即再重放一次
+        for (int id : request.ids) {
+            if (listener.isOnline(id)) {
+                listener.onReplay(id, take(id));
+            }
+        }
+    }
+
+    private Segment writable(int size) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.position + size > segmentSize) {
+            segment = new Segment(segment == null ? 0 : segment.seq + 1);
+            segment.map();
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    private List<Payload> take(int id) {
+        Refs refs = index.remove(id);
+        if (refs == null)
+            return new ArrayList<>(0);
+        try {
+            writable(RECORD_HEADER + 4).consumed(id, System.currentTimeMillis());
+        } catch (IOException e) {
+            //只影响重启后是否会重复重放
+            log.log("offline store exception: %s", e.getMessage());
+        }
+        List<Payload> payloads = new ArrayList<>(refs.count);
+        long deadline = System.currentTimeMillis() - ttl;
+        for (int i = 0; i < refs.count; ++i) {
+            long ref = refs.get(i);
+            Segment segment = find((int) (ref >>> 32));
+            if (segment == null)
+                continue;
+            ByteBuffer record = segment.buffer.duplicate();
+            int offset = (int) ref;
+            int len = record.getInt(offset);
+            if (record.getLong(offset + 4) < deadline)
+                continue;
+            int num = record.getInt(offset + 12);
+            record.limit(offset + len).position(offset + RECORD_HEADER + num * 4);
+            payloads.add(Payload.copyOf(pool, record));
+        }
+        return payloads;
+    }
+
+    private Segment find(int seq) {
+        for (Segment segment : segments) {
+            if (segment.seq == seq)
+                return segment;
+        }
+        return null;
+    }
+
+    /**
+     * 删除最后一次追加已经过期的段，再清掉索引中指向已删除段的位置
+     */
+    private void reclaim(long now) {
+        boolean reclaimed = false;
+        while (segments.size() > 1 && segments.peekFirst().lastAppend + ttl < now) {
+            segments.pollFirst().delete();
+            reclaimed = true;
+        }
+        if (segments.size() == 1 && segments.peekFirst().lastAppend + ttl < now) {
+            segments.pollFirst().delete();
+            reclaimed = true;
+        }
+        if (!reclaimed)
+            return;
+        long minSeq = segments.isEmpty() ? Long.MAX_VALUE : segments.peekFirst().seq;
+        for (int id : index.keys()) {
+            Refs refs = index.get(id);
+            while (refs.count > 0 && (refs.get(0) >>> 32) < minSeq) {
+                refs.removeFirst();
+            }
+            if (refs.count == 0) {
+                index.remove(id);
+            }
+        }
+    }
+
+    private static class Request {
+        private final int[] ids;
+        private final Payload payload;
+
+        private Request(int[] ids, Payload payload) {
+            this.ids = ids;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 一个id保存的记录位置（段序号&lt;&lt;32 | 偏移），环形数组，满了覆盖最早的
+     */
+    private class Refs {
+        private long[] refs = new long[4];
+        private int head = 0;
+        private int count = 0;
+
+        private void add(long ref) {
+            if (count == perIdCap) {
+                removeFirst();
+            }
+            if (count == refs.length) {
+                long[] larger = new long[Math.min(refs.length * 2, perIdCap)];
+                for (int i = 0; i < count; ++i) {
+                    larger[i] = get(i);
+                }
+                refs = larger;
+                head = 0;
+            }
+            refs[(head + count) % refs.length] = ref;
+            ++count;
+        }
+
+        private long get(int i) {
+            return refs[(head + i) % refs.length];
+        }
+
+        private void removeFirst() {
+            head = (head + 1) % refs.length;
+            --count;
+        }
+    }
+
+    private class Segment {
+        private final int seq;
+        private final File file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int position = 0;
+        private long lastAppend = 0;
+
+        private Segment(int seq) {
+            this.seq = seq;
+            this.file = new File(dir, String.format("%010d", seq) + SUFFIX);
+        }
+
+        private void map() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        /**
+         * 启动时读出所有完整的记录，加入索引
+         */
+        private void scan(long now) throws IOException {
+            map();
+            while (position + RECORD_HEADER <= segmentSize) {
+                int len = buffer.getInt(position);
+                if (len < RECORD_HEADER || position + len > segmentSize)
+                    break;
+                long time = buffer.getLong(position + 4);
+                int num = buffer.getInt(position + 12);
+                lastAppend = Math.max(lastAppend, time);
+                if (num < 0) {
+                    index.remove(buffer.getInt(position + RECORD_HEADER));
+                } else if (time + ttl >= now) {
+                    long ref = ((long) seq << 32) | position;
+                    for (int i = 0; i < num; ++i) {
+                        int id = buffer.getInt(position + RECORD_HEADER + i * 4);
+                        Refs refs = index.get(id);
+                        if (refs == null) {
+                            refs = new Refs();
+                            index.put(id, refs);
+                        }
+                        refs.add(ref);
+                    }
+                }
+                position += len;
+            }
+        }
+
+        private int append(int[] ids, ByteBuffer payload, int size, long time) {
+            int offset = position;
+            buffer.putLong(offset + 4, time);
+            buffer.putInt(offset + 12, ids.length);
+            for (int i = 0; i < ids.length; ++i) {
+                buffer.putInt(offset + RECORD_HEADER + i * 4, ids[i]);
+            }
+            buffer.position(offset + RECORD_HEADER + ids.length * 4);
+            buffer.put(payload);
+            buffer.putInt(offset, size);
+            position += size;
+            lastAppend = time;
+            return offset;
+        }
+
+        private void consumed(int id, long time) {
+            int offset = position;
+            buffer.putLong(offset + 4, time);
+            buffer.putInt(offset + 12, -1);
+            buffer.putInt(offset + RECORD_HEADER, id);
+            buffer.putInt(offset, RECORD_HEADER + 4);
+            position += RECORD_HEADER + 4;
+            lastAppend = time;
+        }
+
+        private void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * 映射的内存在buffer被回收时才释放，Linux上文件可以先删除
+         */
+        private void delete() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (!file.delete()) {
+                log.log("offline store delete failed: %s", file);
+            }
+        }
+    }
+}
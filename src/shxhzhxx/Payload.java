@@ -0,0 +1,82 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 一条推送的内容，从{@link BufferPool}借来，带引用计数，多个目标（包括其他reactor上的目标）共用同一份数据。
+ * 每个持有者用完调用一次{@link #release()}，计数归零时归还给池。
+ */
+final class Payload {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    /**
+     * 压缩后的内容，第一次发给支持压缩的连接时生成，之后所有这样的连接（包括其他reactor上的）共用；
+     * 不值得压缩时是this，不再尝试
+     */
+    private volatile Payload compressed;
+    private static final AtomicReferenceFieldUpdater<Payload, Payload> COMPRESSED =
+            AtomicReferenceFieldUpdater.newUpdater(Payload.class, Payload.class, "compressed");
+
+    private Payload(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 复制src剩下的部分，src的position移到limit
+     */
+    static Payload copyOf(BufferPool pool, ByteBuffer src) {
+        ByteBuffer buffer = pool.acquire(src.remaining());
+        buffer.put(src).flip();
+        return new Payload(pool, buffer);
+    }
+
+    int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return 一个新的只读视图，position为0
+     */
+    ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 压缩后的内容由这个payload持有，随它一起释放，调用者需要保留时自己retain
+     *
+     * @return 压缩后的内容，不值得压缩时返回null
+     */
+    Payload compressed(Compressor compressor) {
+        Payload c = compressed;
+        if (c == null) {
+            c = compressor.compress(this);
+            if (c == null)
+                c = this;
+            //多个reactor同时压缩时只保留一份
+            if (!COMPRESSED.compareAndSet(this, null, c)) {
+                if (c != this)
+                    c.release();
+                c = compressed;
+            }
+        }
+        return c == this ? null : c;
+    }
+
+    Payload retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            pool.release(buffer);
+            Payload c = compressed;
+            if (c != null && c != this)
+                c.release();
+        }
+    }
+}
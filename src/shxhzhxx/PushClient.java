@@ -1,17 +1,27 @@
 package shxhzhxx;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class PushClient extends Thread {
     enum State {
         INIT,
         CONNECTED,
         BIND,
+        /**
+         * 连接断开，正在等待重连，见{@link #setReconnect}。重连成功后变为CONNECTED，之后自动重新绑定
+         */
+        RECONNECTING,
         ERROR
     }
 
@@ -19,27 +29,293 @@ public class PushClient extends Thread {
         void onStateChange(State state);
 
         void onReceiveData(byte[] data);
+
+        /**
+         * 收到推送时调用，data是只读的，只在这次调用期间有效，需要保留时自己复制。
+         * 默认复制成byte[]后调用{@link #onReceiveData(byte[])}，覆盖这个方法可以避免每个消息一次分配
+         */
+        default void onReceiveData(ByteBuffer data) {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            onReceiveData(copy);
+        }
+
+        /**
+         * {@link #sendWithResult}的结果，status见{@link PushServer#RESULT_DELIVERED}等
+         */
+        default void onPushResult(int tag, byte status) {
+        }
+
+        /**
+         * {@link #broadcast}的进度，写完之前每隔一段时间报告一次，最后一次done为true
+         *
+         * @param delivered 本节点上已经写给了多少个连接
+         * @param nodes     集群模式下转发到的其他节点数
+         */
+        default void onBroadcastProgress(int tag, int delivered, int nodes, boolean done) {
+        }
+
+        /**
+         * v2协议下{@link #getIp()}的结果，旧协议下ip通过{@link #onReceiveData}返回
+         */
+        default void onReceiveIp(String ip) {
+        }
+
+        /**
+         * v2协议下{@link #getStats()}的结果，格式见{@link Metrics#write}，旧协议下通过{@link #onReceiveData}返回
+         */
+        default void onReceiveStats(byte[] snapshot) {
+        }
+
+        /**
+         * 收到分片推送（见{@link PushServer#CHUNK_LAST}）的一片时调用，chunk是只读的，只在这次调用期间有效。
+         * 返回true表示自己处理分片，比如直接写到文件；返回false时由PushClient重组，收完后通过{@link #onReceiveData(ByteBuffer)}交给回调。
+         * 同一个stream的每一片应该返回同样的值。
+         *
+         * @param stream 发送者的连接编号和它指定的stream拼成的标识
+         * @param index  从0开始，不连续说明中间有分片丢了
+         */
+        default boolean onReceiveChunk(long stream, int index, boolean last, ByteBuffer chunk) {
+            return false;
+        }
     }
 
-    private final byte[] BIND_ECHO = UUID.randomUUID().toString().getBytes();
-    private State state;
+    /**
+     * 收到这么多推送或者距离上次确认超过ACK_INTERVAL毫秒时发送一次累计确认
+     */
+    private static final int ACK_BATCH = 32;
+    private static final long ACK_INTERVAL = 200;
+    /**
+     * 连续这么多个心跳间隔没有收到任何消息就认为连接已经断开
+     */
+    private static final int HEARTBEAT_MISSES = 3;
+    /**
+     * 异步发送队列中最多积压的字节数，超过后新的消息直接失败
+     */
+    private static final int MAX_QUEUED_BYTES = 1 << 20;
+    /**
+     * 一次gathering write最多包含的消息数
+     */
+    private static final int MAX_BATCH = 64;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /**
+     * 分片消息的头：[len][22][id][stream][index][flags]
+     */
+    private static final int CHUNK_HEADER = 18;
+    /**
+     * 同一个进程中所有客户端共用的重连预算，每秒最多发起这么多次连接，0表示不限制
+     */
+    private static int attemptsPerSecond = 0;
+    private static long nextAttempt = 0;
+    /**
+     * 所有客户端共用的定时器，只负责到时间把任务交给客户端自己的{@link #writer}，不做I/O
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PushClient-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ByteBuffer BIND_ECHO = ByteBuffer.wrap(UUID.randomUUID().toString().getBytes()).asReadOnlyBuffer();
+    private final AtomicInteger nextTag = new AtomicInteger();
+    private boolean legacy = false;
+    private boolean compression = false;
+    /**
+     * 解压用的缓冲区，协商了压缩时才分配，只在接收线程上使用
+     */
+    private Inflater inflater;
+    private byte[] compressed;
+    private byte[] inflated;
+    private ByteBuffer inflatedView;
+    private int features = 0;
+    /**
+     * 收到的最后一个推送的seq，只在接收线程上写
+     */
+    private volatile int receivedSeq = 0;
+    private int ackedSeq = 0;
+    private ScheduledFuture<?> ackTask;
+    private long heartbeatInterval = 0;
+    private ScheduledFuture<?> heartbeatTask;
+    /**
+     * 最后一次收到消息的时间，System.nanoTime()
+     */
+    private volatile long lastReceived;
+    private volatile State state;
     private final Callback callback;
     private final String host;
     private final int port;
-    private SocketChannel channel;
+    private volatile SocketChannel channel;
     private ByteBuffer sendBuffer;
+    /**
+     * 异步发送：调用者只把消息放进无锁队列，积压到batchBytes或者等了linger之后，由一个线程把队列中的多条消息合并成一次写
+     */
+    private final Queue<Queued> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * 这个客户端的写线程：异步发送的合并写、累计确认和心跳都在这里写，调用sendAsync的线程、接收线程和{@link #TIMER}都不会阻塞在写上，
+     * 一个写不动的连接只卡住它自己。空闲一段时间后线程退出，有任务时再创建
+     */
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "PushClient-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * 已经交给{@link #writer}还没开始执行的任务，同一种任务只排队一个，写线程卡住时队列不会变长
+     */
+    private final AtomicBoolean drainPending = new AtomicBoolean();
+    private final AtomicBoolean ackPending = new AtomicBoolean();
+    private final AtomicBoolean heartbeatPending = new AtomicBoolean();
+    /**
+     * 同一时间只有一个线程在写队列中的消息，{@link #gather}和{@link #batch}只由它使用
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_BATCH * 2];
+    private final Queued[] batch = new Queued[MAX_BATCH];
+    private int batchBytes = 16 * 1024;
+    private long lingerMicros = 1000;
+    private boolean reconnect = false;
+    private long minBackoff;
+    private long maxBackoff;
+    private int maxAttempts;
+    /**
+     * 最后一次bind的id，重连后自动重新绑定
+     */
+    private volatile int boundId = 0;
+    /**
+     * 这个连接上已经发过bind，服务器不接受同一个连接的第二次bind
+     */
+    private boolean bindSent;
+    private volatile boolean closed = false;
+    private final AtomicInteger nextStream = new AtomicInteger();
+    private int maxStreamSize = 16 * 1024 * 1024;
+    /**
+     * 正在重组的分片推送，只在接收线程上使用
+     */
+    private final Reassembler streams = new Reassembler();
 
     public PushClient(String host, int port, Callback callback) {
         state = State.INIT;
         this.callback = callback;
         this.host = host;
         this.port = port;
+        writer.allowCoreThreadTimeOut(true);
     }
 
     public State getPushState() {
         return state;
     }
 
+    /**
+     * 使用旧协议：没有bind确认（用echo模拟）、推送没有seq也不需要确认，用于连接旧的服务端。需要在start之前调用。
+     */
+    public void useLegacyProtocol() {
+        legacy = true;
+    }
+
+    /**
+     * 请求服务端压缩推送（{@link PushServer#FEATURE_DEFLATE}），收到后在接收线程上解压，回调拿到的仍然是原始内容。
+     * 旧协议下没有效果。需要在start之前调用。
+     */
+    public void useCompression() {
+        compression = true;
+    }
+
+    /**
+     * 重组分片推送时一条推送的最大字节数，超过的推送被丢弃，默认16MB。需要在start之前调用。
+     */
+    public void setMaxStreamSize(int bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("bytes < 1");
+        maxStreamSize = bytes;
+    }
+
+    /**
+     * 每隔interval发送一次心跳，并让服务端在{@link #HEARTBEAT_MISSES}个间隔内没有收到消息时断开这个连接；
+     * 同样，客户端这么久没有收到任何消息（包括心跳回复）就断开，状态变为ERROR。需要在start之前调用。
+     */
+    public void setHeartbeat(long interval, TimeUnit unit) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval <= 0");
+        heartbeatInterval = unit.toMillis(interval);
+    }
+
+    /**
+     * 异步发送的合并参数，需要在start之前调用
+     *
+     * @param batchBytes 队列中积压到这么多字节时立即写出
+     * @param linger     没有积压到batchBytes时，第一条消息最多等这么久就写出，为0时每条消息都立即写出
+     */
+    public void setSendBatching(int batchBytes, long linger, TimeUnit unit) {
+        if (batchBytes < 1 || linger < 0)
+            throw new IllegalArgumentException("batchBytes < 1 or linger < 0");
+        this.batchBytes = batchBytes;
+        this.lingerMicros = unit.toMicros(linger);
+    }
+
+    /**
+     * 连接断开（包括第一次连接失败）后自动重连，状态变为RECONNECTING，重连成功后重新绑定最后一次bind的id，
+     * 期间发送的推送暂存在发送队列中（和异步发送共用{@link #MAX_QUEUED_BYTES}的上限），重连后写出。
+     * 第n次重连前等待[d/2, d]之间的随机时间，d = min(maxDelay, initialDelay * 2^(n-1))，避免服务端重启后所有客户端同时重连。
+     * 被同一个id的其他连接挤掉时也会重连并重新绑定，同一个id不要在多个开启了重连的客户端上绑定。需要在start之前调用。
+     *
+     * @param maxAttempts 连续这么多次连接失败后放弃，状态变为ERROR，0表示一直重试
+     */
+    public void setReconnect(long initialDelay, long maxDelay, TimeUnit unit, int maxAttempts) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || maxAttempts < 0)
+            throw new IllegalArgumentException("initialDelay <= 0 or maxDelay < initialDelay or maxAttempts < 0");
+        reconnect = true;
+        minBackoff = unit.toMillis(initialDelay);
+        maxBackoff = unit.toMillis(maxDelay);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * 同一个进程中所有客户端的重连共用的预算，超过时排队等待，大量客户端的重连会被均匀地分散开
+     *
+     * @param perSecond 每秒最多发起的连接数，0表示不限制
+     */
+    public static void setReconnectBudget(int perSecond) {
+        if (perSecond < 0)
+            throw new IllegalArgumentException("perSecond < 0");
+        synchronized (PushClient.class) {
+            attemptsPerSecond = perSecond;
+        }
+    }
+
+    /**
+     * 从预算中预约一次连接
+     *
+     * @return 需要等待的毫秒数
+     */
+    private static long reserveAttempt() {
+        synchronized (PushClient.class) {
+            if (attemptsPerSecond == 0)
+                return 0;
+            long now = System.nanoTime();
+            long slot = Math.max(now, nextAttempt);
+            nextAttempt = slot + TimeUnit.SECONDS.toNanos(1) / attemptsPerSecond;
+            return TimeUnit.NANOSECONDS.toMillis(slot - now);
+        }
+    }
+
+    /**
+     * 断开连接并停止重连，状态变为ERROR
+     */
+    public void close() {
+        closed = true;
+        interrupt();
+        SocketChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
     private void setState(State state) {
         this.state = state;
         callback.onStateChange(state);
@@ -58,9 +334,27 @@ public class PushClient extends Thread {
         }
     }
 
+    /**
+     * 查询服务端的统计数据，只有从服务端本机连接时才会回复，否则服务端会断开连接
+     */
+    public synchronized void getStats() {
+        if (state != State.CONNECTED && state != State.BIND)
+            return;
+        sendBuffer.limit(5).position(0);
+        sendBuffer.putInt(5);
+        sendBuffer.put((byte) 14);
+        sendBuffer.position(0);
+        try {
+            channel.write(sendBuffer);
+        } catch (IOException ignore) {
+        }
+    }
+
     public synchronized void bind(int id) {
-        if (state != State.CONNECTED || id <= 0)
+        if (state != State.CONNECTED || id <= 0 || bindSent)
             return;
+        bindSent = true;
+        boundId = id;
         sendBuffer.limit(9).position(0);
         sendBuffer.putInt(9);
         sendBuffer.put((byte) 1);
@@ -71,12 +365,16 @@ public class PushClient extends Thread {
         } catch (IOException ignore) {
             return;
         }
+        if ((features & PushServer.FEATURE_V2) != 0) {
+            //等bind ack
+            return;
+        }
 
         //echo
-        sendBuffer.limit(BIND_ECHO.length + 5).position(0);
-        sendBuffer.putInt(BIND_ECHO.length + 5);
+        sendBuffer.limit(BIND_ECHO.capacity() + 5).position(0);
+        sendBuffer.putInt(BIND_ECHO.capacity() + 5);
         sendBuffer.put((byte) 0);
-        sendBuffer.put(BIND_ECHO);
+        sendBuffer.put(BIND_ECHO.duplicate());
         sendBuffer.position(0);
         try {
             channel.write(sendBuffer);
@@ -88,46 +386,496 @@ public class PushClient extends Thread {
         return send(ids, data, 0, data.length);
     }
 
-    public synchronized int send(int[] ids, byte[] data, int offset, int length) {
-        if (state != State.CONNECTED && state != State.BIND)
+    public int send(int[] ids, byte[] data, int offset, int length) {
+        return send(ids, data, offset, length, false);
+    }
+
+    /**
+     * @param urgent 高优先级，服务端写不过来时先写，见{@link PushServer#PRIORITY}，旧协议下忽略
+     */
+    public synchronized int send(int[] ids, byte[] data, int offset, int length, boolean urgent) {
+        if (!canSend())
             return -1;
         if (ids.length == 1) {
-            return send(ids[0], data, offset, length);
+            return send(ids[0], data, offset, length, urgent);
         }
         int len = 9 + ids.length * 4 + length;
         if (len > sendBuffer.capacity() || data.length < offset + length)
             return -1;
         sendBuffer.limit(len).position(0);
         sendBuffer.putInt(len);
-        sendBuffer.put((byte) 3);
+        sendBuffer.put(cmd((byte) 3, urgent));
         sendBuffer.putInt(ids.length);
         for (int id : ids)
             sendBuffer.putInt(id);
         sendBuffer.put(data, offset, length);
         sendBuffer.position(0);
+        return writeFrame();
+    }
+
+    public int send(int id, byte[] data) {
+        return send(id, data, 0, data.length);
+    }
+
+    public int send(int id, byte[] data, int offset, int length) {
+        return send(id, data, offset, length, false);
+    }
+
+    /**
+     * @param urgent 同{@link #send(int[], byte[], int, int, boolean)}
+     */
+    public synchronized int send(int id, byte[] data, int offset, int length, boolean urgent) {
+        if (!canSend())
+            return -1;
+        int len = length + 9;
+        if (len > sendBuffer.capacity() || data.length < offset + length)
+            return -1;
+        sendBuffer.limit(len).position(0);
+        sendBuffer.putInt(len);
+        sendBuffer.put(cmd((byte) 2, urgent));
+        sendBuffer.putInt(id);
+        sendBuffer.put(data, offset, length);
+        sendBuffer.position(0);
+        return writeFrame();
+    }
+
+    private byte cmd(byte cmd, boolean urgent) {
+        return urgent && (features & PushServer.FEATURE_V2) != 0 ? (byte) (cmd | PushServer.PRIORITY) : cmd;
+    }
+
+    public CompletableFuture<Integer> sendAsync(int id, byte[] data) {
+        return sendAsync(id, data, 0, data.length);
+    }
+
+    /**
+     * 不阻塞的单推，消息和其他线程的异步发送合并成一次写，见{@link #setSendBatching}。
+     * 重连期间的消息在重连成功后写出。data在返回的future完成之前不能修改。
+     *
+     * @return 写出后完成，结果是写出的字节数，没有连接、消息太长、积压太多或者连接断开时结果是-1
+     */
+    public CompletableFuture<Integer> sendAsync(int id, byte[] data, int offset, int length) {
+        return enqueue((byte) 2, id, null, data, offset, length);
+    }
+
+    public CompletableFuture<Integer> sendAsync(int[] ids, byte[] data) {
+        return sendAsync(ids, data, 0, data.length);
+    }
+
+    /**
+     * 不阻塞的多推，同{@link #sendAsync(int, byte[], int, int)}
+     */
+    public CompletableFuture<Integer> sendAsync(int[] ids, byte[] data, int offset, int length) {
+        if (ids.length == 1)
+            return sendAsync(ids[0], data, offset, length);
+        return enqueue((byte) 3, ids.length, ids, data, offset, length);
+    }
+
+    public CompletableFuture<Integer> publishAsync(int groupId, byte[] data) {
+        return enqueue((byte) 9, groupId, null, data, 0, data.length);
+    }
+
+    /**
+     * 立即写出异步发送队列中的消息，不等linger。在调用的线程上写，会阻塞到写完
+     */
+    public void flush() {
+        drain();
+    }
+
+    private CompletableFuture<Integer> enqueue(byte cmd, int arg, int[] ids, byte[] data, int offset, int length) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        int headerSize = 9 + (ids == null ? 0 : ids.length * 4);
+        int len = headerSize + length;
+        if (!canSend() || len > sendBuffer.capacity() || data.length < offset + length) {
+            future.complete(-1);
+            return future;
+        }
+        int queued = queuedBytes.addAndGet(len);
+        if (queued > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-len);
+            future.complete(-1);
+            return future;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(len);
+        header.put(cmd);
+        header.putInt(arg);
+        if (ids != null) {
+            for (int id : ids)
+                header.putInt(id);
+        }
+        header.flip();
+        queue.offer(new Queued(header, ByteBuffer.wrap(data, offset, length), future));
+        if (state == State.ERROR) {
+            //接收线程可能已经清空过队列
+            failQueued();
+        } else if (queued >= batchBytes || lingerMicros == 0) {
+            onWriter(drainPending, this::drain);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            TIMER.schedule(() -> {
+                flushScheduled.set(false);
+                onWriter(drainPending, this::drain);
+            }, lingerMicros, TimeUnit.MICROSECONDS);
+        }
+        return future;
+    }
+
+    private void onWriter(AtomicBoolean pending, Runnable task) {
+        if (pending.compareAndSet(false, true)) {
+            writer.execute(() -> {
+                pending.set(false);
+                task.run();
+            });
+        }
+    }
+
+    /**
+     * 抢到写的权利的线程把队列写空，没抢到的直接返回，它放进队列的消息由正在写的线程写出。
+     * 释放之后再检查一次队列，避免刚放进来的消息没人写
+     */
+    private void drain() {
+        while (!queue.isEmpty() && (state == State.CONNECTED || state == State.BIND) && writing.compareAndSet(false, true)) {
+            try {
+                Queued q;
+                int count;
+                do {
+                    count = 0;
+                    while (count < MAX_BATCH && (q = queue.poll()) != null) {
+                        gather[count * 2] = q.header;
+                        gather[count * 2 + 1] = q.body;
+                        batch[count++] = q;
+                    }
+                    write(count);
+                } while (count > 0);
+            } finally {
+                writing.set(false);
+            }
+        }
+    }
+
+    private void write(int count) {
+        if (count == 0)
+            return;
+        boolean ok = true;
         try {
-            return channel.write(sendBuffer);
+            long remaining = 0;
+            for (int i = 0; i < count; ++i) {
+                remaining += batch[i].length();
+            }
+            //和同步发送持有同一个锁，部分写的时候同步发送的消息不会插进来
+            synchronized (this) {
+                while (remaining > 0) {
+                    remaining -= channel.write(gather, 0, count * 2);
+                }
+            }
         } catch (IOException e) {
-            return -1;
+            ok = false;
+            //接收线程会收到异常，状态变为ERROR
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            Queued q = batch[i];
+            int len = q.size;
+            queuedBytes.addAndGet(-len);
+            batch[i] = null;
+            gather[i * 2] = gather[i * 2 + 1] = null;
+            if (q.future != null)
+                q.future.complete(ok ? len : -1);
         }
     }
 
-    public int send(int id, byte[] data) {
-        return send(id, data, 0, data.length);
+    /**
+     * 连接断开后队列中剩下的消息都失败
+     */
+    private void failQueued() {
+        Queued q;
+        while ((q = queue.poll()) != null) {
+            queuedBytes.addAndGet(-q.size);
+            if (q.future != null)
+                q.future.complete(-1);
+        }
+    }
+
+    /**
+     * 异步发送队列中的一条消息，future为null的是重连期间暂存的同步发送
+     */
+    private static class Queued {
+        private final ByteBuffer header;
+        private final ByteBuffer body;
+        private final CompletableFuture<Integer> future;
+        private final int size;
+
+        private Queued(ByteBuffer header, ByteBuffer body, CompletableFuture<Integer> future) {
+            this.header = header;
+            this.body = body;
+            this.future = future;
+            this.size = header.remaining() + body.remaining();
+        }
+
+        private int length() {
+            return header.remaining() + body.remaining();
+        }
+    }
+
+    /**
+     * 加入时分组不存在会自动创建，不需要等这个命令先到；不同连接发出的命令在服务端没有先后顺序
+     */
+    public void createGroup(int groupId) {
+        groupCommand((byte) 6, groupId, new int[0]);
+    }
+
+    public void deleteGroup(int groupId) {
+        groupCommand((byte) 10, groupId, new int[0]);
+    }
+
+    /**
+     * 把自己（已绑定的id）加入分组，需要先bind。分组不存在时创建。
+     * 服务端不确认加入，其他连接在这之后发布的消息不保证能收到，需要的话由应用层通知发布者
+     */
+    public void joinGroup(int groupId) {
+        if (state != State.BIND)
+            return;
+        groupCommand((byte) 7, groupId, new int[0]);
+    }
+
+    public void joinGroup(int groupId, int[] ids) {
+        if (ids.length > 0)
+            groupCommand((byte) 7, groupId, ids);
+    }
+
+    public void leaveGroup(int groupId) {
+        if (state != State.BIND)
+            return;
+        groupCommand((byte) 8, groupId, new int[0]);
     }
 
-    public synchronized int send(int id, byte[] data, int offset, int length) {
+    public void leaveGroup(int groupId, int[] ids) {
+        if (ids.length > 0)
+            groupCommand((byte) 8, groupId, ids);
+    }
+
+    private synchronized void groupCommand(byte cmd, int groupId, int[] ids) {
         if (state != State.CONNECTED && state != State.BIND)
+            return;
+        int len = 9 + ids.length * 4;
+        if (len > sendBuffer.capacity())
+            return;
+        sendBuffer.limit(len).position(0);
+        sendBuffer.putInt(len);
+        sendBuffer.put(cmd);
+        sendBuffer.putInt(groupId);
+        for (int id : ids)
+            sendBuffer.putInt(id);
+        sendBuffer.position(0);
+        try {
+            channel.write(sendBuffer);
+        } catch (IOException ignore) {
+        }
+    }
+
+    public int publish(int groupId, byte[] data) {
+        return publish(groupId, data, 0, data.length);
+    }
+
+    public synchronized int publish(int groupId, byte[] data, int offset, int length) {
+        if (!canSend())
             return -1;
         int len = length + 9;
         if (len > sendBuffer.capacity() || data.length < offset + length)
             return -1;
         sendBuffer.limit(len).position(0);
         sendBuffer.putInt(len);
-        sendBuffer.put((byte) 2);
+        sendBuffer.put((byte) 9);
+        sendBuffer.putInt(groupId);
+        sendBuffer.put(data, offset, length);
+        sendBuffer.position(0);
+        return writeFrame();
+    }
+
+    /**
+     * 推送超过maxMessageSize的data，分片发送，需要v2协议
+     *
+     * @return data的长度，失败返回-1
+     */
+    public int sendLarge(int id, byte[] data) {
+        try (OutputStream out = openStream(id)) {
+            out.write(data);
+        } catch (IOException e) {
+            return -1;
+        }
+        return data.length;
+    }
+
+    /**
+     * 以流的方式推送给id，写满一片就发出去，close时发出最后一片。分片之间可以穿插其他发送。需要v2协议
+     *
+     * @throws IOException 没有连接或者不是v2协议
+     */
+    public OutputStream openStream(int id) throws IOException {
+        if ((state != State.CONNECTED && state != State.BIND) || (features & PushServer.FEATURE_V2) == 0)
+            throw new IOException("not connected or not v2");
+        return new ChunkStream(id, sendBuffer.capacity() - CHUNK_HEADER);
+    }
+
+    private synchronized void chunk(int id, int stream, int index, boolean last, byte[] data, int length) throws IOException {
+        if (state != State.CONNECTED && state != State.BIND)
+            throw new IOException("not connected");
+        int len = CHUNK_HEADER + length;
+        if (len > sendBuffer.capacity())
+            throw new IOException("chunk too large");
+        sendBuffer.limit(len).position(0);
+        sendBuffer.putInt(len);
+        sendBuffer.put((byte) 22);
+        sendBuffer.putInt(id);
+        sendBuffer.putInt(stream);
+        sendBuffer.putInt(index);
+        sendBuffer.put(last ? PushServer.CHUNK_LAST : 0);
+        sendBuffer.put(data, 0, length);
+        sendBuffer.position(0);
+        channel.write(sendBuffer);
+    }
+
+    private class ChunkStream extends OutputStream {
+        private final int id;
+        private final int stream = nextStream.incrementAndGet();
+        private final byte[] buffer;
+        private int count = 0;
+        private int index = 0;
+        private boolean finished = false;
+
+        private ChunkStream(int id, int chunkSize) {
+            this.id = id;
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (finished)
+                throw new IOException("closed");
+            if (count == buffer.length)
+                send(false);
+            buffer[count++] = (byte) b;
+        }
+
+        /**
+         * 满了之后等到有更多数据时才发，保证最后一片不是空的
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished)
+                throw new IOException("closed");
+            while (len > 0) {
+                if (count == buffer.length)
+                    send(false);
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                finished = true;
+                send(true);
+            }
+        }
+
+        private void send(boolean last) throws IOException {
+            chunk(id, stream, index++, last, buffer, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * 在接收线程上调用，分片不连续或者太大时丢弃整条推送
+     */
+    private void reassemble(long stream, int index, boolean last, ByteBuffer chunk) {
+        ByteBuffer data = streams.add(stream, index, last, chunk, maxStreamSize);
+        if (data != null)
+            callback.onReceiveData(data.asReadOnlyBuffer());
+    }
+
+    public int sendWithResult(int id, byte[] data) {
+        return sendWithResult(id, data, 0, data.length);
+    }
+
+    /**
+     * 单推并在{@link Callback#onPushResult}中得到结果，需要v2协议
+     *
+     * @return 这次推送的tag，失败返回-1
+     */
+    public synchronized int sendWithResult(int id, byte[] data, int offset, int length) {
+        if (!canSend() || (features & PushServer.FEATURE_V2) == 0)
+            return -1;
+        int len = length + 13;
+        if (len > sendBuffer.capacity() || data.length < offset + length)
+            return -1;
+        int tag = nextTag.incrementAndGet() & Integer.MAX_VALUE;
+        sendBuffer.limit(len).position(0);
+        sendBuffer.putInt(len);
+        sendBuffer.put((byte) 12);
+        sendBuffer.putInt(tag);
         sendBuffer.putInt(id);
         sendBuffer.put(data, offset, length);
         sendBuffer.position(0);
+        return writeFrame() < 0 ? -1 : tag;
+    }
+
+    public int broadcast(byte[] data) {
+        return broadcast(data, 0, data.length);
+    }
+
+    /**
+     * 推送给服务端上所有绑定了id的连接，进度在{@link Callback#onBroadcastProgress}中报告，需要v2协议
+     *
+     * @return 这次广播的tag，失败返回-1
+     */
+    public synchronized int broadcast(byte[] data, int offset, int length) {
+        if (!canSend() || (features & PushServer.FEATURE_V2) == 0)
+            return -1;
+        int len = length + 9;
+        if (len > sendBuffer.capacity() || data.length < offset + length)
+            return -1;
+        int tag = nextTag.incrementAndGet() & Integer.MAX_VALUE;
+        sendBuffer.limit(len).position(0);
+        sendBuffer.putInt(len);
+        sendBuffer.put((byte) 21);
+        sendBuffer.putInt(tag);
+        sendBuffer.put(data, offset, length);
+        sendBuffer.position(0);
+        return writeFrame() < 0 ? -1 : tag;
+    }
+
+    /**
+     * 推送类的消息在重连期间也可以发送，会暂存起来
+     */
+    private boolean canSend() {
+        State state = this.state;
+        return state == State.CONNECTED || state == State.BIND || (state == State.RECONNECTING && sendBuffer != null);
+    }
+
+    /**
+     * 写出sendBuffer中的一个消息，重连期间复制到发送队列，重连后和异步发送的消息一起写出
+     *
+     * @return 写出或者暂存的字节数，失败返回-1
+     */
+    private int writeFrame() {
+        if (state == State.RECONNECTING) {
+            int len = sendBuffer.remaining();
+            if (queuedBytes.addAndGet(len) > MAX_QUEUED_BYTES) {
+                queuedBytes.addAndGet(-len);
+                return -1;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(len);
+            copy.put(sendBuffer).flip();
+            queue.offer(new Queued(copy, EMPTY, null));
+            return len;
+        }
         try {
             return channel.write(sendBuffer);
         } catch (IOException e) {
@@ -135,62 +883,279 @@ public class PushClient extends Thread {
         }
     }
 
+    /**
+     * 在{@link #TIMER}上运行，不拿锁，写线程卡住时也能发现连接已经断开
+     */
+    private void heartbeat() {
+        if (System.nanoTime() - lastReceived > TimeUnit.MILLISECONDS.toNanos(heartbeatInterval * HEARTBEAT_MISSES)) {
+            //阻塞在read上的接收线程和阻塞在write上的写线程都会收到异常
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            return;
+        }
+        onWriter(heartbeatPending, this::writeHeartbeat);
+    }
+
+    private synchronized void writeHeartbeat() {
+        if (state != State.CONNECTED && state != State.BIND)
+            return;
+        int seconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(heartbeatInterval * HEARTBEAT_MISSES + 999));
+        sendBuffer.limit(9).position(0);
+        sendBuffer.putInt(9);
+        sendBuffer.put((byte) 13);
+        sendBuffer.putInt(seconds);
+        sendBuffer.position(0);
+        try {
+            channel.write(sendBuffer);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private synchronized void ack() {
+        int seq = receivedSeq;
+        if (seq == ackedSeq || (state != State.CONNECTED && state != State.BIND))
+            return;
+        sendBuffer.limit(9).position(0);
+        sendBuffer.putInt(9);
+        sendBuffer.put((byte) 11);
+        sendBuffer.putInt(seq);
+        sendBuffer.position(0);
+        try {
+            channel.write(sendBuffer);
+            ackedSeq = seq;
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * @return 解压后内容的只读视图，下一次解压时失效
+     */
+    private ByteBuffer inflate(ByteBuffer buffer) throws IOException {
+        int len = buffer.remaining();
+        if (inflater == null || len > compressed.length)
+            throw new IOException("unexpected compressed push");
+        buffer.get(compressed, 0, len);
+        inflater.reset();
+        inflater.setInput(compressed, 0, len);
+        int size;
+        try {
+            size = inflater.inflate(inflated);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        if (!inflater.finished())
+            throw new IOException("compressed push too large");
+        inflatedView.limit(size).position(0);
+        return inflatedView;
+    }
+
+    /**
+     * v2协议下处理一个消息，buffer的position在类型之后
+     */
+    private void dispatch(byte type, ByteBuffer buffer) throws IOException {
+        switch (type) {
+            case 1://bind ack
+                synchronized (this) {
+                    receivedSeq = 0;
+                    ackedSeq = 0;
+                }
+                setState(State.BIND);
+                break;
+            case 2://push
+            case 20://compressed push
+                int seq = buffer.getInt();
+                callback.onReceiveData(type == 2 ? buffer : inflate(buffer));
+                receivedSeq = seq;
+                if (seq - ackedSeq >= ACK_BATCH)
+                    onWriter(ackPending, this::ack);
+                break;
+            case 5://ip
+                byte[] ip = new byte[buffer.remaining()];
+                buffer.get(ip);
+                callback.onReceiveIp(new String(ip));
+                break;
+            case 12://push result
+                callback.onPushResult(buffer.getInt(), buffer.get());
+                break;
+            case 14://stats
+                byte[] snapshot = new byte[buffer.remaining()];
+                buffer.get(snapshot);
+                callback.onReceiveStats(snapshot);
+                break;
+            case 21://broadcast progress [tag][delivered][nodes][flags]
+                callback.onBroadcastProgress(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                        (buffer.get() & PushServer.BROADCAST_DONE) != 0);
+                break;
+            case 22://stream chunk [source][stream][index][flags]
+                long stream = ((long) buffer.getInt() << 32) | (buffer.getInt() & 0xffffffffL);
+                int index = buffer.getInt();
+                boolean last = (buffer.get() & PushServer.CHUNK_LAST) != 0;
+                if (!callback.onReceiveChunk(stream, index, last, buffer))
+                    reassemble(stream, index, last, buffer);
+                break;
+            default://echo, heartbeat and unknown
+                break;
+        }
+    }
+
     @Override
     public void run() {
-        try {
-            channel = SocketChannel.open();
-            channel.configureBlocking(true);
-            channel.connect(new InetSocketAddress(host, port));
-            int size = getBufferSize();
-            ByteBuffer buffer = ByteBuffer.allocate(size);
-            sendBuffer = ByteBuffer.allocate(size);
-            setState(State.CONNECTED);
-            for (; ; ) {
-                buffer.limit(4).position(0);
-                while (buffer.position() < 4) {
-                    if (channel.read(buffer) < 0)
-                        throw new IOException();
+        int failures = 0;
+        while (!closed) {
+            try {
+                open();
+                int size = getBufferSize();
+                //一次读尽量多的数据，至少能在半个消息后面再放下一个完整的消息
+                ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(64 * 1024, 2 * size));
+                //交给回调的只读视图，和buffer共用内容，每个消息只移动它的position和limit
+                ByteBuffer view = buffer.asReadOnlyBuffer();
+                synchronized (this) {
+                    if (sendBuffer == null || sendBuffer.capacity() != size)
+                        sendBuffer = ByteBuffer.allocate(size);
+                    receivedSeq = 0;
+                    ackedSeq = 0;
+                    bindSent = false;
                 }
-                int len = buffer.getInt(0);
-                System.out.println("len:"+len);
-                if (len > size) {
-                    throw new IOException();
+                failures = 0;
+                lastReceived = System.nanoTime();
+                //回调里或者其他线程在CONNECTED之后已经bind的话，bind会跳过这次重新绑定
+                int rebind = boundId;
+                setState(State.CONNECTED);
+                boolean v2 = (features & PushServer.FEATURE_V2) != 0;
+                if ((features & PushServer.FEATURE_DEFLATE) != 0 && (inflated == null || inflated.length != size)) {
+                    if (inflater == null)
+                        inflater = new Inflater();
+                    compressed = new byte[size];
+                    inflated = new byte[size];
+                    inflatedView = ByteBuffer.wrap(inflated).asReadOnlyBuffer();
                 }
-                buffer.limit(len).position(4);
-                while (buffer.position() < len) {
+                if (v2) {
+                    ackTask = TIMER.scheduleWithFixedDelay(() -> onWriter(ackPending, this::ack), ACK_INTERVAL, ACK_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                if (heartbeatInterval > 0) {
+                    heartbeatTask = TIMER.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+                }
+                if (rebind != 0) {
+                    bind(rebind);
+                }
+                //重连期间暂存的消息
+                onWriter(drainPending, this::drain);
+                for (; ; ) {
                     if (channel.read(buffer) < 0)
                         throw new IOException();
+                    lastReceived = System.nanoTime();
+                    buffer.flip();
+                    while (buffer.remaining() >= 4) {
+                        int start = buffer.position();
+                        int len = buffer.getInt(start);
+                        if (len > size || len < (v2 ? 5 : 4)) {
+                            throw new IOException();
+                        }
+                        if (buffer.remaining() < len) {
+                            break;//wait more data
+                        }
+                        buffer.position(start + len);
+                        view.limit(start + len).position(start + 4);
+                        if (v2) {
+                            dispatch(view.get(), view);
+                        } else if (!view.hasRemaining()) {
+                            //旧协议下的心跳回复
+                        } else if (state == State.CONNECTED && view.equals(BIND_ECHO)) {
+                            setState(State.BIND);
+                        } else {
+                            callback.onReceiveData(view);
+                        }
+                    }
+                    buffer.compact();
                 }
-                buffer.position(4);
-                byte[] data = new byte[buffer.remaining()];
-                buffer.get(data);
-                if (Arrays.equals(BIND_ECHO, data)) {
-                    setState(State.BIND);
-                } else {
-                    callback.onReceiveData(data);
+            } catch (IOException e) {
+                if (ackTask != null)
+                    ackTask.cancel(false);
+                if (heartbeatTask != null)
+                    heartbeatTask.cancel(false);
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
                 }
             }
-        } catch (IOException e) {
-            setState(State.ERROR);
+            ++failures;
+            if (closed || !reconnect || (maxAttempts > 0 && failures > maxAttempts))
+                break;
+            if (state != State.RECONNECTING)
+                setState(State.RECONNECTING);
+            long delay = Math.min(maxBackoff, minBackoff << Math.min(failures - 1, 30));
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
             try {
-                channel.close();
-            } catch (IOException ignore) {
+                TimeUnit.MILLISECONDS.sleep(delay + reserveAttempt());
+            } catch (InterruptedException e) {
+                break;
             }
         }
+        setState(State.ERROR);
+        failQueued();
+        if (inflater != null)
+            inflater.end();
+    }
+
+    private void open() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(true);
+        channel.connect(new InetSocketAddress(host, port));
     }
 
+    /**
+     * 同时协商协议特性。旧的服务端收到带特性的请求会断开连接，这时换旧协议重连一次，
+     * 所以不调用{@link #useLegacyProtocol()}也能连接旧的服务端，只是每次连接要多建立一次TCP连接。
+     */
     private int getBufferSize() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(8);
-        buffer.putInt(5);
-        buffer.put((byte) 4);
-        buffer.limit(5).position(0);
+        int size = getBufferSize(legacy);
+        if (size < 0 && !legacy) {
+            channel.close();
+            open();
+            size = getBufferSize(true);
+        }
+        if (size < 0)
+            throw new IOException();
+        return size;
+    }
+
+    /**
+     * 旧协议的回复是[8][size]，带特性的回复是[12][size][features]
+     *
+     * @return 服务端没有回复就断开了连接时返回-1
+     */
+    private int getBufferSize(boolean legacy) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        if (legacy) {
+            buffer.putInt(5);
+            buffer.put((byte) 4);
+        } else {
+            buffer.putInt(9);
+            buffer.put((byte) 4);
+            buffer.putInt(PushServer.FEATURE_V2 | (compression ? PushServer.FEATURE_DEFLATE : 0));
+        }
+        buffer.flip();
         channel.write(buffer);
-        buffer.limit(8).position(0);
-        while (buffer.position() < 8) {
-            channel.read(buffer);
+        int len = legacy ? 8 : 12;
+        buffer.limit(len).position(0);
+        while (buffer.position() < len) {
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                if (buffer.position() == 0)
+                    return -1;
+                throw new IOException();
+            }
         }
-        if (buffer.getInt(0) != 8)
+        if (buffer.getInt(0) != len)
             throw new IOException();
+        features = legacy ? 0 : buffer.getInt(8);
         return buffer.getInt(4);
     }
 }
@@ -0,0 +1,734 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 多路复用的客户端：很多个逻辑上的客户端（{@link Session}）共用少数几个selector线程，适合需要绑定大量id的后端服务，
+ * 比如机器人或者每个租户一个发送者。回调和状态与{@link PushClient}相同，只支持v2协议。
+ * <p>
+ * 和服务端的reactor一样：每个session在创建时固定分配给一个线程，所有读写都在这个线程上进行；
+ * 读缓冲区是线程共用的，session只在收到半个消息时才有自己的缓冲区；发送的消息先追加到session的发送缓冲区，
+ * 由它的线程用一次写发出去，缓冲区在第一次发送时才分配。空闲的session只占一个对象和一个连接。
+ */
+public class PushClientEngine {
+    /**
+     * 收到这么多推送或者距离上次确认超过ACK_INTERVAL毫秒时发送一次累计确认
+     */
+    private static final int ACK_BATCH = 32;
+    private static final long ACK_INTERVAL = 200;
+    /**
+     * 连续这么多个心跳间隔没有收到任何消息就认为连接已经断开
+     */
+    private static final int HEARTBEAT_MISSES = 3;
+    /**
+     * 每个session的发送缓冲区最多能放下多少个最大长度的消息，放不下时发送失败
+     */
+    private static final int OUTBOUND_FRAMES = 16;
+    /**
+     * 发完之后超过这个大小的发送缓冲区会被释放
+     */
+    private static final int KEEP_OUTBOUND = 4096;
+
+    private final Loop[] loops;
+    private int next = 0;
+    private long heartbeatInterval = 0;
+    private int maxStreamSize = 16 * 1024 * 1024;
+    private volatile boolean running = false;
+
+    /**
+     * @param threads selector线程数
+     */
+    public PushClientEngine(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1");
+        loops = new Loop[threads];
+    }
+
+    /**
+     * 同{@link PushClient#setHeartbeat}，对所有session生效。需要在start之前调用。
+     */
+    public void setHeartbeat(long interval, TimeUnit unit) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval <= 0");
+        heartbeatInterval = unit.toMillis(interval);
+    }
+
+    /**
+     * 同{@link PushClient#setMaxStreamSize}，对所有session生效。需要在start之前调用。
+     */
+    public void setMaxStreamSize(int bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("bytes < 1");
+        maxStreamSize = bytes;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        for (int i = 0; i < loops.length; ++i) {
+            loops[i] = new Loop(i);
+        }
+        running = true;
+        for (Loop loop : loops) {
+            new Thread(loop, "PushClientEngine-" + loop.index).start();
+        }
+    }
+
+    /**
+     * 断开所有session，它们的状态变为ERROR
+     */
+    public synchronized void shutdown() {
+        running = false;
+        for (Loop loop : loops) {
+            if (loop != null)
+                loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * 异步连接，连接并协商完成后状态变为CONNECTED，之后才能bind和发送
+     */
+    public Session connect(String host, int port, PushClient.Callback callback) {
+        Loop loop;
+        synchronized (this) {
+            if (!running)
+                throw new IllegalStateException("not started");
+            loop = loops[next];
+            next = (next + 1) % loops.length;
+        }
+        Session session = new Session(loop, callback);
+        loop.execute(() -> session.open(new InetSocketAddress(host, port)));
+        return session;
+    }
+
+    private class Loop implements Runnable, TimingWheel.Handler {
+        private final int index;
+        private final Selector selector;
+        private final TimingWheel wheel;
+        private long now;
+        /**
+         * 所有session共用的读缓冲区，至少能在半个消息后面再放下一个完整的消息
+         */
+        private ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        /**
+         * 交给{@link PushClient.Callback#onReceiveData(ByteBuffer)}的只读视图，和in共用内容
+         */
+        private ByteBuffer view = in.asReadOnlyBuffer();
+        /**
+         * 有没确认的推送的session，每ACK_INTERVAL毫秒统一确认一次
+         */
+        private ArrayList<Session> acks = new ArrayList<>();
+        private ArrayList<Session> sweeping = new ArrayList<>();
+        private long lastAck;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeup = new AtomicBoolean();
+
+        private Loop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.now = System.currentTimeMillis();
+            this.lastAck = now;
+            this.wheel = new TimingWheel(100, 512, now);
+        }
+
+        private void execute(Runnable task) {
+            tasks.offer(task);
+            if (wakeup.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(wheel.isEmpty() && acks.isEmpty() ? 0 : wheel.tickMillis());
+                } catch (IOException | ClosedSelectorException e) {
+                    break;
+                }
+                now = System.currentTimeMillis();
+                wakeup.set(false);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                wheel.advance(now, this);
+                if (now - lastAck >= ACK_INTERVAL) {
+                    lastAck = now;
+                    ArrayList<Session> t = acks;
+                    acks = sweeping;
+                    sweeping = t;
+                    for (Session session : sweeping) {
+                        session.ackQueued = false;
+                        session.ack();
+                    }
+                    sweeping.clear();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    Session session = (Session) key.attachment();
+                    if (key.isConnectable()) {
+                        session.finishConnect();
+                        continue;
+                    }
+                    if (key.isWritable() && !session.flush())
+                        continue;
+                    if (key.isReadable())
+                        read(session);
+                }
+                selector.selectedKeys().clear();
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).fail();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void onTimeout(TimingWheel.Timeout timeout) {
+            ((Session) timeout).heartbeat();
+        }
+
+        /**
+         * 和服务端一样：一次读尽量多的数据，处理其中所有完整的消息，剩下的半个消息复制到session自己的缓冲区
+         */
+        private void read(Session session) {
+            if (in.capacity() < 2 * session.size) {
+                in = ByteBuffer.allocateDirect(2 * session.size);
+                view = in.asReadOnlyBuffer();
+            }
+            in.clear();
+            if (session.partial != null) {
+                session.partial.flip();
+                in.put(session.partial);
+                session.partial = null;
+            }
+            int len;
+            try {
+                len = session.channel.read(in);
+            } catch (IOException e) {
+                len = -1;
+            }
+            if (len < 0) {
+                session.fail();
+                return;
+            }
+            session.lastReceived = now;
+            in.flip();
+            int end = in.limit();
+            int frame = 0;
+            while (in.remaining() >= 4) {
+                int start = in.position();
+                frame = in.getInt(start);
+                //协商前的回复是[12][size][features]，没有类型
+                if (frame > session.size || frame < (session.state == PushClient.State.INIT ? 12 : 5)) {
+                    session.fail();
+                    return;
+                }
+                if (in.remaining() < frame)
+                    break;
+                in.limit(start + frame).position(start + 4);
+                session.dispatch(in);
+                if (!session.channel.isOpen())
+                    return;
+                in.limit(end).position(start + frame);
+            }
+            if (in.hasRemaining()) {
+                session.partial = ByteBuffer.allocate(in.remaining() >= 4 ? frame : 4);
+                session.partial.put(in);
+            }
+        }
+    }
+
+    /**
+     * 一个逻辑上的客户端，发送方法可以在任何线程上调用，不会阻塞：消息放进发送缓冲区就返回，
+     * 返回值是放进去的字节数，没有连接、消息太长或者发送缓冲区满时返回-1。
+     */
+    public final class Session extends TimingWheel.Timeout {
+        private final Loop loop;
+        private final PushClient.Callback callback;
+        private volatile PushClient.State state = PushClient.State.INIT;
+        private SocketChannel channel;
+        private SelectionKey key;
+        /**
+         * 协商前只需要读回复的12字节
+         */
+        private volatile int size = 12;
+        /**
+         * 上次读到的半个消息
+         */
+        private ByteBuffer partial;
+        /**
+         * 待发送的数据，由这个对象的锁保护
+         */
+        private ByteBuffer out;
+        private boolean flushQueued = false;
+        private int nextTag = 0;
+        private int receivedSeq = 0;
+        private int ackedSeq = 0;
+        private boolean ackQueued = false;
+        private long lastReceived;
+        /**
+         * 收到第一个分片时才创建，只在loop上使用
+         */
+        private Reassembler streams;
+        /**
+         * 在loop上执行的flush任务
+         */
+        private final Runnable flushTask = () -> {
+            synchronized (this) {
+                flushQueued = false;
+            }
+            if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0)
+                flush();
+        };
+
+        private Session(Loop loop, PushClient.Callback callback) {
+            this.loop = loop;
+            this.callback = callback;
+        }
+
+        public PushClient.State getPushState() {
+            return state;
+        }
+
+        public void bind(int id) {
+            if (state != PushClient.State.CONNECTED || id <= 0)
+                return;
+            synchronized (this) {
+                ByteBuffer out = reserve(9);
+                if (out == null)
+                    return;
+                out.putInt(9).put((byte) 1).putInt(id);
+            }
+            flushLater();
+        }
+
+        public int send(int id, byte[] data) {
+            return send(id, data, 0, data.length);
+        }
+
+        public int send(int id, byte[] data, int offset, int length) {
+            return withId((byte) 2, id, data, offset, length);
+        }
+
+        /**
+         * 同{@link PushClient#send(int, byte[], int, int, boolean)}
+         */
+        public int send(int id, byte[] data, int offset, int length, boolean urgent) {
+            return withId((byte) (urgent ? 2 | PushServer.PRIORITY : 2), id, data, offset, length);
+        }
+
+        public int send(int[] ids, byte[] data) {
+            return send(ids, data, 0, data.length);
+        }
+
+        public int send(int[] ids, byte[] data, int offset, int length) {
+            return send(ids, data, offset, length, false);
+        }
+
+        /**
+         * 同{@link PushClient#send(int[], byte[], int, int, boolean)}
+         */
+        public int send(int[] ids, byte[] data, int offset, int length, boolean urgent) {
+            if (ids.length == 1)
+                return send(ids[0], data, offset, length, urgent);
+            int len = 9 + ids.length * 4 + length;
+            if (len > size || data.length < offset + length)
+                return -1;
+            synchronized (this) {
+                ByteBuffer out = reserve(len);
+                if (out == null)
+                    return -1;
+                out.putInt(len).put((byte) (urgent ? 3 | PushServer.PRIORITY : 3)).putInt(ids.length);
+                for (int id : ids) {
+                    out.putInt(id);
+                }
+                out.put(data, offset, length);
+            }
+            flushLater();
+            return len;
+        }
+
+        public int publish(int groupId, byte[] data) {
+            return withId((byte) 9, groupId, data, 0, data.length);
+        }
+
+        public int publish(int groupId, byte[] data, int offset, int length) {
+            return withId((byte) 9, groupId, data, offset, length);
+        }
+
+        public void createGroup(int groupId) {
+            withId((byte) 6, groupId, new byte[0], 0, 0);
+        }
+
+        public void deleteGroup(int groupId) {
+            withId((byte) 10, groupId, new byte[0], 0, 0);
+        }
+
+        /**
+         * 同{@link PushClient#joinGroup(int)}
+         */
+        public void joinGroup(int groupId) {
+            if (state == PushClient.State.BIND)
+                withId((byte) 7, groupId, new byte[0], 0, 0);
+        }
+
+        public void leaveGroup(int groupId) {
+            if (state == PushClient.State.BIND)
+                withId((byte) 8, groupId, new byte[0], 0, 0);
+        }
+
+        public int sendWithResult(int id, byte[] data) {
+            return sendWithResult(id, data, 0, data.length);
+        }
+
+        /**
+         * 同{@link PushClient#sendWithResult}
+         *
+         * @return 这次推送的tag，失败返回-1
+         */
+        public int sendWithResult(int id, byte[] data, int offset, int length) {
+            int len = length + 13;
+            if (len > size || data.length < offset + length)
+                return -1;
+            int tag;
+            synchronized (this) {
+                ByteBuffer out = reserve(len);
+                if (out == null)
+                    return -1;
+                tag = ++nextTag & Integer.MAX_VALUE;
+                out.putInt(len).put((byte) 12).putInt(tag).putInt(id).put(data, offset, length);
+            }
+            flushLater();
+            return tag;
+        }
+
+        public int broadcast(byte[] data) {
+            return broadcast(data, 0, data.length);
+        }
+
+        /**
+         * 同{@link PushClient#broadcast}
+         *
+         * @return 这次广播的tag，失败返回-1
+         */
+        public int broadcast(byte[] data, int offset, int length) {
+            int len = length + 9;
+            if (len > size || data.length < offset + length)
+                return -1;
+            int tag;
+            synchronized (this) {
+                ByteBuffer out = reserve(len);
+                if (out == null)
+                    return -1;
+                tag = ++nextTag & Integer.MAX_VALUE;
+                out.putInt(len).put((byte) 21).putInt(tag).put(data, offset, length);
+            }
+            flushLater();
+            return tag;
+        }
+
+        public void getIp() {
+            command((byte) 5);
+        }
+
+        /**
+         * 同{@link PushClient#getStats()}
+         */
+        public void getStats() {
+            command((byte) 14);
+        }
+
+        /**
+         * 断开连接，状态变为ERROR
+         */
+        public void close() {
+            loop.execute(this::fail);
+        }
+
+        private int withId(byte cmd, int id, byte[] data, int offset, int length) {
+            int len = length + 9;
+            if (len > size || data.length < offset + length)
+                return -1;
+            synchronized (this) {
+                ByteBuffer out = reserve(len);
+                if (out == null)
+                    return -1;
+                out.putInt(len).put(cmd).putInt(id).put(data, offset, length);
+            }
+            flushLater();
+            return len;
+        }
+
+        private void command(byte cmd) {
+            synchronized (this) {
+                ByteBuffer out = reserve(5);
+                if (out == null)
+                    return;
+                out.putInt(5).put(cmd);
+            }
+            flushLater();
+        }
+
+        /**
+         * 调用者持有锁
+         *
+         * @return 能放下len字节的发送缓冲区，没有连接或者缓冲区满时为null
+         */
+        private ByteBuffer reserve(int len) {
+            PushClient.State state = this.state;
+            if (state != PushClient.State.CONNECTED && state != PushClient.State.BIND)
+                return null;
+            if (out == null) {
+                out = ByteBuffer.allocate(Math.max(256, len));
+            } else if (out.remaining() < len) {
+                int capacity = out.capacity();
+                while (capacity - out.position() < len) {
+                    capacity <<= 1;
+                }
+                if (capacity > OUTBOUND_FRAMES * size)
+                    return null;
+                ByteBuffer larger = ByteBuffer.allocate(capacity);
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            return out;
+        }
+
+        /**
+         * 同一时间最多只有一个flush任务在loop的队列里，多个线程的发送合并成一次写
+         */
+        private void flushLater() {
+            synchronized (this) {
+                if (flushQueued || out == null || out.position() == 0)
+                    return;
+                flushQueued = true;
+            }
+            loop.execute(flushTask);
+        }
+
+        /**
+         * 在loop上调用，写不完时等OP_WRITE
+         *
+         * @return false表示连接已经被关闭
+         */
+        private boolean flush() {
+            if (!channel.isOpen())
+                return false;
+            boolean drained;
+            synchronized (this) {
+                if (out == null)
+                    return true;
+                out.flip();
+                try {
+                    channel.write(out);
+                } catch (IOException e) {
+                    out.clear();
+                    fail();
+                    return false;
+                }
+                out.compact();
+                drained = out.position() == 0;
+                if (drained && out.capacity() > KEEP_OUTBOUND)
+                    out = null;
+            }
+            if (drained)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return true;
+        }
+
+        private void open(InetSocketAddress address) {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (channel.connect(address)) {
+                    key = channel.register(loop.selector, 0, this);
+                    negotiate();
+                } else {
+                    key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        private void finishConnect() {
+            try {
+                channel.finishConnect();
+            } catch (IOException e) {
+                fail();
+                return;
+            }
+            negotiate();
+        }
+
+        /**
+         * get buffer size带上v2特性，回复是[12][size][features]
+         */
+        private void negotiate() {
+            synchronized (this) {
+                out = ByteBuffer.allocate(256);
+                out.putInt(9).put((byte) 4).putInt(PushServer.FEATURE_V2);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            lastReceived = loop.now;
+            flush();
+        }
+
+        /**
+         * 处理一个完整的消息，buffer的position在长度之后
+         */
+        private void dispatch(ByteBuffer buffer) {
+            if (state == PushClient.State.INIT) {
+                int size = buffer.getInt();
+                int features = buffer.getInt();
+                if ((features & PushServer.FEATURE_V2) == 0 || size < 13) {
+                    //旧的服务端
+                    fail();
+                    return;
+                }
+                this.size = size;
+                setState(PushClient.State.CONNECTED);
+                if (heartbeatInterval > 0)
+                    heartbeat();
+                return;
+            }
+            switch (buffer.get()) {
+                case 1://bind ack
+                    receivedSeq = 0;
+                    ackedSeq = 0;
+                    setState(PushClient.State.BIND);
+                    break;
+                case 2://push
+                    int seq = buffer.getInt();
+                    ByteBuffer view = loop.view;
+                    view.limit(buffer.limit()).position(buffer.position());
+                    callback.onReceiveData(view);
+                    receivedSeq = seq;
+                    if (seq - ackedSeq >= ACK_BATCH) {
+                        ack();
+                    } else if (!ackQueued) {
+                        ackQueued = true;
+                        loop.acks.add(this);
+                    }
+                    break;
+                case 5://ip
+                    byte[] ip = new byte[buffer.remaining()];
+                    buffer.get(ip);
+                    callback.onReceiveIp(new String(ip));
+                    break;
+                case 12://push result
+                    callback.onPushResult(buffer.getInt(), buffer.get());
+                    break;
+                case 14://stats
+                    byte[] snapshot = new byte[buffer.remaining()];
+                    buffer.get(snapshot);
+                    callback.onReceiveStats(snapshot);
+                    break;
+                case 21://broadcast progress
+                    callback.onBroadcastProgress(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                            (buffer.get() & PushServer.BROADCAST_DONE) != 0);
+                    break;
+                case 22://stream chunk [source][stream][index][flags]，同PushClient
+                    long stream = ((long) buffer.getInt() << 32) | (buffer.getInt() & 0xffffffffL);
+                    int index = buffer.getInt();
+                    boolean last = (buffer.get() & PushServer.CHUNK_LAST) != 0;
+                    ByteBuffer chunk = loop.view;
+                    chunk.limit(buffer.limit()).position(buffer.position());
+                    if (callback.onReceiveChunk(stream, index, last, chunk))
+                        break;
+                    if (streams == null)
+                        streams = new Reassembler();
+                    chunk.limit(buffer.limit()).position(buffer.position());
+                    ByteBuffer data = streams.add(stream, index, last, chunk, maxStreamSize);
+                    if (data != null)
+                        callback.onReceiveData(data.asReadOnlyBuffer());
+                    break;
+                default://echo, heartbeat and unknown
+                    break;
+            }
+        }
+
+        /**
+         * 在loop上调用
+         */
+        private void ack() {
+            int seq = receivedSeq;
+            if (seq == ackedSeq || !channel.isOpen())
+                return;
+            synchronized (this) {
+                ByteBuffer out = reserve(9);
+                if (out == null)
+                    return;
+                out.putInt(9).put((byte) 11).putInt(seq);
+            }
+            ackedSeq = seq;
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0)
+                flush();
+        }
+
+        /**
+         * 时间轮到期时调用，发送心跳并排下一次
+         */
+        private void heartbeat() {
+            if (!channel.isOpen())
+                return;
+            if (loop.now - lastReceived > heartbeatInterval * HEARTBEAT_MISSES) {
+                fail();
+                return;
+            }
+            int seconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(heartbeatInterval * HEARTBEAT_MISSES + 999));
+            synchronized (this) {
+                ByteBuffer out = reserve(9);
+                if (out != null)
+                    out.putInt(9).put((byte) 13).putInt(seconds);
+            }
+            loop.wheel.schedule(this, heartbeatInterval);
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0)
+                flush();
+        }
+
+        private void setState(PushClient.State state) {
+            this.state = state;
+            callback.onStateChange(state);
+        }
+
+        /**
+         * 在loop上调用，断开连接，状态变为ERROR
+         */
+        private void fail() {
+            if (state == PushClient.State.ERROR)
+                return;
+            loop.wheel.cancel(this);
+            partial = null;
+            synchronized (this) {
+                out = null;
+                state = PushClient.State.ERROR;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            callback.onStateChange(PushClient.State.ERROR);
+        }
+    }
+}
@@ -1,587 +1,2491 @@
 package shxhzhxx;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PushServer {
+    /**
+     * 参数：[port] [maxMessageSize] [reactorCount] [node nodes key]，默认3889、1024、1。压测用bench模块里的LoadGenerator。
+     * <p>
+     * 集群模式再加上本节点的序号、用逗号分隔的所有节点的host:port和校验用的key，比如在本机启动两个节点：
+     * <pre>
+     * PushServer 3889 1024 1 0 127.0.0.1:3889,127.0.0.1:3890 42
+     * PushServer 3890 1024 1 1 127.0.0.1:3889,127.0.0.1:3890 42
+     * </pre>
+     */
     public static void main(String[] args) {
-        PushServer server = new PushServer(3889, 1024);
-        server.test();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 3889;
+        int maxMessageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int reactorCount = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        PushServer server = new PushServer(port, maxMessageSize, reactorCount);
+        if (args.length > 5) {
+            String[] hosts = args[4].split(",");
+            InetSocketAddress[] nodes = new InetSocketAddress[hosts.length];
+            for (int i = 0; i < hosts.length; ++i) {
+                int colon = hosts[i].lastIndexOf(':');
+                nodes[i] = new InetSocketAddress(hosts[i].substring(0, colon), Integer.parseInt(hosts[i].substring(colon + 1)));
+            }
+            server.setCluster(Integer.parseInt(args[3]), nodes, Long.parseLong(args[5]));
+        }
+        server.start();
     }
 
+    /**
+     * 协议扩展，客户端在get buffer size（cmd 4）中带上想要的特性，服务端回复其中支持的部分。
+     * <p>
+     * FEATURE_V2：服务端发给客户端的消息带类型[len][type][...]：0 echo、1 bind ack[id]、2 推送[seq][data]、
+     * 5 ip、12 推送结果[tag][status]、13 心跳回复、14 统计快照、21 广播进度[tag][delivered][nodes][flags]、
+     * 22 分片[source][stream][index][flags][data]。
+     * 推送的seq在一次绑定内从1开始递增，客户端用cmd 11[seq]累计确认，没确认的推送在连接断开时放回离线存储。
+     * <p>
+     * 超过maxMessageSize的推送用cmd 22[id][stream][index][flags][data]分片发送，index从0开始，flags为{@link #CHUNK_LAST}表示最后一片。
+     * 服务端不缓存也不确认分片，收到一片就把id换成发送者连接的编号（source），作为类型22转发给目标，
+     * 目标用(source, stream)区分同时进行的多个分片推送，index不连续时说明中间有分片丢了。目标不在线或者不是v2时丢弃。
+     * 目标的发送队列放不下下一片时暂停读发送者，积压降到{@link #setOutboundLimit}的一半以下再继续，所以分片本身不会触发溢出策略。
+     * <p>
+     * cmd 21[tag][data]把data作为普通推送发给本节点所有绑定了id的连接，集群模式下同时转发给其他节点。
+     * 每个reactor每轮select只写{@link #setBroadcastBudget}个连接，分多轮写完，期间每隔一段时间用类型21报告已经写给了多少个连接，
+     * nodes是转发到的其他节点数（它们各自的投递数不报告），最后一次报告的flags为{@link #BROADCAST_DONE}。
+     */
+    public static final int FEATURE_V2 = 1;
+    /**
+     * 推送用zlib压缩，需要同时协商FEATURE_V2。压缩后变小的推送以类型20[seq][zlib data]发送，其他的仍然是类型2。
+     * 多推和分组发布时每条推送只压缩一次，所有支持压缩的目标共用压缩后的数据。
+     */
+    public static final int FEATURE_DEFLATE = 2;
+    /**
+     * 分片的flags，这是最后一片
+     */
+    public static final byte CHUNK_LAST = 1;
+    /**
+     * 广播进度报告的flags，广播已经写完
+     */
+    public static final byte BROADCAST_DONE = 1;
+    /**
+     * 推送类的cmd（2、3、9、12）或上这个值表示高优先级。连接写不过来时，没写出去的推送按优先级分两条通道排队，
+     * 高优先级的先写，但连续写了{@link #FAIR_SHARE}个高优先级的推送之后至少写一个普通的，普通推送不会被饿死；
+     * 转交给其他reactor的高优先级推送也先执行。集群转发时优先级随cmd 18、19一起转发。
+     */
+    public static final int PRIORITY = 0x80;
+    private static final int SUPPORTED_FEATURES = FEATURE_V2 | FEATURE_DEFLATE;
+    private static final AtomicIntegerFieldUpdater<Attachment> RELAYING =
+            AtomicIntegerFieldUpdater.newUpdater(Attachment.class, "relaying");
+
+    /**
+     * cmd 12（带结果的单推）的结果
+     */
+    public static final byte RESULT_DELIVERED = 0;
+    public static final byte RESULT_OFFLINE = 1;
+    public static final byte RESULT_STORED = 2;
+    /**
+     * 目标不支持确认，只知道已经写给了它
+     */
+    public static final byte RESULT_WRITTEN = 3;
+    public static final byte RESULT_LOST = 4;
+    /**
+     * 目标绑定在集群的其他节点上，已经转发给那个节点，之后的结果不再报告
+     */
+    public static final byte RESULT_FORWARDED = 5;
+
+    /**
+     * 每个连接最多保留的未确认推送数，超过后最早的按{@link #RESULT_WRITTEN}处理
+     */
+    private static final int MAX_INFLIGHT = 1024;
+    /**
+     * 空闲检测的时间轮精度，超时最多晚一个tick被发现
+     */
+    private static final long IDLE_TICK = 1000;
+    /**
+     * 客户端通过心跳（cmd 13）能设置的最长空闲时间，秒
+     */
+    private static final int MAX_IDLE_SECONDS = 3600;
+    /**
+     * 两条优先级通道之间的公平性：高优先级的连续这么多个之后让普通的先走一个
+     */
+    private static final int FAIR_SHARE = 8;
+    /**
+     * 广播进度报告的最小间隔，毫秒
+     */
+    private static final long BROADCAST_REPORT_INTERVAL = 100;
+
     private final int MAX_MESSAGE_SIZE;
     private final int PORT;
-    private final Map<Integer, Attachment> map = new HashMap<>();
+    private final int REACTOR_COUNT;
+    /**
+     * id到连接的注册表，按id分段加锁，reactor之间只在同一段上竞争
+     */
+    private final IntMap<Attachment>[] map;
+    /**
+     * 集群目录：绑定在其他节点上的id到那个节点连过来的连接（{@link Attachment#peer}不为0），
+     * 和{@link #map}用同样的分段，由map中对应段的锁保护
+     */
+    private final IntMap<Attachment>[] remote;
+    /**
+     * 服务端维护的分组，成员是id而不是连接，连接断开后成员关系仍然保留，直到离开分组。
+     * <p>
+     * 不同连接上的命令由不同的reactor处理，相互之间没有先后顺序，所以加入（cmd 7）时分组不存在就创建，
+     * 不要求先收到另一个连接的创建（cmd 6）。发布（cmd 9）只发给处理它时已经加入的成员，
+     * 需要保证新成员收到的发布者应该等加入方确认（比如加入方用推送通知它）之后再发布。
+     */
+    private final IntMap<Group> groups = new IntMap<>();
+    private final BufferPool pool;
+    /**
+     * 连接的编号，分片转发时用来区分发送者
+     */
+    private final AtomicInteger nextSerial = new AtomicInteger();
+    private final Log logger = new Log("PushServer", System.out, 4096);
+    private int outboundLimit;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.CLOSE;
+    private File storeDir;
+    private long storeTtl;
+    private int storeCap;
+    private OfflineStore store;
+    private long idleTimeout = 0;
+    private long statsPeriod = 0;
+    private int broadcastBudget = 1024;
+    private int sendBufferSize = 0;
+    private boolean threadPerConnection = false;
+    /**
+     * 按cmd的限速，见{@link #setRateLimit}
+     */
+    private final RateLimit[] rateLimits = new RateLimit[Metrics.OPCODES];
+    private RateLimit fanOutLimit;
+    /**
+     * 每个有限速的cmd的桶在{@link Attachment#tats}中的位置，推送目标数的桶在最后，start时分配
+     */
+    private final int[] rateSlots = new int[Metrics.OPCODES];
+    private int buckets = 0;
+    /**
+     * 本节点在集群中的序号，-1表示不是集群模式
+     */
+    private int node = -1;
+    private InetSocketAddress[] nodes;
+    private long clusterKey;
+    /**
+     * 到其他节点的连接，按节点序号排列，本节点的位置是null
+     */
+    private ClusterLink[] links;
+    private volatile boolean running;
+    private Selector acceptSelector;
+    private ServerSocketChannel server;
+    private volatile Transport transport;
+    private Reactor[] reactors;
 
     public PushServer(int port, int maxMessageSize) {
+        this(port, maxMessageSize, 1);
+    }
+
+    /**
+     * @param reactorCount 处理读写的selector线程数，accept单独占用调用{@link #start()}的线程。
+     *                     每个连接在accept时固定分配给一个reactor，跨reactor的推送通过目标reactor的任务队列转交。
+     */
+    public PushServer(int port, int maxMessageSize, int reactorCount) {
+        if (reactorCount < 1)
+            throw new IllegalArgumentException("reactorCount < 1");
         PORT = port;
         MAX_MESSAGE_SIZE = maxMessageSize;
+        REACTOR_COUNT = reactorCount;
+        outboundLimit = 16 * maxMessageSize;
+        pool = new BufferPool(maxMessageSize);
+        int stripes = 1;
+        while (reactorCount > 1 && stripes < reactorCount * 4) {
+            stripes <<= 1;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        IntMap<Attachment>[] map = new IntMap[stripes];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        IntMap<Attachment>[] remote = new IntMap[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            map[i] = new IntMap<>();
+            remote[i] = new IntMap<>();
+        }
+        this.map = map;
+        this.remote = remote;
+    }
+
+    /**
+     * 连接只在收到半个消息、或者有没写完的数据时才从池里借用缓冲区，空闲连接不占用缓冲区。
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * 连接的发送缓冲区满时，未写完的数据暂存在连接自己的发送队列里，等OP_WRITE时再继续写。
+     *
+     * @param limit  每个连接发送队列中最多暂存的字节数，不能小于maxMessageSize
+     * @param policy 暂存的字节数超过limit时的处理方式
+     */
+    public void setOutboundLimit(int limit, OverflowPolicy policy) {
+        if (limit < MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("limit < maxMessageSize");
+        if (policy == null)
+            throw new NullPointerException("policy");
+        outboundLimit = limit;
+        overflowPolicy = policy;
+    }
+
+    /**
+     * 开启离线消息存储：推送给不在线id的消息保存在dir下的段文件中，id绑定后先按顺序收到这些消息，再收到新的推送。
+     *
+     * @param ttl      消息的保存时间
+     * @param perIdCap 每个id最多保存的消息数，超过后丢弃最早的
+     */
+    public void setOfflineStore(File dir, long ttl, TimeUnit unit, int perIdCap) {
+        if (perIdCap < 1)
+            throw new IllegalArgumentException("perIdCap < 1");
+        storeDir = dir;
+        storeTtl = unit.toMillis(ttl);
+        storeCap = perIdCap;
+    }
+
+    /**
+     * 连接在timeout内没有发来任何消息（包括心跳cmd 13）就断开，并从id注册表中移除，用来清理已经半开的连接。
+     * 客户端可以在心跳中为自己的连接指定别的时间，见cmd 13。
+     *
+     * @param timeout 为0时不检测，默认不检测
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout < 0");
+        idleTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * 每隔period把统计数据打印到日志，统计数据也可以通过{@link #getStats()}或者cmd 14取得
+     *
+     * @param period 为0时不打印，默认不打印
+     */
+    public void setStatsDump(long period, TimeUnit unit) {
+        if (period < 0)
+            throw new IllegalArgumentException("period < 0");
+        statsPeriod = unit.toMillis(period);
+    }
+
+    /**
+     * 广播（cmd 21）时每个reactor每轮select最多访问多少个连接，剩下的留到下一轮，广播期间其他连接的读写不会被长时间卡住
+     *
+     * @param budget 默认1024
+     */
+    public void setBroadcastBudget(int budget) {
+        if (budget < 1)
+            throw new IllegalArgumentException("budget < 1");
+        broadcastBudget = budget;
+    }
+
+    /**
+     * 客户端连接的内核发送缓冲（SO_SNDBUF）。内核缓冲里的数据已经排好了顺序，{@link #PRIORITY}的推送只能排在它们后面，
+     * 接收慢的连接上缓冲越小，紧急推送插队的效果越好，但吞吐会下降。
+     *
+     * @param bytes 为0时使用系统默认值，默认为0
+     */
+    public void setSendBufferSize(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes < 0");
+        sendBufferSize = bytes;
+    }
+
+    /**
+     * 每个连接一个线程、阻塞读写，Java 21以上是虚拟线程，代替默认的selector线程，见{@link BlockingTransport}。
+     * 只支持echo、bind、单推、多推、get buffer size和get ip，不支持v2，其他命令断开连接；
+     * 发送队列的上限和溢出策略同样生效，reactorCount、空闲检测、限速等设置都不起作用；
+     * 和集群、离线存储一起设置时start失败。
+     *
+     * @param enabled 默认为false
+     */
+    public void setThreadPerConnection(boolean enabled) {
+        threadPerConnection = enabled;
+    }
+
+    /**
+     * 限制每个连接发送某个cmd的速率，超过时暂停读这个连接，等令牌够了再从这个消息继续，消息不会被缓存或丢弃。
+     * 集群节点之间的连接不受限制。
+     *
+     * @param cmd       小于32
+     * @param perSecond 平均每秒允许的消息数
+     * @param burst     短时间内最多连续允许的消息数
+     */
+    public void setRateLimit(int cmd, int perSecond, int burst) {
+        if (cmd < 0 || cmd >= rateLimits.length)
+            throw new IllegalArgumentException("cmd out of range");
+        rateLimits[cmd] = new RateLimit(perSecond, burst);
+    }
+
+    /**
+     * 限制每个连接每秒推送的目标数，超过时和{@link #setRateLimit}一样暂停读。单推（cmd 2、12）算一个目标，
+     * 多推（cmd 3）算id数，分组发布（cmd 9）算分组的成员数，广播按连接数分批写，不在这里限制，可以用cmd 21的限速。
+     * 一条消息的目标数超过burst时，只要桶是满的也允许，之后按超出的量暂停。
+     */
+    public void setFanOutLimit(int perSecond, int burst) {
+        fanOutLimit = new RateLimit(perSecond, burst);
+    }
+
+    /**
+     * 所有reactor的统计数据汇总后的文本，{@link #setThreadPerConnection}时只有连接数、id数和收发的计数
+     */
+    public String getStats() {
+        Transport transport = this.transport;
+        if (transport == null)
+            return "not started";
+        return transport.stats();
+    }
+
+    /**
+     * 集群模式：每个节点把自己绑定的id通知其他所有节点，推送给绑定在其他节点上的id时转发给那个节点，
+     * 多推按节点拆分，每个节点只转发一条。节点之间的连接就是普通的客户端连接，用cmd 15~19和23通信，见{@link ClusterLink}。
+     * <p>
+     * 同一个id在另一个节点上绑定时，本节点上的连接会被断开，和单机时重复绑定一样。
+     * 分组和离线存储仍然是每个节点各自的：分组的成员可以在任何节点上，离线消息只在存储它的节点上重放。
+     *
+     * @param node  本节点在nodes中的序号
+     * @param nodes 所有节点的地址，每个节点的配置必须相同，maxMessageSize也必须相同
+     * @param key   节点之间连接时的校验，防止普通客户端冒充节点
+     */
+    public void setCluster(int node, InetSocketAddress[] nodes, long key) {
+        if (node < 0 || node >= nodes.length)
+            throw new IllegalArgumentException("node out of range");
+        this.node = node;
+        this.nodes = nodes.clone();
+        this.clusterKey = key;
+    }
+
+    /**
+     * 日志在后台线程上异步输出，重复的错误会被限流，关闭后记录日志没有任何开销
+     */
+    public void setLogEnabled(boolean enabled) {
+        logger.setEnabled(enabled);
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * 断开这个连接
+         */
+        CLOSE,
+        /**
+         * 丢弃新的消息
+         */
+        DROP_NEWEST,
+        /**
+         * 丢弃队列中最早的、还没开始写的消息，直到放得下新的消息
+         */
+        DROP_OLDEST
     }
 
     public void start() {
-        map.clear();
-        Selector selector = null;
-        ServerSocketChannel server = null;
-        ByteBuffer buff = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        logger.start();
+        for (int i = 0; i < map.length; ++i) {
+            synchronized (map[i]) {
+                map[i].clear();
+                remote[i].clear();
+            }
+        }
+        synchronized (groups) {
+            groups.clear();
+        }
+        buckets = 0;
+        for (int i = 0; i < rateLimits.length; ++i) {
+            rateSlots[i] = rateLimits[i] != null ? buckets++ : -1;
+        }
+        if (fanOutLimit != null)
+            ++buckets;
+        if (threadPerConnection && (node >= 0 || storeDir != null)) {
+            log("init failed: thread per connection does not support cluster or offline store");
+            shutdown();
+            return;
+        }
+        Transport transport = threadPerConnection ? new BlockingTransport(MAX_MESSAGE_SIZE, outboundLimit, overflowPolicy, logger) : new SelectorTransport();
+        running = true;
         try {
-            selector = Selector.open();
+            acceptSelector = Selector.open();
             server = ServerSocketChannel.open();
             server.configureBlocking(false);
             server.bind(new InetSocketAddress(PORT));
-            server.register(selector, server.validOps());
+            server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            if (storeDir != null) {
+                store = new OfflineStore(storeDir, storeTtl, storeCap, Math.max(64 * 1024 * 1024, 4 * MAX_MESSAGE_SIZE),
+                        pool, new StoreListener(), logger);
+                store.open();
+            }
+            this.transport = transport;
+            transport.start();
         } catch (IOException e) {
-            log("init failed: " + e.getMessage());
-            if (selector != null) {
-                try {
-                    selector.close();
-                } catch (IOException ignored) {
+            log("init failed: %s", e.getMessage());
+            shutdown();
+            return;
+        }
+        if (statsPeriod > 0) {
+            Thread dump = new Thread(() -> {
+                while (running) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(statsPeriod);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    log("stats\n%s", getStats());
                 }
+            }, "PushServer-stats");
+            dump.setDaemon(true);
+            dump.start();
+        }
+        if (node >= 0) {
+            ClusterLink[] links = new ClusterLink[nodes.length];
+            for (int i = 0; i < nodes.length; ++i) {
+                if (i != node)
+                    links[i] = new ClusterLink(i, nodes[i], node, clusterKey, outboundLimit, MAX_MESSAGE_SIZE,
+                            logger, this::announce);
             }
-            if (server != null) {
-                try {
-                    server.close();
-                } catch (IOException ignored) {
-                }
+            this.links = links;
+            for (ClusterLink link : links) {
+                if (link != null)
+                    link.start();
             }
-            return;
         }
-        log("init success");
+        log("init success, %s", transport);
 
-        for (; ; ) {
+        while (running) {
             try {
-                selector.select();
-            } catch (IOException e) {
-                log("select exception: " + e.getMessage());
-                try {
-                    selector.close();
-                } catch (IOException ignored) {
-                }
+                acceptSelector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                if (running)
+                    log("select exception: %s", e.getMessage());
+                shutdown();
                 return;
             }
-            for (SelectionKey key : selector.selectedKeys()) {
-                if (!key.isValid()) {
-                    // 这里的key之所以可能invalid是因为，在循环select的key集合时，先处理的key可能close了后处理的key的channel，
-                    // 具体场景是先处理的key绑定了后处理key的id，导致后处理的key的channel被close。
-                    continue;
-                }
-                if (key.isAcceptable()) {
-                    SocketChannel socketChannel = null;
-                    try {
-                        socketChannel = server.accept();
-                        socketChannel.configureBlocking(false);
-                        socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-                        socketChannel.register(selector, SelectionKey.OP_READ, new Attachment(socketChannel));
-                    } catch (IOException e) {
-                        log("accept exception: " + e.getMessage());
-                        try {
-                            selector.close();
-                        } catch (IOException ignored) {
-                        }
+            acceptSelector.selectedKeys().clear();
+            for (; ; ) {
+                SocketChannel socketChannel = null;
+                try {
+                    socketChannel = server.accept();
+                    if (socketChannel == null)
+                        break;
+                    socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                    if (sendBufferSize > 0)
+                        socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                    transport.register(socketChannel);
+                } catch (IOException e) {
+                    log("accept exception: %s", e.getMessage());
+                    if (socketChannel != null) {
                         try {
-                            server.close();
+                            socketChannel.close();
                         } catch (IOException ignored) {
                         }
-                        if (socketChannel != null) {
-                            try {
-                                socketChannel.close();
-                            } catch (IOException ignored) {
-                            }
-                        }
-                        return;
-                    }
-                } else {
-                    Attachment at = (Attachment) key.attachment();
-                    if (at.byteBuffer.position() < 4) {
-                        at.byteBuffer.limit(4);
-                        if (!at.read()) {
-                            //broken pipe
-                            continue;
-                        }
-                        if (at.byteBuffer.position() < 4) {
-                            //wait more data
-                            continue;
-                        }
-                    }
-                    int len = at.byteBuffer.getInt(0);
-                    if (len > MAX_MESSAGE_SIZE || len < 5) {
-                        //invalid len
-                        log("invalid len: " + len);
-                        if (at.id > 0)
-                            map.remove(at.id);
-                        at.close();
-                        continue;
-                    }
-                    at.byteBuffer.limit(len);
-                    if (!at.read()) {
-                        //broken pipe
-                        continue;
-                    }
-                    if (at.byteBuffer.position() < len) {
-                        continue;//wait more data
-                    }
-                    switch (at.byteBuffer.get(4)) {
-                        default://unknown cmd
-                            log("unknown cmd: " + at.byteBuffer.get(4));
-                            if (at.id > 0)
-                                map.remove(at.id);
-                            at.close();
-                            break;
-                        case 0://echo
-                            at.byteBuffer.putInt(1, len - 1);
-                            at.byteBuffer.position(1);
-                            if (at.write(at.byteBuffer)) {
-                                at.byteBuffer.clear();
-                            } else {
-                                //broken pipe
-                            }
-                            break;
-                        case 1://bind
-                            if (at.id != 0) {//already bind
-                                log("already bind: " + at.id);
-                                map.remove(at.id);
-                                at.close();
-                            } else if (len != 9) {//invalid param
-                                log("bind invalid param, len(%d)!=9", len);
-                                at.close();
-                            } else {
-                                int id = at.byteBuffer.getInt(5);
-                                if (id == 0) {//invalid param
-                                    log("bind invalid param, id=0");
-                                    at.close();
-                                } else {
-                                    at.id = id;
-                                    at.byteBuffer.clear();
-                                    Attachment prev = map.put(id, at);
-                                    if (prev != null) {
-                                        prev.close();
-                                    }
-                                }
-                            }
-                            break;
-                        case 2://single push
-                            if (len < 9) {
-                                log("single push invalid param, len(%d)<9", len);
-                                if (at.id > 0)
-                                    map.remove(at.id);
-                                at.close();
-                            } else {
-                                Attachment target = map.get(at.byteBuffer.getInt(5));
-                                if (target != null) {
-                                    at.byteBuffer.putInt(5, len - 5);
-                                    at.byteBuffer.position(5);
-                                    if (!target.write(at.byteBuffer)) {
-                                        //broken pipe
-                                    }
-                                }
-                                at.byteBuffer.clear();
-                            }
-                            break;
-                        case 3://multi push
-                            if (len < 9) {
-                                log("multi push invalid param, len(%d)<9", len);
-                                if (at.id > 0)
-                                    map.remove(at.id);
-                                at.close();
-                            } else {
-                                int num = at.byteBuffer.getInt(5);
-                                int headerLen = 9 + num * 4;
-                                if (len < headerLen) {
-                                    log("multi push invalid param, len(%d)<9+num(%d)*4", len, num);
-                                    if (at.id > 0)
-                                        map.remove(at.id);
-                                    at.close();
-                                } else {
-                                    at.byteBuffer.position(headerLen);
-                                    buff.clear();
-                                    buff.putInt(len - headerLen + 4);
-                                    buff.put(at.byteBuffer);
-                                    buff.limit(len - headerLen + 4);
-                                    for (int i = 0; i < num; ++i) {
-                                        Attachment target = map.get(at.byteBuffer.getInt(9 + 4 * i));
-                                        if (target != null) {
-                                            buff.position(0);
-                                            if (!target.write(buff)) {
-                                                //broken pipe
-                                            }
-                                        }
-                                    }
-                                    at.byteBuffer.clear();
-                                }
-                            }
-                            break;
-                        case 4://get buffer size in bytes
-                            if (len != 5) {
-                                log("get buffer size invalid param, len(%d)!=5", len);
-                                if (at.id > 0)
-                                    map.remove(at.id);
-                                at.close();
-                            } else {
-                                at.byteBuffer.limit(8).position(0);
-                                at.byteBuffer.putInt(8);
-                                at.byteBuffer.putInt(MAX_MESSAGE_SIZE);
-                                at.byteBuffer.position(0);
-                                if (at.write(at.byteBuffer)) {
-                                    at.byteBuffer.clear();
-                                } else {
-                                    //broken pipe
-                                }
-                            }
-                            break;
-                        case 5://get ip
-                            InetAddress inetAddress = at.channel.socket().getInetAddress();
-                            if (len != 5 || inetAddress == null) {
-                                log("get ip invalid param, len(%d)!=5 or inetAddress == null", len);
-                                if (at.id > 0)
-                                    map.remove(at.id);
-                                at.close();
-                            } else {
-                                byte[] address = inetAddress.getHostAddress().getBytes();
-                                at.byteBuffer.limit(address.length + 4).position(0);
-                                at.byteBuffer.putInt(address.length + 4);
-                                at.byteBuffer.put(address);
-                                at.byteBuffer.position(0);
-                                if (at.write(at.byteBuffer)) {
-                                    at.byteBuffer.clear();
-                                } else {
-                                    //broken pipe
-                                }
-                            }
-                            break;
                     }
+                    shutdown();
+                    return;
                 }
             }
-            selector.selectedKeys().clear();
         }
     }
 
-    private class Attachment {
-        int id = 0;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
-        SocketChannel channel;
+    /**
+     * 去掉推送类cmd上的{@link #PRIORITY}，其他cmd带上这一位时按未知的cmd处理
+     */
+    static int baseCmd(int cmd) {
+        switch (cmd & ~PRIORITY) {
+            case 2:
+            case 3:
+            case 9:
+            case 12:
+            case 18:
+            case 19:
+                return cmd & ~PRIORITY;
+            default:
+                return cmd;
+        }
+    }
 
-        private Attachment(SocketChannel channel) {
-            this.channel = channel;
+    private int stripeIndex(int id) {
+        return (IntMap.hash(id) >>> 16) & (map.length - 1);
+    }
+
+    private IntMap<Attachment> stripe(int id) {
+        return map[stripeIndex(id)];
+    }
+
+    /**
+     * 只查本节点上的连接
+     */
+    Attachment lookup(int id) {
+        IntMap<Attachment> stripe = stripe(id);
+        synchronized (stripe) {
+            return stripe.get(id);
         }
+    }
 
-        private boolean read() {
-            int len;
-            try {
-                len = channel.read(byteBuffer);
-            } catch (IOException e) {
-                len = -1;
+    /**
+     * 先查本节点，再查集群目录
+     *
+     * @return 本节点上的连接，或者id所在节点连过来的连接（{@link Attachment#peer}不为0），不在线时为null
+     */
+    private Attachment locate(int id) {
+        int i = stripeIndex(id);
+        synchronized (map[i]) {
+            Attachment at = map[i].get(id);
+            return at != null ? at : remote[i].get(id);
+        }
+    }
+
+    /**
+     * 在段锁内通知其他节点，所以同一个id的bind和unbind到达其他节点的顺序和这里一致
+     *
+     * @return 之前绑定这个id的连接
+     */
+    Attachment bindId(int id, Attachment at) {
+        int i = stripeIndex(id);
+        synchronized (map[i]) {
+            remote[i].remove(id);
+            if (links != null) {
+                for (ClusterLink link : links) {
+                    if (link != null)
+                        link.bind(id);
+                }
             }
-            if (len >= 0) {
-                return true;
+            return map[i].put(id, at);
+        }
+    }
+
+    private void unbindId(int id, Attachment at) {
+        int i = stripeIndex(id);
+        synchronized (map[i]) {
+            if (map[i].remove(id, at) && links != null) {
+                for (ClusterLink link : links) {
+                    if (link != null)
+                        link.unbind(id);
+                }
             }
-            if (id > 0)
-                map.remove(id);
-            close();
-            return false;
         }
+    }
 
-        private boolean write(ByteBuffer src) {
-            int remaining = src.remaining();
-            int len;
-            try {
-                len = channel.write(src);
-            } catch (IOException e) {
-                len = -1;
+    /**
+     * 到其他节点的连接建立后，把本节点上所有绑定的id发给它。先锁段再锁link，和{@link #bindId}的顺序一致
+     */
+    private void announce(ClusterLink link) {
+        for (IntMap<Attachment> stripe : map) {
+            synchronized (stripe) {
+                int[] ids = stripe.keys();
+                link.bind(ids, ids.length);
             }
-            if (remaining == len) {
-                return true;
+        }
+    }
+
+    /**
+     * 其他节点通知id绑定在它那里，本节点上绑定这个id的连接被断开
+     */
+    private void bindRemote(int id, Attachment peer) {
+        Attachment prev;
+        int i = stripeIndex(id);
+        synchronized (map[i]) {
+            remote[i].put(id, peer);
+            prev = map[i].remove(id);
+        }
+        if (prev != null) {
+            if (prev.reactor == peer.reactor) {
+                prev.close();
+            } else {
+                prev.reactor.execute(prev::close);
             }
-            if (id > 0)
-                map.remove(id);
-            close();
-            return false;
         }
+    }
 
-        private void close() {
-            try {
-                channel.close();
-            } catch (IOException ignore) {
+    private void unbindRemote(int id, Attachment peer) {
+        int i = stripeIndex(id);
+        synchronized (map[i]) {
+            remote[i].remove(id, peer);
+        }
+    }
+
+    /**
+     * 其他节点连过来的连接断开时，移除它通知过的所有id，之后到这些id的推送按不在线处理，直到它重新连上发来快照
+     */
+    private void dropRemote(Attachment peer) {
+        for (int i = 0; i < map.length; ++i) {
+            synchronized (map[i]) {
+                for (int id : remote[i].keys()) {
+                    remote[i].remove(id, peer);
+                }
+            }
+        }
+    }
+
+    private int ids() {
+        int size = 0;
+        for (IntMap<Attachment> stripe : map) {
+            synchronized (stripe) {
+                size += stripe.size();
             }
         }
+        return size;
     }
 
-    private void log(String s, Object... objects) {
-        System.out.printf(s + "\n", objects);
+    private int groupCount() {
+        synchronized (groups) {
+            return groups.size();
+        }
     }
 
-    //==============================================================================================================
-    private final boolean DUPLICATE_ID = false;
-    private final int TEST_LIMIT = 5000;
-    private int socketCount=0;
-    private int pushCount = 0;
-    private int recvSuccess = 0;
-    private int recvWrong = 0;
-    private Map<Integer, Stack<TestAttachment>> idAts = new HashMap<>();
-    private List<TestAttachment> writableSet = new ArrayList<>();
-    private Set<TestAttachment> pendingSet = new HashSet<>();
+    private static Metrics snapshot(Reactor[] reactors) {
+        Metrics total = new Metrics();
+        for (Reactor reactor : reactors) {
+            total.merge(reactor.metrics);
+        }
+        return total;
+    }
 
+    private Group group(int groupId) {
+        synchronized (groups) {
+            return groups.get(groupId);
+        }
+    }
 
-    private void test() {
-        new Thread(() -> {
-            socketCount = 0;
-            recvSuccess = 0;
-            pushCount = 0;
-            recvWrong = 0;
-            writableSet.clear();
-            pendingSet.clear();
-            idAts.clear();
-            report();
-            SocketAddress serverAddress = new InetSocketAddress("39.106.101.63", 3889);
-            Selector selector;
-            try {
-                selector = Selector.open();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
+    /**
+     * 不存在时创建
+     */
+    private Group groupForJoin(int groupId) {
+        synchronized (groups) {
+            Group group = groups.get(groupId);
+            if (group == null) {
+                group = new Group();
+                groups.put(groupId, group);
             }
+            return group;
+        }
+    }
 
-            for (; ; ) {
-                try {
-                    TimeUnit.MILLISECONDS.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                SocketChannel channel;
-                try {
-                    if (writableSet.size() + pendingSet.size() < TEST_LIMIT * Math.random()) {
-                        channel = SocketChannel.open();
-                        channel.socket().setReuseAddress(true);
-                        channel.configureBlocking(false);
-                        channel.connect(serverAddress);
-
-                        TestAttachment at = new TestAttachment(channel);
-                        synchronized (PushServer.this) {
-                            pendingSet.add(at);
-                        }
-                        channel.register(selector, SelectionKey.OP_CONNECT, at);
-                    }
-                    selector.select();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return;
-                }
+    private static class Group {
+        private final IntMap<Boolean> members = new IntMap<>();
+        /**
+         * 成员变化后置为null，下次发布时重新生成，发布时不持有锁
+         */
+        private volatile int[] snapshot = new int[0];
 
-                synchronized (PushServer.this) {
-                    Set<SelectionKey> keySet = selector.selectedKeys();
-                    for (SelectionKey key : keySet) {
-                        if (!key.isValid()) {
-                            continue;
-                        }
-                        TestAttachment at = (TestAttachment) key.attachment();
-                        if (key.isConnectable()) {
-                            try {
-                                at.channel.finishConnect();
-                            } catch (IOException e) {
-                                log("connect failed");
-                                pendingSet.remove(at);
-                                at.clear();
-                                continue;
-                            }
-                            key.interestOps(SelectionKey.OP_WRITE);
-                        } else if (key.isWritable()) {
-                            //connect success
-                            pendingSet.remove(at);
-                            writableSet.add(at);
-                            key.interestOps(SelectionKey.OP_READ);
-                        } else if (key.isReadable()) {
-                            at.readable();
-                        }
-                        if (!writableSet.isEmpty() && keySet.size() < Math.random() * TEST_LIMIT) {
-                            writableSet.get((int) (Math.random() * writableSet.size())).writable();
-                        }
-                    }
-                    keySet.clear();
-                }
-            }
-        }).start();
-    }
-//
-//    /**
-//     * 测试结果说明：
-//     * pendingSet记录发起但没被响应的连接数，稳定态时应该是0
-//     * idAts记录当前被绑定的id总数
-//     * duplicate记录id重复但没有被断开的连接数，稳定态时应该是0
-//     * pushCount记录总推送数
-//     * recvSuccess记录收到成功推送的数量
-//     * recvWrong记录收到错误推送的数量（A的数据推给了B）
-//     * <p>
-//     * 由于（不可靠）推送机制的设计，（recvSuccess+recvWrong）通常小于pushCount，也就是说有数据丢失。
-//     * 原因是bind操作没有返回成功信息，所以测试程序发起绑定后推送服务器绑定成功前这段时间对这个id的推送数据会丢失（如果有重复id，这段时间的数据可能会推送错目标）
-//     * 实际使用时还要面临意外断线的情况，所以应该保证id不会重复，且对每一个推送在业务层验证送达。
-//     */
-    private void report() {
-        new Thread(() -> {
-            for (; ; ) {
-                synchronized (PushServer.this) {
-                    log("pendingSet: " + pendingSet.size());
-                    log("idAts: " + idAts.size());
-                    int duplicate = 0;
-                    for (Stack<TestAttachment> set : idAts.values()) {
-                        if (set.size() > 1)
-                            ++duplicate;
-                    }
-                    log("duplicate: " + duplicate);
+        private synchronized void join(int id) {
+            if (members.put(id, Boolean.TRUE) == null)
+                snapshot = null;
+        }
 
-                    log("pushCount: " + pushCount);
-                    log("recvSuccess: " + recvSuccess);
-                    log("recvWrong: " + recvWrong);
-                    log("socketCount: " + socketCount);
-                    log("\n");
-                }
-                try {
-                    TimeUnit.SECONDS.sleep(2);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    return;
+        private synchronized void leave(int id) {
+            if (members.remove(id) != null)
+                snapshot = null;
+        }
+
+        private int[] members() {
+            int[] ids = snapshot;
+            if (ids == null) {
+                synchronized (this) {
+                    ids = snapshot;
+                    if (ids == null) {
+                        ids = members.keys();
+                        snapshot = ids;
+                    }
                 }
             }
-        }).start();
+            return ids;
+        }
     }
 
-    private class TestAttachment {
-        int id = 0;
-        ByteBuffer writeBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
-        ByteBuffer readBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
-        byte[] buff = new byte[MAX_MESSAGE_SIZE];
-        SocketChannel channel;
-        final String msg = String.valueOf(hashCode());
+    private class StoreListener implements OfflineStore.Listener {
+        @Override
+        public boolean isOnline(int id) {
+            return lookup(id) != null;
+        }
 
-        private TestAttachment(SocketChannel channel) {
-            this.channel = channel;
+        @Override
+        public void onReplay(int id, List<Payload> payloads) {
+            Attachment at = lookup(id);
+            if (at == null) {
+                //重放前又断开了，放回存储
+                for (Payload payload : payloads) {
+                    store.append(id, payload);
+                }
+            } else {
+                at.reactor.execute(() -> at.replay(payloads));
+            }
         }
+    }
 
-        private int bind(int id) {
-            this.id = id;
-            writeBuffer.putInt(0, 9);
-            writeBuffer.put(4, (byte) 1);
-            writeBuffer.putInt(5, id);
-            writeBuffer.position(0);
-            writeBuffer.limit(9);
+    private void shutdown() {
+        running = false;
+        if (links != null) {
+            for (ClusterLink link : links) {
+                if (link != null)
+                    link.close();
+            }
+        }
+        if (store != null) {
+            store.close();
+        }
+        if (acceptSelector != null) {
             try {
-                return channel.write(writeBuffer);
-            } catch (IOException | NotYetConnectedException e) {
-                e.printStackTrace();
-                return -1;
+                acceptSelector.close();
+            } catch (IOException ignored) {
             }
         }
-
-        private void readable() {
+        if (server != null) {
             try {
-                String r = read();
-                if (r == null)
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+        logger.close();
+    }
+
+    /**
+     * 默认的transport：{@link #REACTOR_COUNT}个{@link Reactor}线程，连接按accept的顺序轮流分配
+     */
+    private class SelectorTransport implements Transport {
+        private int next = 0;
+
+        @Override
+        public void start() throws IOException {
+            Reactor[] reactors = new Reactor[REACTOR_COUNT];
+            for (int i = 0; i < REACTOR_COUNT; ++i) {
+                reactors[i] = new Reactor(i);
+            }
+            PushServer.this.reactors = reactors;
+            for (Reactor reactor : reactors) {
+                new Thread(reactor, "PushServer-reactor-" + reactor.index).start();
+            }
+        }
+
+        /**
+         * 跳过因为select异常退出的reactor，全部退出时抛出异常，由accept线程停止服务
+         */
+        @Override
+        public void register(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            for (int i = 0; i < REACTOR_COUNT; ++i) {
+                Reactor reactor = reactors[next];
+                next = (next + 1) % REACTOR_COUNT;
+                if (!reactor.stopped) {
+                    reactor.register(channel);
                     return;
-                if (r.equals(msg)) {
-                    //read success
-                    ++recvSuccess;
-                } else {
-                    //read failed
-                    ++recvWrong;
                 }
-            } catch (IOException e) {
-                //read failed
-                clear();
             }
+            throw new IOException("all reactors stopped");
         }
 
-        private void writable() {
-            if (writableSet.size() > 10 * TEST_LIMIT * Math.random()) {
-                clear();
-            } else if (id == 0 && Math.random() * TEST_LIMIT > idAts.size()) {//bind
-                while (id == 0 || (!DUPLICATE_ID && idAts.containsKey(id))) {
-                    id = (int) (TEST_LIMIT * Math.random());
-                }
-                if (bind(id) != 9) {
-                    log("send bind failed");
-                    return;
+        @Override
+        public String stats() {
+            if (reactors == null)
+                return "not started";
+            return snapshot(reactors).format(ids(), groupCount(), pool);
+        }
+
+        @Override
+        public void shutdown() {
+            if (reactors != null) {
+                for (Reactor reactor : reactors) {
+                    reactor.selector.wakeup();
                 }
-                Stack<TestAttachment> stack = idAts.computeIfAbsent(id, k -> new Stack<>());
-                stack.push(this);
-            } else {//push
-                int targetId = 0;
-                while (targetId == 0 && !writableSet.isEmpty()) {//这里有可能死循环
-                    targetId = writableSet.get((int) (Math.random() * writableSet.size())).id;
-                }
-                byte[] data = idAts.get(targetId).peek().msg.getBytes();
-                if (singlePush(targetId, data) != data.length + 9) {
-                    //push failed
-                    clear();
-                } else {
-                    ++pushCount;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "reactors: " + REACTOR_COUNT;
+        }
+    }
+
+    /**
+     * 一个selector线程，负责分配给它的连接的读、解析和写。
+     * 其他线程只能通过{@link #execute(Runnable)}与它交互，队列是无锁的。
+     * <p>
+     * 包内可见的部分是给bench模块用的：基准测试不启动reactor线程，直接在测试线程上调用{@link #read(Attachment)}。
+     */
+    class Reactor implements Runnable, TimingWheel.Handler {
+        private final int index;
+        private final Selector selector;
+        /**
+         * 这个reactor上所有连接的空闲超时，每轮select之后推进
+         */
+        private final TimingWheel wheel;
+        /**
+         * 本轮select返回的时间，毫秒
+         */
+        private long now;
+        private final Metrics metrics = new Metrics();
+        private final ByteBuffer buff = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        /**
+         * 直接写推送时用的消息头，写不完时会被复制
+         */
+        private final ByteBuffer header = ByteBuffer.allocate(16);
+        private final ByteBuffer[] gather = new ByteBuffer[32];
+        private final Compressor compressor = new Compressor(pool, MAX_MESSAGE_SIZE);
+        /**
+         * 扇出时收集不在线的id，交给离线存储
+         */
+        private int[] offline = new int[64];
+        /**
+         * 集群模式下扇出时按节点收集绑定在其他节点上的id，每个节点只转发一条
+         */
+        private int[][] routed;
+        private int[] routedCount;
+        /**
+         * 所有连接共用的读缓冲区，至少能在半个消息后面再放下一个完整的消息
+         */
+        private final ByteBuffer in = ByteBuffer.allocateDirect(Math.max(64 * 1024, 2 * MAX_MESSAGE_SIZE));
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * 其他reactor转交过来的高优先级推送，先于{@link #tasks}执行
+         */
+        private final Queue<Runnable> urgentTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeup = new AtomicBoolean();
+        /**
+         * 还没遍历完的广播，先开始的先推进
+         */
+        private final ArrayDeque<Walk> walks = new ArrayDeque<>();
+        /**
+         * 因为限速暂停读的连接，nextResume是其中最早的恢复时间
+         */
+        private final ArrayList<Attachment> throttled = new ArrayList<>();
+        private final ArrayList<Attachment> due = new ArrayList<>();
+        private long nextResume;
+        /**
+         * 循环已经退出，不再接收新的连接
+         */
+        private volatile boolean stopped;
+
+        Reactor(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.now = System.currentTimeMillis();
+            this.wheel = new TimingWheel(IDLE_TICK, 512, now);
+        }
+
+        private void execute(Runnable task) {
+            execute(task, false);
+        }
+
+        private void execute(Runnable task, boolean urgent) {
+            (urgent ? urgentTasks : tasks).offer(task);
+            if (wakeup.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        private void register(SocketChannel socketChannel) {
+            execute(() -> {
+                try {
+                    Attachment at = new Attachment(socketChannel, this);
+                    at.key = socketChannel.register(selector, SelectionKey.OP_READ, at);
+                    at.idle(idleTimeout);
+                    ++metrics.opened;
+                } catch (IOException | ClosedSelectorException e) {
+                    log("register exception: %s", e.getMessage());
+                    try {
+                        socketChannel.close();
+                    } catch (IOException ignored) {
+                    }
                 }
+            });
+        }
+
+        /**
+         * 把body作为一条推送发给target。target属于其他reactor时交给它的reactor去写，
+         * payload为null时先把body复制成一个{@link Payload}。
+         */
+        private void push(Attachment target, ByteBuffer body, Payload payload) {
+            push(target, body, payload, null, false);
+        }
+
+        /**
+         * @param urgent 见{@link #PRIORITY}
+         */
+        private void push(Attachment target, ByteBuffer body, Payload payload, Receipt receipt, boolean urgent) {
+            if (target.reactor == this) {
+                target.push(body, payload, receipt, urgent);
+                return;
             }
+            Payload shared = payload != null ? payload.retain() : Payload.copyOf(pool, body);
+            target.reactor.execute(() -> {
+                target.push(shared.view(), shared, receipt, urgent);
+                shared.release();
+            }, urgent);
         }
 
-        private void clear() {
-            Stack<TestAttachment> stack = idAts.get(id);
-            if (stack == null || !stack.contains(this)) {
-                if (id != 0)
-                    log(" stack == null || !stack.contains(this):  " + id);
-            } else {
-                stack.remove(this);
-                if (stack.isEmpty())
-                    idAts.remove(id);
+        /**
+         * 转发给peer所在的节点，连接断开或者积压太多时丢弃
+         *
+         * @return 是否转发成功
+         */
+        private boolean forward(Attachment peer, int id, ByteBuffer body, boolean urgent) {
+            if (links[peer.peer - 1].forward(id, body, urgent) > 0) {
+                ++metrics.forwarded;
+                return true;
             }
-            writableSet.remove(this);
-            try {
-                channel.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-        }
-
-        private String read() throws IOException {
-            if (readBuffer.position() < 4) {
-                readBuffer.limit(4);
-                if (channel.read(readBuffer) < 0)
-                    throw new IOException();
-                if (readBuffer.position() < 4) {
-                    //wait more data
-                    return null;
-                }
-            }
-            int len = readBuffer.getInt(0);
-            readBuffer.limit(len);
-            if (readBuffer.hasRemaining()) {
-                if (channel.read(readBuffer) < 0)
-                    throw new IOException();
-                if (readBuffer.hasRemaining()) {
-                    //wait more data.
-                    return null;
-                }
-            }
-            readBuffer.position(4);
-            readBuffer.get(buff, 0, len - 4);
-            readBuffer.clear();
-            return new String(buff, 0, len - 4);
-        }
-
-        private int singlePush(int id, byte[] data) {
-            int len = 9 + data.length;
-            if (len > MAX_MESSAGE_SIZE)
-                return -1;
-            writeBuffer.limit(len);
-            writeBuffer.position(0);
-            writeBuffer.putInt(len);
-            writeBuffer.put((byte) 2);
-            writeBuffer.putInt(id);
-            writeBuffer.put(data);
-            writeBuffer.position(0);
-            try {
-                return channel.write(writeBuffer);
-            } catch (IOException e) {
-                return -1;
+            ++metrics.forwardDropped;
+            return false;
+        }
+
+        /**
+         * 把一个完整的消息原样写给target，不经过推送的seq和确认
+         */
+        private void relay(Attachment target, ByteBuffer frame) {
+            ++metrics.framesOut[frame.get(frame.position() + 4)];
+            if (target.reactor == this) {
+                target.write(frame);
+                return;
+            }
+            Payload payload = Payload.copyOf(pool, frame);
+            int size = payload.size();
+            RELAYING.addAndGet(target, size);
+            target.reactor.execute(() -> {
+                if (target.channel.isOpen())
+                    target.write(null, payload.view(), payload);
+                payload.release();
+                RELAYING.addAndGet(target, -size);
+                target.drained();
+            });
+        }
+
+        /**
+         * 把同一个payload发给ids中的每个在线目标，不管目标有多少，payload只有一份。
+         *
+         * @param route 为false时只发给本节点上的连接，其他节点转发过来的推送不再转发
+         */
+        private void fanOut(Payload payload, IntBuffer ids, boolean route, boolean urgent) {
+            ByteBuffer view = payload.view();
+            int offlineCount = 0;
+            boolean routing = false;
+            metrics.fanOut.record(ids.remaining());
+            while (ids.hasRemaining()) {
+                int id = ids.get();
+                Attachment target = route && links != null ? locate(id) : lookup(id);
+                if (target != null && target.peer != 0) {
+                    if (routed == null) {
+                        routed = new int[links.length][16];
+                        routedCount = new int[links.length];
+                    }
+                    int n = target.peer - 1;
+                    if (routedCount[n] == routed[n].length)
+                        routed[n] = Arrays.copyOf(routed[n], routedCount[n] * 2);
+                    routed[n][routedCount[n]++] = id;
+                    routing = true;
+                } else if (target != null) {
+                    view.position(0);
+                    push(target, view, payload, null, urgent);
+                } else if (store != null) {
+                    if (offlineCount == offline.length)
+                        offline = Arrays.copyOf(offline, offlineCount * 2);
+                    offline[offlineCount++] = id;
+                } else {
+                    ++metrics.offlineDropped;
+                }
+            }
+            if (offlineCount > 0) {
+                metrics.offlineStored += offlineCount;
+                store.append(offline, offlineCount, payload.retain());
+            }
+            if (routing) {
+                view.position(0);
+                for (int n = 0; n < routedCount.length; ++n) {
+                    if (routedCount[n] == 0)
+                        continue;
+                    int frames = links[n].forward(routed[n], routedCount[n], view, urgent);
+                    if (frames > 0)
+                        metrics.forwarded += frames;
+                    else
+                        metrics.forwardDropped += routedCount[n];
+                    routedCount[n] = 0;
+                }
             }
         }
+
+        /**
+         * 把body广播给所有reactor上绑定了id的连接，sender为null时是其他节点转发过来的，不再转发也不报告进度
+         */
+        private void broadcast(Attachment sender, int tag, ByteBuffer body) {
+            int forwarded = 0;
+            if (sender != null && links != null) {
+                for (ClusterLink link : links) {
+                    if (link == null)
+                        continue;
+                    if (link.broadcast(body))
+                        ++forwarded;
+                    else
+                        ++metrics.forwardDropped;
+                }
+                metrics.forwarded += forwarded;
+            }
+            Broadcast broadcast = new Broadcast(sender, tag, Payload.copyOf(pool, body), forwarded);
+            for (Reactor reactor : reactors) {
+                if (reactor.stopped)
+                    broadcast.finish();
+                else
+                    reactor.execute(() -> reactor.walks.offer(new Walk(broadcast)));
+            }
+        }
+
+        /**
+         * 每轮select之后推进还没遍历完的广播，一共最多访问{@link #broadcastBudget}个连接
+         */
+        private void pace() {
+            int budget = broadcastBudget;
+            Walk walk;
+            while (budget > 0 && (walk = walks.peek()) != null) {
+                if (walk.keys == null)
+                    walk.keys = selector.keys().toArray(new SelectionKey[0]);
+                Broadcast broadcast = walk.broadcast;
+                ByteBuffer view = broadcast.payload.view();
+                int end = Math.min(walk.keys.length, walk.next + budget);
+                int count = 0;
+                budget -= end - walk.next;
+                while (walk.next < end) {
+                    Attachment target = (Attachment) walk.keys[walk.next].attachment();
+                    walk.keys[walk.next++] = null;
+                    if (target.id == 0 || target.peer != 0 || !target.channel.isOpen())
+                        continue;
+                    view.position(0);
+                    target.push(view, broadcast.payload, null, false);
+                    ++count;
+                }
+                broadcast.progress(now, count);
+                if (walk.next == walk.keys.length) {
+                    walks.poll();
+                    broadcast.finish();
+                }
+            }
+        }
+
+        /**
+         * 先执行高优先级的任务，但连续{@link #FAIR_SHARE}个之后执行一个普通的
+         */
+        private void runTasks() {
+            int streak = 0;
+            for (; ; ) {
+                Runnable task = streak < FAIR_SHARE ? urgentTasks.poll() : null;
+                if (task != null) {
+                    ++streak;
+                } else {
+                    streak = 0;
+                    if ((task = tasks.poll()) == null && (task = urgentTasks.poll()) == null)
+                        return;
+                }
+                task.run();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (walks.isEmpty()) {
+                        selector.select(selectTimeout());
+                    } else {
+                        //还有广播没写完，不等待
+                        selector.selectNow();
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    //只影响这个reactor上的连接，其他reactor和accept线程继续运行
+                    log("select exception: %s", e.getMessage());
+                    break;
+                }
+                now = System.currentTimeMillis();
+                wakeup.set(false);
+                runTasks();
+                wheel.advance(now, this);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        // 这里的key之所以可能invalid是因为，在循环select的key集合时，先处理的key可能close了后处理的key的channel，
+                        // 具体场景是先处理的key绑定了后处理key的id，导致后处理的key的channel被close。
+                        continue;
+                    }
+                    Attachment at = (Attachment) key.attachment();
+                    if (key.isWritable() && !at.flush()) {
+                        //broken pipe
+                        continue;
+                    }
+                    if (key.isReadable() && !at.paused) {
+                        read(at);
+                    }
+                }
+                selector.selectedKeys().clear();
+                resumeThrottled();
+                pace();
+            }
+            stopped = true;
+            //退出前转交过来的任务：注册的连接随后被关闭，推送按目标已断开处理
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((Attachment) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            //stopped之前选中这个reactor的任务
+            runTasks();
+            Walk walk;
+            while ((walk = walks.poll()) != null) {
+                walk.broadcast.finish();
+            }
+            compressor.end();
+        }
+
+        /**
+         * 读的时候只更新{@link Attachment#lastActive}，不动时间轮，到期时再按最后活跃的时间决定断开还是重新排期
+         */
+        @Override
+        public void onTimeout(TimingWheel.Timeout timeout) {
+            Attachment at = (Attachment) timeout;
+            if (!at.channel.isOpen() || at.idleTimeout == 0)
+                return;
+            long idle = now - at.lastActive;
+            if (idle < at.idleTimeout) {
+                wheel.schedule(at, at.idleTimeout - idle);
+            } else {
+                log("idle timeout, id: %d, idle: %dms", at.id, idle);
+                ++metrics.idleEvicted;
+                at.unbind();
+                at.close();
+            }
+        }
+
+        /**
+         * 一次读尽量多的数据，处理其中所有完整的消息，剩下的半个消息复制到连接借用的缓冲区里，
+         * 下次可读时先拷回{@link #in}再接着读。
+         */
+        void read(Attachment at) {
+            in.clear();
+            if (at.byteBuffer != null) {
+                at.byteBuffer.flip();
+                in.put(at.byteBuffer);
+                at.release();
+            }
+            int before = in.position();
+            if (!at.read(in)) {
+                //broken pipe
+                return;
+            }
+            metrics.bytesIn += in.position() - before;
+            at.lastActive = now;
+            in.flip();
+            int end = in.limit();
+            int len = 0;
+            while (in.remaining() >= 4) {
+                int start = in.position();
+                len = in.getInt(start);
+                if (len > MAX_MESSAGE_SIZE || len < 5) {
+                    //invalid len
+                    log("invalid len: %d", len);
+                    at.unbind();
+                    at.close();
+                    return;
+                }
+                if (in.remaining() < len) {
+                    break;//wait more data
+                }
+                in.limit(start + len);
+                int cmd = baseCmd(in.get(start + 4) & 0xff);
+                long t = System.nanoTime();
+                if (buckets > 0 && at.peer == 0 && throttle(at, cmd, start, len, t)) {
+                    in.limit(end).position(start);
+                    break;
+                }
+                dispatch(at, start, len);
+                metrics.dispatchNanos.record(System.nanoTime() - t);
+                if (!at.paused)
+                    metrics.frameIn(cmd);
+                if (!at.channel.isOpen()) {
+                    return;
+                }
+                if (at.paused) {
+                    //这个消息没处理，和后面的数据一起留到恢复读的时候
+                    in.limit(end).position(start);
+                    break;
+                }
+                in.limit(end).position(start + len);
+            }
+            if (in.hasRemaining()) {
+                at.byteBuffer = pool.acquire(at.paused || in.remaining() < 4 ? in.remaining() : len);
+                at.byteBuffer.put(in);
+            }
+        }
+
+        /**
+         * 按限速检查{@link #in}中还没处理的一个消息，超过时暂停读这个连接，到时间后从这个消息开始继续处理。
+         * 所有桶都允许时才一起扣除，暂停的消息恢复后重新检查，不会重复扣除。
+         *
+         * @return 是否暂停了
+         */
+        private boolean throttle(Attachment at, int cmd, int start, int len, long t) {
+            if (at.tats == null) {
+                at.tats = new long[buckets];
+                Arrays.fill(at.tats, t);
+            }
+            RateLimit limit = cmd < rateLimits.length ? rateLimits[cmd] : null;
+            long wait = limit != null ? limit.delay(at.tats[rateSlots[cmd]], t, 1) : 0;
+            int targets = fanOutLimit != null ? targets(cmd, start, len) : 0;
+            long fanOutWait = targets > 0 ? fanOutLimit.delay(at.tats[buckets - 1], t, targets) : 0;
+            if (wait > 0 || fanOutWait > 0) {
+                if (wait > 0)
+                    ++metrics.throttled;
+                else
+                    ++metrics.fanOutThrottled;
+                at.pauseRead();
+                at.resumeAt = t + Math.max(wait, fanOutWait);
+                if (throttled.isEmpty() || at.resumeAt - nextResume < 0)
+                    nextResume = at.resumeAt;
+                throttled.add(at);
+                return true;
+            }
+            if (limit != null)
+                at.tats[rateSlots[cmd]] = limit.charge(at.tats[rateSlots[cmd]], t, 1);
+            if (targets > 0)
+                at.tats[buckets - 1] = fanOutLimit.charge(at.tats[buckets - 1], t, targets);
+            return false;
+        }
+
+        /**
+         * 一个推送类消息的目标数，参数不合法时由{@link #dispatch}处理，这里算0
+         */
+        private int targets(int cmd, int start, int len) {
+            switch (cmd) {
+                case 2:
+                case 12:
+                    return 1;
+                case 3:
+                    return len < 9 ? 0 : Math.max(0, Math.min(in.getInt(start + 5), (len - 9) / 4));
+                case 9:
+                    Group group = len < 9 ? null : group(in.getInt(start + 5));
+                    return group == null ? 0 : group.members().length;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * 恢复到时间的被限速的连接，它们留下的数据马上接着处理
+         */
+        private void resumeThrottled() {
+            if (throttled.isEmpty() || nextResume - System.nanoTime() > 0)
+                return;
+            long t = System.nanoTime();
+            long next = 0;
+            boolean waiting = false;
+            //从后往前，换到i位置上的元素已经检查过
+            for (int i = throttled.size() - 1; i >= 0; --i) {
+                Attachment at = throttled.get(i);
+                if (at.resumeAt - t <= 0 || !at.channel.isOpen()) {
+                    throttled.set(i, throttled.get(throttled.size() - 1));
+                    throttled.remove(throttled.size() - 1);
+                    due.add(at);
+                } else if (!waiting || at.resumeAt - next < 0) {
+                    next = at.resumeAt;
+                    waiting = true;
+                }
+            }
+            nextResume = next;
+            //恢复时可能再次被限速，加入throttled
+            for (Attachment at : due) {
+                at.resume();
+            }
+            due.clear();
+        }
+
+        /**
+         * 有被限速的连接时，最多等到最早的那个该恢复的时候
+         */
+        private long selectTimeout() {
+            long timeout = wheel.isEmpty() ? 0 : IDLE_TICK;
+            if (!throttled.isEmpty()) {
+                long wait = Math.max(1, (nextResume - System.nanoTime() + 999_999) / 1_000_000);
+                timeout = timeout == 0 ? wait : Math.min(timeout, wait);
+            }
+            return timeout;
+        }
+
+        /**
+         * 处理{@link #in}中[start, start+len)的一个完整消息，处理过程中可以修改这段数据。
+         */
+        private void dispatch(Attachment at, int start, int len) {
+            int cmd = baseCmd(in.get(start + 4) & 0xff);
+            boolean urgent = cmd != (in.get(start + 4) & 0xff);
+            switch (cmd) {
+                default://unknown cmd
+                    log("unknown cmd: %d", in.get(start + 4));
+                    at.unbind();
+                    at.close();
+                    break;
+                case 0://echo
+                    if ((at.features & FEATURE_V2) != 0) {
+                        //原样返回就是[len][0][data]
+                        in.position(start);
+                    } else {
+                        in.putInt(start + 1, len - 1);
+                        in.position(start + 1);
+                    }
+                    ++metrics.framesOut[0];
+                    if (!at.write(in)) {
+                        //broken pipe
+                    }
+                    break;
+                case 1://bind
+                    if (at.id != 0) {//already bind
+                        log("already bind: %d", at.id);
+                        at.unbind();
+                        at.close();
+                    } else if (len != 9) {//invalid param
+                        log("bind invalid param, len(%d)!=9", len);
+                        at.close();
+                    } else {
+                        int id = in.getInt(start + 5);
+                        if (id == 0) {//invalid param
+                            log("bind invalid param, id=0");
+                            at.close();
+                        } else {
+                            at.id = id;
+                            if (store != null) {
+                                //重放完之前收到的推送先暂存，保证离线消息在前
+                                at.replaying = true;
+                            }
+                            Attachment prev = bindId(id, at);
+                            if (prev != null) {
+                                if (prev.reactor == this) {
+                                    prev.close();
+                                } else {
+                                    prev.reactor.execute(prev::close);
+                                }
+                            }
+                            if ((at.features & FEATURE_V2) != 0) {
+                                buff.clear();
+                                buff.putInt(9);
+                                buff.put((byte) 1);
+                                buff.putInt(id);
+                                buff.flip();
+                                ++metrics.framesOut[1];
+                                at.write(buff);
+                            }
+                            if (store != null) {
+                                store.replay(id);
+                            }
+                        }
+                    }
+                    break;
+                case 2://single push
+                    if (len < 9) {
+                        log("single push invalid param, len(%d)<9", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        int id = in.getInt(start + 5);
+                        Attachment target = links != null ? locate(id) : lookup(id);
+                        in.position(start + 9);
+                        if (target != null && target.peer != 0) {
+                            forward(target, id, in, urgent);
+                        } else if (target != null) {
+                            push(target, in, null, null, urgent);
+                        } else if (store != null) {
+                            ++metrics.offlineStored;
+                            store.append(id, Payload.copyOf(pool, in));
+                        } else {
+                            ++metrics.offlineDropped;
+                        }
+                    }
+                    break;
+                case 3://multi push
+                    if (len < 9) {
+                        log("multi push invalid param, len(%d)<9", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        int num = in.getInt(start + 5);
+                        if (num < 0 || num > (len - 9) / 4) {
+                            log("multi push invalid param, len(%d)<9+num(%d)*4", len, num);
+                            at.unbind();
+                            at.close();
+                        } else {
+                            in.limit(start + 9 + num * 4).position(start + 9);
+                            IntBuffer ids = in.asIntBuffer();
+                            in.limit(start + len).position(start + 9 + num * 4);
+                            Payload payload = Payload.copyOf(pool, in);
+                            fanOut(payload, ids, true, urgent);
+                            payload.release();
+                        }
+                    }
+                    break;
+                case 11://ack [seq]
+                    if (len != 9 || (at.features & FEATURE_V2) == 0) {
+                        log("ack invalid param, len(%d)!=9 or not v2", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        at.ack(in.getInt(start + 5));
+                    }
+                    break;
+                case 22://stream chunk [id][stream][index][flags][data]
+                    if (len < 18 || (at.features & FEATURE_V2) == 0) {
+                        log("stream chunk invalid param, len(%d)<18 or not v2", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        Attachment target = lookup(in.getInt(start + 5));
+                        if (target == null || (target.features & FEATURE_V2) == 0) {
+                            ++metrics.offlineDropped;
+                        } else if (target.backlog() + len > outboundLimit) {
+                            //目标收得慢，先不读这个发送者，等目标的积压降下来再继续
+                            at.pause(target);
+                        } else {
+                            //原地把id换成source，整个消息原样转发
+                            in.putInt(start + 5, at.serial);
+                            in.position(start);
+                            relay(target, in);
+                        }
+                    }
+                    break;
+                case 12://single push with result [tag][id][data]
+                    if (len < 13 || (at.features & FEATURE_V2) == 0) {
+                        log("push with result invalid param, len(%d)<13 or not v2", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        Receipt receipt = new Receipt(at, in.getInt(start + 5));
+                        int id = in.getInt(start + 9);
+                        Attachment target = links != null ? locate(id) : lookup(id);
+                        in.position(start + 13);
+                        if (target != null && target.peer != 0) {
+                            receipt.report(this, forward(target, id, in, urgent) ? RESULT_FORWARDED : RESULT_LOST);
+                        } else if (target != null) {
+                            push(target, in, null, receipt, urgent);
+                        } else if (store != null) {
+                            ++metrics.offlineStored;
+                            store.append(id, Payload.copyOf(pool, in));
+                            receipt.report(this, RESULT_STORED);
+                        } else {
+                            ++metrics.offlineDropped;
+                            receipt.report(this, RESULT_OFFLINE);
+                        }
+                    }
+                    break;
+                case 6://create group
+                    if (len != 9 || in.getInt(start + 5) == 0) {
+                        log("create group invalid param, len(%d)!=9 or group=0", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        int groupId = in.getInt(start + 5);
+                        synchronized (groups) {
+                            if (groups.get(groupId) == null)
+                                groups.put(groupId, new Group());
+                        }
+                    }
+                    break;
+                case 7://join group
+                case 8://leave group
+                    //不带id时加入或离开的是自己
+                    if (len < 9 || (len - 9) % 4 != 0 || (len == 9 && at.id == 0) || in.getInt(start + 5) == 0) {
+                        log("join/leave group invalid param, len(%d), id(%d)", len, at.id);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        //离开不存在的分组什么也不用做，加入时创建
+                        Group group = in.get(start + 4) == 7 ? groupForJoin(in.getInt(start + 5)) : group(in.getInt(start + 5));
+                        if (group == null) {
+                            //not exist
+                        } else if (len == 9) {
+                            if (in.get(start + 4) == 7)
+                                group.join(at.id);
+                            else
+                                group.leave(at.id);
+                        } else {
+                            for (int i = start + 9; i < start + len; i += 4) {
+                                int id = in.getInt(i);
+                                if (id == 0)
+                                    continue;
+                                if (in.get(start + 4) == 7)
+                                    group.join(id);
+                                else
+                                    group.leave(id);
+                            }
+                        }
+                    }
+                    break;
+                case 9://publish to group
+                    if (len < 9) {
+                        log("publish invalid param, len(%d)<9", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        Group group = group(in.getInt(start + 5));
+                        if (group != null) {
+                            in.position(start + 9);
+                            Payload payload = Payload.copyOf(pool, in);
+                            fanOut(payload, IntBuffer.wrap(group.members()), true, urgent);
+                            payload.release();
+                        }
+                    }
+                    break;
+                case 10://delete group
+                    if (len != 9) {
+                        log("delete group invalid param, len(%d)!=9", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        synchronized (groups) {
+                            groups.remove(in.getInt(start + 5));
+                        }
+                    }
+                    break;
+                case 4://get buffer size in bytes, [features]
+                    if (len != 5 && len != 9) {
+                        log("get buffer size invalid param, len(%d)!=5 and len(%d)!=9", len, len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        buff.clear();
+                        if (len == 5) {
+                            buff.putInt(8);
+                            buff.putInt(MAX_MESSAGE_SIZE);
+                        } else {
+                            at.features = in.getInt(start + 5) & SUPPORTED_FEATURES;
+                            if ((at.features & FEATURE_V2) == 0)
+                                at.features = 0;
+                            buff.putInt(12);
+                            buff.putInt(MAX_MESSAGE_SIZE);
+                            buff.putInt(at.features);
+                        }
+                        buff.flip();
+                        ++metrics.framesOut[4];
+                        if (!at.write(buff)) {
+                            //broken pipe
+                        }
+                    }
+                    break;
+                case 13://heartbeat [idle seconds]
+                    if (len != 5 && len != 9) {
+                        log("heartbeat invalid param, len(%d)!=5 and len(%d)!=9", len, len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        if (len == 9) {
+                            //客户端指定自己连接的空闲时间，0表示用服务端的设置
+                            int seconds = in.getInt(start + 5);
+                            if (seconds <= 0)
+                                at.idle(idleTimeout);
+                            else
+                                at.idle(TimeUnit.SECONDS.toMillis(Math.min(seconds, MAX_IDLE_SECONDS)));
+                        }
+                        buff.clear();
+                        if ((at.features & FEATURE_V2) != 0) {
+                            buff.putInt(5);
+                            buff.put((byte) 13);
+                        } else {
+                            //空的消息
+                            buff.putInt(4);
+                        }
+                        buff.flip();
+                        ++metrics.framesOut[13];
+                        if (!at.write(buff)) {
+                            //broken pipe
+                        }
+                    }
+                    break;
+                case 14://stats
+                    InetAddress peer = at.channel.socket().getInetAddress();
+                    if (len != 5 || peer == null || !peer.isLoopbackAddress()) {
+                        //只允许本机的管理工具查询
+                        log("stats invalid param, len(%d)!=5 or not loopback", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        boolean v2 = (at.features & FEATURE_V2) != 0;
+                        ByteBuffer snapshot = ByteBuffer.allocate(5 + Metrics.maxSize());
+                        snapshot.position(v2 ? 5 : 4);
+                        snapshot(reactors).write(snapshot, ids(), groupCount(), pool);
+                        snapshot.putInt(0, snapshot.position());
+                        if (v2)
+                            snapshot.put(4, (byte) 14);
+                        snapshot.flip();
+                        ++metrics.framesOut[14];
+                        if (!at.write(snapshot)) {
+                            //broken pipe
+                        }
+                    }
+                    break;
+                case 15://cluster hello [node][key]
+                    if (len != 17 || node < 0 || at.peer != 0 || at.id != 0 || in.getLong(start + 9) != clusterKey
+                            || in.getInt(start + 5) < 0 || in.getInt(start + 5) >= nodes.length
+                            || in.getInt(start + 5) == node) {
+                        log("cluster hello invalid param, len(%d)!=17 or bad node(%d)/key", len, in.getInt(start + 5));
+                        at.unbind();
+                        at.close();
+                    } else {
+                        at.peer = in.getInt(start + 5) + 1;
+                        //节点之间的连接只发不收，没有心跳
+                        at.idle(0);
+                        log("cluster node %d joined", at.peer - 1);
+                    }
+                    break;
+                case 16://cluster bind [id * n]
+                case 17://cluster unbind [id * n]
+                    if (at.peer == 0 || (len - 5) % 4 != 0) {
+                        log("cluster bind/unbind invalid param, len(%d) or not a peer", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        boolean bind = in.get(start + 4) == 16;
+                        for (int i = start + 5; i < start + len; i += 4) {
+                            int id = in.getInt(i);
+                            if (id == 0)
+                                continue;
+                            if (bind)
+                                bindRemote(id, at);
+                            else
+                                unbindRemote(id, at);
+                        }
+                    }
+                    break;
+                case 18://forwarded multi push [num][ids][data]
+                    if (at.peer == 0 || len < 9 || in.getInt(start + 5) < 0 || in.getInt(start + 5) > (len - 9) / 4) {
+                        log("forwarded multi push invalid param, len(%d) or not a peer", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        int num = in.getInt(start + 5);
+                        in.limit(start + 9 + num * 4).position(start + 9);
+                        IntBuffer ids = in.asIntBuffer();
+                        in.limit(start + len).position(start + 9 + num * 4);
+                        Payload payload = Payload.copyOf(pool, in);
+                        fanOut(payload, ids, false, urgent);
+                        payload.release();
+                    }
+                    break;
+                case 19://forwarded single push [id][data]
+                    if (at.peer == 0 || len < 9) {
+                        log("forwarded single push invalid param, len(%d) or not a peer", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        int id = in.getInt(start + 5);
+                        Attachment target = lookup(id);
+                        in.position(start + 9);
+                        if (target != null) {
+                            push(target, in, null, null, urgent);
+                        } else if (store != null) {
+                            ++metrics.offlineStored;
+                            store.append(id, Payload.copyOf(pool, in));
+                        } else {
+                            ++metrics.offlineDropped;
+                        }
+                    }
+                    break;
+                case 21://broadcast [tag][data]
+                    if (len < 9 || (at.features & FEATURE_V2) == 0) {
+                        log("broadcast invalid param, len(%d)<9 or not v2", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        in.position(start + 9);
+                        broadcast(at, in.getInt(start + 5), in);
+                    }
+                    break;
+                case 23://forwarded broadcast [data]
+                    if (at.peer == 0) {
+                        log("forwarded broadcast from a non-peer");
+                        at.unbind();
+                        at.close();
+                    } else {
+                        in.position(start + 5);
+                        broadcast(null, 0, in);
+                    }
+                    break;
+                case 5://get ip
+                    InetAddress inetAddress = at.channel.socket().getInetAddress();
+                    if (len != 5 || inetAddress == null) {
+                        log("get ip invalid param, len(%d)!=5 or inetAddress == null", len);
+                        at.unbind();
+                        at.close();
+                    } else {
+                        byte[] address = inetAddress.getHostAddress().getBytes();
+                        buff.clear();
+                        if ((at.features & FEATURE_V2) != 0) {
+                            buff.putInt(address.length + 5);
+                            buff.put((byte) 5);
+                        } else {
+                            buff.putInt(address.length + 4);
+                        }
+                        buff.put(address);
+                        buff.flip();
+                        ++metrics.framesOut[5];
+                        if (!at.write(buff)) {
+                            //broken pipe
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 只在所属的{@link Reactor}线程上读写，{@link #id}在bind之后不再改变。
+     */
+    class Attachment extends TimingWheel.Timeout {
+        int id = 0;
+        private final int serial = nextSerial.incrementAndGet();
+        /**
+         * 上次读到的半个消息，从{@link #pool}借来，消息凑完整就归还
+         */
+        ByteBuffer byteBuffer;
+        SocketChannel channel;
+        SelectionKey key;
+        final Reactor reactor;
+        /**
+         * 还没写出去的消息，每个元素是一条消息剩下的部分
+         */
+        private final ArrayDeque<Outbound> outbound = new ArrayDeque<>();
+        private volatile int outboundBytes = 0;
+        /**
+         * 发送队列里已经有数据时，推送先按优先级在这两条通道里排队，发送队列快写完时再取出来分配seq，
+         * 这样seq在连接上仍然是递增的，累计确认不受影响
+         */
+        private final ArrayDeque<Inflight> urgent = new ArrayDeque<>();
+        private final ArrayDeque<Inflight> bulk = new ArrayDeque<>();
+        private volatile int laneBytes = 0;
+        /**
+         * 普通通道有推送在等时，连续从高优先级通道取出的推送数
+         */
+        private int streak = 0;
+        /**
+         * 其他reactor转交过来、还没写进发送队列的分片字节数，见{@link #RELAYING}
+         */
+        volatile int relaying = 0;
+        /**
+         * 转发分片时因为目标积压太多，或者超过限速暂停了读，只在所属reactor上访问
+         */
+        private boolean paused = false;
+        /**
+         * 限速的桶，见{@link RateLimit}，第一次需要时分配
+         */
+        private long[] tats;
+        /**
+         * 因为限速暂停读时，恢复的时间，nanoTime
+         */
+        private long resumeAt;
+        /**
+         * 等这个连接的积压降下来的分片发送者，只在所属reactor上访问
+         */
+        private ArrayList<Attachment> waiters;
+        /**
+         * 正在等离线消息重放，这期间的推送暂存在deferred里
+         */
+        private boolean replaying = false;
+        private final ArrayDeque<Inflight> deferred = new ArrayDeque<>();
+        /**
+         * 协商后的特性，见{@link #FEATURE_V2}
+         */
+        private int features = 0;
+        /**
+         * 这次绑定发出的最后一个推送的seq
+         */
+        private int seq = 0;
+        /**
+         * 已经发出（或在发送队列中）但还没被确认的推送，只有v2连接才有
+         */
+        private final ArrayDeque<Inflight> inflight = new ArrayDeque<>();
+        /**
+         * 最后一次读到数据的时间，毫秒
+         */
+        private long lastActive;
+        /**
+         * 允许的最长空闲毫秒数，0表示不检测
+         */
+        private long idleTimeout = 0;
+        /**
+         * 其他节点连过来的连接是节点序号+1，普通客户端是0
+         */
+        private int peer = 0;
+
+        Attachment(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.lastActive = reactor.now;
+        }
+
+        private void idle(long timeout) {
+            idleTimeout = timeout;
+            if (timeout > 0)
+                reactor.wheel.schedule(this, timeout - (reactor.now - lastActive));
+            else
+                reactor.wheel.cancel(this);
+        }
+
+        private boolean read(ByteBuffer dst) {
+            int len;
+            try {
+                len = channel.read(dst);
+            } catch (IOException e) {
+                len = -1;
+            }
+            if (len >= 0) {
+                return true;
+            }
+            unbind();
+            close();
+            return false;
+        }
+
+        /**
+         * 写不完的部分会复制到发送队列里，src可以在返回后立即复用。
+         *
+         * @return false表示连接已经被关闭
+         */
+        boolean write(ByteBuffer src) {
+            return write(null, src, null);
+        }
+
+        /**
+         * 发送一条推送，消息头是4字节的长度，v2连接的消息头是[len][2][seq]。
+         *
+         * @param payload 不为null时body是payload的视图，写不完时发送队列只引用payload，不复制；
+         *                为null时body在返回后可能被修改，写不完的部分会被复制
+         * @param receipt 不为null时把推送结果告诉发送者
+         * @return false表示连接已经被关闭
+         */
+        private boolean push(ByteBuffer body, Payload payload, Receipt receipt, boolean urgent) {
+            if (!channel.isOpen()) {
+                //其他reactor转交过来之前就已经断开了
+                undeliverable(body, payload, receipt);
+                return false;
+            }
+            if (replaying || !outbound.isEmpty() || laneBytes > 0) {
+                Inflight pending = new Inflight(0, payload != null ? payload.retain() : Payload.copyOf(pool, body), receipt, urgent);
+                if (replaying) {
+                    deferred.offer(pending);
+                    return true;
+                }
+                return queue(pending);
+            }
+            return send(body, payload, receipt, false);
+        }
+
+        /**
+         * 按优先级放进通道，超过发送队列的上限时按溢出策略处理，DROP_OLDEST先丢普通通道里最早的推送
+         *
+         * @return false表示连接已经被关闭
+         */
+        private boolean queue(Inflight pending) {
+            int size = laneSize(pending);
+            if (outboundBytes + laneBytes + size > outboundLimit) {
+                switch (overflowPolicy) {
+                    case CLOSE:
+                        log("outbound overflow, id: %d, pending: %d", id, outboundBytes + laneBytes);
+                        //和通道里的推送一起在close时放回离线存储
+                        bulk.offer(pending);
+                        unbind();
+                        close();
+                        return false;
+                    case DROP_NEWEST:
+                        drop(pending);
+                        return true;
+                    case DROP_OLDEST:
+                        Inflight oldest;
+                        while (outboundBytes + laneBytes + size > outboundLimit && (oldest = bulk.poll()) != null) {
+                            laneBytes -= laneSize(oldest);
+                            drop(oldest);
+                        }
+                        if (outboundBytes + laneBytes + size > outboundLimit) {
+                            drop(pending);
+                            return true;
+                        }
+                        break;
+                }
+            }
+            (pending.urgent ? urgent : bulk).offer(pending);
+            laneBytes += size;
+            return true;
+        }
+
+        /**
+         * 算上消息头，取出来放进发送队列时不会超过排队时检查过的上限
+         */
+        private int laneSize(Inflight pending) {
+            return pending.payload.size() + 9;
+        }
+
+        private void drop(Inflight pending) {
+            ++reactor.metrics.overflowDropped;
+            pending.payload.release();
+            if (pending.receipt != null)
+                pending.receipt.report(reactor, RESULT_LOST);
+        }
+
+        /**
+         * 发送队列里的消息少于半个gather时，从通道里取推送补进去，高优先级的先取，但不超过{@link #FAIR_SHARE}个连续
+         */
+        private void fill() {
+            int max = reactor.gather.length / 2;
+            while (outbound.size() < max && laneBytes > 0) {
+                Inflight next;
+                if (!urgent.isEmpty() && (bulk.isEmpty() || streak < FAIR_SHARE)) {
+                    next = urgent.poll();
+                    streak = bulk.isEmpty() ? 0 : streak + 1;
+                } else {
+                    next = bulk.poll();
+                    streak = 0;
+                }
+                laneBytes -= laneSize(next);
+                send(next.payload.view(), next.payload, next.receipt, true);
+                next.payload.release();
+            }
+        }
+
+        /**
+         * @param queue 为true时只放进发送队列，由{@link #flush()}和其他消息一起写
+         */
+        private boolean send(ByteBuffer body, Payload payload, Receipt receipt, boolean queue) {
+            ByteBuffer header = reactor.header;
+            header.clear();
+            if ((features & FEATURE_V2) == 0) {
+                ++reactor.metrics.framesOut[2];
+                header.putInt(body.remaining() + 4);
+                header.flip();
+                boolean open = queue ? enqueue(header, body, payload, false) : write(header, body, payload);
+                if (receipt != null)
+                    receipt.report(reactor, open ? RESULT_WRITTEN : RESULT_LOST);
+                return open;
+            }
+            //保留一份引用，等确认或者断开时放回离线存储
+            if (payload == null) {
+                payload = Payload.copyOf(pool, body);
+                body = payload.view();
+            } else {
+                payload.retain();
+            }
+            Inflight sent = new Inflight(++seq, payload, receipt);
+            inflight.offer(sent);
+            if (inflight.size() > MAX_INFLIGHT) {
+                Inflight oldest = inflight.poll();
+                oldest.payload.release();
+                if (oldest.receipt != null)
+                    oldest.receipt.report(reactor, RESULT_WRITTEN);
+            }
+            //inflight中保留的是原始的内容，断开时放回离线存储
+            byte type = 2;
+            if ((features & FEATURE_DEFLATE) != 0) {
+                Payload compressed = payload.compressed(reactor.compressor);
+                if (compressed != null) {
+                    payload = compressed;
+                    body = compressed.view();
+                    type = 20;
+                }
+            }
+            ++reactor.metrics.framesOut[type];
+            header.putInt(body.remaining() + 9);
+            header.put(type);
+            header.putInt(seq);
+            header.flip();
+            boolean open = queue ? enqueue(header, body, payload, false) : write(header, body, payload);
+            if (!open && inflight.peekLast() == sent) {
+                //写失败时close()会清空inflight，还在说明连接之前就已经关闭了
+                inflight.pollLast();
+                undeliverable(null, sent.payload, receipt);
+                sent.payload.release();
+            }
+            return open;
+        }
+
+        /**
+         * 推送到达时连接已经断开：有离线存储时放回存储，重新绑定后再发，否则丢弃。调用者仍然持有payload的引用
+         *
+         * @param payload 为null时复制body
+         */
+        private void undeliverable(ByteBuffer body, Payload payload, Receipt receipt) {
+            boolean requeue = store != null && id != 0;
+            if (requeue)
+                store.append(id, payload != null ? payload.retain() : Payload.copyOf(pool, body));
+            if (receipt != null)
+                receipt.report(reactor, requeue ? RESULT_STORED : RESULT_LOST);
+        }
+
+        /**
+         * 客户端确认收到了seq及之前的所有推送
+         */
+        private void ack(int seq) {
+            Inflight head;
+            while ((head = inflight.peek()) != null && seq - head.seq >= 0) {
+                inflight.poll();
+                head.payload.release();
+                if (head.receipt != null)
+                    head.receipt.report(reactor, RESULT_DELIVERED);
+            }
+        }
+
+        private void result(int tag, byte status) {
+            //可能在其他消息的处理过程中被调用，不能用reactor的公共缓冲区
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            buffer.putInt(10);
+            buffer.put((byte) 12);
+            buffer.putInt(tag);
+            buffer.put(status);
+            buffer.flip();
+            ++reactor.metrics.framesOut[12];
+            write(buffer);
+        }
+
+        private void broadcastReport(int tag, int delivered, int nodes, boolean done) {
+            ByteBuffer buffer = ByteBuffer.allocate(18);
+            buffer.putInt(18);
+            buffer.put((byte) 21);
+            buffer.putInt(tag);
+            buffer.putInt(delivered);
+            buffer.putInt(nodes);
+            buffer.put(done ? BROADCAST_DONE : 0);
+            buffer.flip();
+            ++reactor.metrics.framesOut[21];
+            write(buffer);
+        }
+
+        private boolean write(ByteBuffer header, ByteBuffer body, Payload payload) {
+            if (!outbound.isEmpty()) {
+                return enqueue(header, body, payload, false);
+            }
+            ByteBuffer[] gather = reactor.gather;
+            int count = 0;
+            if (header != null && header.hasRemaining())
+                gather[count++] = header;
+            gather[count++] = body;
+            long remaining = (header == null ? 0 : header.remaining()) + body.remaining();
+            long len;
+            try {
+                len = channel.write(gather, 0, count);
+            } catch (IOException e) {
+                len = -1;
+            }
+            gather[0] = gather[1] = null;
+            if (len < 0) {
+                unbind();
+                close();
+                return false;
+            }
+            reactor.metrics.bytesOut += len;
+            if (len == remaining) {
+                return true;
+            }
+            //send buffer full
+            return enqueue(header, body, payload, len > 0);
+        }
+
+        private boolean enqueue(ByteBuffer header, ByteBuffer body, Payload payload, boolean started) {
+            int remaining = (header == null ? 0 : header.remaining()) + body.remaining();
+            if (outboundBytes + laneBytes + remaining > outboundLimit) {
+                switch (overflowPolicy) {
+                    case CLOSE:
+                        log("outbound overflow, id: %d, pending: %d", id, outboundBytes);
+                        unbind();
+                        close();
+                        return false;
+                    case DROP_NEWEST:
+                        ++reactor.metrics.overflowDropped;
+                        body.position(body.limit());
+                        return true;
+                    case DROP_OLDEST:
+                        Outbound first = outbound.peek();
+                        Outbound head = first != null && first.started() ? outbound.poll() : null;
+                        while (outboundBytes + laneBytes + remaining > outboundLimit && !outbound.isEmpty()) {
+                            Outbound dropped = outbound.poll();
+                            outboundBytes -= dropped.remaining();
+                            dropped.release();
+                            ++reactor.metrics.overflowDropped;
+                        }
+                        if (head != null) {
+                            outbound.offerFirst(head);
+                        }
+                        if (outboundBytes + laneBytes + remaining > outboundLimit) {
+                            ++reactor.metrics.overflowDropped;
+                            body.position(body.limit());
+                            return true;
+                        }
+                        break;
+                }
+            }
+            ByteBuffer headerCopy = null;
+            if (header != null && header.hasRemaining()) {
+                headerCopy = ByteBuffer.allocate(header.remaining());
+                headerCopy.put(header).flip();
+            }
+            if (payload != null) {
+                body = body.duplicate();
+                payload.retain();
+            } else {
+                payload = Payload.copyOf(pool, body);
+                body = payload.view();
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            outbound.offer(new Outbound(headerCopy, body, payload, started));
+            outboundBytes += remaining;
+            return true;
+        }
+
+        /**
+         * OP_WRITE时调用，用一次gathering write尽量写出发送队列里的多条消息，写空之后取消OP_WRITE。
+         *
+         * @return false表示连接已经被关闭
+         */
+        private boolean flush() {
+            ByteBuffer[] gather = reactor.gather;
+            fill();
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                long remaining = 0;
+                for (Outbound o : outbound) {
+                    if (count + 2 > gather.length)
+                        break;
+                    if (o.header != null && o.header.hasRemaining())
+                        gather[count++] = o.header;
+                    gather[count++] = o.body;
+                    remaining += o.remaining();
+                }
+                long len;
+                try {
+                    len = channel.write(gather, 0, count);
+                } catch (IOException e) {
+                    len = -1;
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (len < 0) {
+                    unbind();
+                    close();
+                    return false;
+                }
+                outboundBytes -= len;
+                reactor.metrics.bytesOut += len;
+                Outbound head;
+                while ((head = outbound.peek()) != null && head.remaining() == 0) {
+                    outbound.poll().release();
+                }
+                drained();
+                if (len < remaining) {
+                    return true;
+                }
+                fill();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return true;
+        }
+
+        /**
+         * 发送队列里的加上其他reactor正在转交过来的，其他reactor上也可以读
+         */
+        private int backlog() {
+            return outboundBytes + laneBytes + relaying;
+        }
+
+        /**
+         * 在发送者的reactor上调用，取消OP_READ，到target的reactor上排队等它的积压降下来
+         */
+        private void pause(Attachment target) {
+            pauseRead();
+            target.reactor.execute(() -> {
+                if (target.waiters == null)
+                    target.waiters = new ArrayList<>();
+                target.waiters.add(this);
+                target.drained();
+            });
+        }
+
+        /**
+         * 取消OP_READ，还没处理的数据留在{@link #byteBuffer}里，{@link #resume}时接着处理
+         */
+        private void pauseRead() {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        /**
+         * 积压降到上限的一半以下，或者连接已经关闭时，让等待的发送者都恢复读
+         */
+        private void drained() {
+            if (waiters == null || (channel.isOpen() && backlog() > outboundLimit / 2))
+                return;
+            for (Attachment sender : waiters) {
+                sender.reactor.execute(sender::resume);
+            }
+            waiters = null;
+        }
+
+        /**
+         * 先处理暂停时留下的数据，没有新数据时{@link #read(ByteBuffer)}读到0
+         */
+        private void resume() {
+            if (!paused || !channel.isOpen())
+                return;
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            reactor.read(this);
+        }
+
+        /**
+         * 先发离线消息，再发重放期间暂存的推送
+         */
+        private void replay(List<Payload> payloads) {
+            if (!channel.isOpen()) {
+                for (Payload payload : payloads) {
+                    store.append(id, payload);
+                }
+                requeueDeferred();
+                return;
+            }
+            replaying = false;
+            for (Payload payload : payloads) {
+                push(payload.view(), payload, null, false);
+                payload.release();
+            }
+            Inflight pending;
+            while ((pending = deferred.poll()) != null) {
+                push(pending.payload.view(), pending.payload, pending.receipt, pending.urgent);
+                pending.payload.release();
+            }
+        }
+
+        /**
+         * 重放之前连接就断开了，暂存的推送放回离线存储，排在离线消息后面
+         */
+        private void requeueDeferred() {
+            replaying = false;
+            Inflight pending;
+            while ((pending = deferred.poll()) != null) {
+                store.append(id, pending.payload);
+                if (pending.receipt != null)
+                    pending.receipt.report(reactor, RESULT_STORED);
+            }
+        }
+
+        /**
+         * 只移除自己，id可能已经被其他连接重新绑定。
+         */
+        private void unbind() {
+            if (id != 0)
+                unbindId(id, this);
+        }
+
+        private void release() {
+            if (byteBuffer != null) {
+                pool.release(byteBuffer);
+                byteBuffer = null;
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            reactor.wheel.cancel(this);
+            if (peer != 0)
+                dropRemote(this);
+            ++reactor.metrics.closed;
+            if (!outbound.isEmpty())
+                ++reactor.metrics.partialWriteCloses;
+            release();
+            for (Outbound o : outbound) {
+                o.release();
+            }
+            outbound.clear();
+            //没确认的和还没发的推送放回离线存储，重新绑定后再发
+            boolean requeue = store != null && id != 0;
+            Inflight pending;
+            while ((pending = inflight.poll()) != null || (pending = urgent.poll()) != null
+                    || (pending = bulk.poll()) != null) {
+                if (requeue) {
+                    store.append(id, pending.payload);
+                } else {
+                    pending.payload.release();
+                }
+                if (pending.receipt != null)
+                    pending.receipt.report(reactor, requeue ? RESULT_STORED : RESULT_LOST);
+            }
+            //只有开启离线存储时才会重放，之后到达的推送不再暂存
+            requeueDeferred();
+            outboundBytes = 0;
+            laneBytes = 0;
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            drained();
+        }
+    }
+
+    /**
+     * 一条等待确认的推送，或者还没分配seq、在等重放结束或者在优先级通道里排队的推送（seq为0）
+     */
+    private static class Inflight {
+        private final int seq;
+        private final Payload payload;
+        private final Receipt receipt;
+        private final boolean urgent;
+
+        private Inflight(int seq, Payload payload, Receipt receipt) {
+            this(seq, payload, receipt, false);
+        }
+
+        private Inflight(int seq, Payload payload, Receipt receipt, boolean urgent) {
+            this.seq = seq;
+            this.payload = payload;
+            this.receipt = receipt;
+            this.urgent = urgent;
+        }
+    }
+
+    /**
+     * cmd 12的发送者和它指定的tag，推送有结果时发回给发送者
+     */
+    private static class Receipt {
+        private final Attachment sender;
+        private final int tag;
+
+        private Receipt(Attachment sender, int tag) {
+            this.sender = sender;
+            this.tag = tag;
+        }
+
+        /**
+         * @param current 调用者所在的reactor
+         */
+        private void report(Reactor current, byte status) {
+            if (current == sender.reactor) {
+                if (sender.channel.isOpen())
+                    sender.result(tag, status);
+            } else {
+                sender.reactor.execute(() -> {
+                    if (sender.channel.isOpen())
+                        sender.result(tag, status);
+                });
+            }
+        }
+    }
+
+    /**
+     * 一次广播（cmd 21）。每个reactor遍历自己的连接而不是共用的id注册表，每个目标都在它自己的reactor上写，
+     * 不需要每个目标一个跨reactor的任务；所有reactor共用同一个payload，最后一个遍历完的reactor报告完成并释放它。
+     */
+    private class Broadcast {
+        /**
+         * 为null时是其他节点转发过来的，不报告进度
+         */
+        private final Attachment sender;
+        private final int tag;
+        private final Payload payload;
+        private final int nodes;
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicInteger walking = new AtomicInteger(REACTOR_COUNT);
+        private final AtomicLong reported = new AtomicLong(System.currentTimeMillis());
+        /**
+         * 只在发送者的reactor上访问，完成之后才到达的进度报告直接丢弃
+         */
+        private boolean done = false;
+
+        private Broadcast(Attachment sender, int tag, Payload payload, int nodes) {
+            this.sender = sender;
+            this.tag = tag;
+            this.payload = payload;
+            this.nodes = nodes;
+        }
+
+        /**
+         * 任何reactor写完一段之后调用，距离上次报告超过{@link #BROADCAST_REPORT_INTERVAL}时报告一次
+         */
+        private void progress(long now, int count) {
+            int total = delivered.addAndGet(count);
+            long last = reported.get();
+            if (sender != null && now - last >= BROADCAST_REPORT_INTERVAL && reported.compareAndSet(last, now))
+                report(total, false);
+        }
+
+        private void finish() {
+            if (walking.decrementAndGet() != 0)
+                return;
+            payload.release();
+            if (sender != null)
+                report(delivered.get(), true);
+        }
+
+        private void report(int count, boolean last) {
+            sender.reactor.execute(() -> {
+                if (done || !sender.channel.isOpen())
+                    return;
+                done = last;
+                sender.broadcastReport(tag, count, nodes, last);
+            });
+        }
+    }
+
+    /**
+     * 一次广播在一个reactor上的遍历位置。连接是开始遍历时的快照，之后建立的连接收不到这次广播
+     */
+    private static class Walk {
+        private final Broadcast broadcast;
+        private SelectionKey[] keys;
+        private int next = 0;
+
+        private Walk(Broadcast broadcast) {
+            this.broadcast = broadcast;
+        }
+    }
+
+    /**
+     * 发送队列中的一条消息：可选的消息头加上引用{@link Payload}的消息体
+     */
+    private static class Outbound {
+        private final ByteBuffer header;
+        private final ByteBuffer body;
+        private final Payload payload;
+        private final int size;
+        private final boolean started;
+
+        private Outbound(ByteBuffer header, ByteBuffer body, Payload payload, boolean started) {
+            this.header = header;
+            this.body = body;
+            this.payload = payload;
+            this.size = remaining();
+            this.started = started;
+        }
+
+        private int remaining() {
+            return (header == null ? 0 : header.remaining()) + body.remaining();
+        }
+
+        /**
+         * 已经写出一部分的消息不能丢弃，否则对端的消息边界会错乱
+         */
+        private boolean started() {
+            return started || remaining() < size;
+        }
+
+        private void release() {
+            payload.release();
+        }
+    }
+
+    private void log(String format) {
+        logger.log(format);
+    }
+
+    private void log(String format, long a) {
+        logger.log(format, a);
+    }
+
+    private void log(String format, long a, long b) {
+        logger.log(format, a, b);
+    }
+
+    private void log(String format, Object o) {
+        logger.log(format, o);
     }
 }
@@ -0,0 +1,54 @@
+package shxhzhxx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速的配置，桶的状态由使用者保存。用GCRA实现，和令牌桶等价：每个桶只需要一个long，
+ * 记录按平均速率计算的桶被取空的时间（tat），不需要分别记录令牌数和上次补充的时间，也不需要定时补充。
+ * <p>
+ * 桶是满的（tat不晚于现在）时一次可以取超过burst个令牌，之后按欠下的量等待，所以超过burst的请求不会永远等不到。
+ * 时间都是{@link System#nanoTime()}，只比较差值。
+ */
+final class RateLimit {
+    /**
+     * 补充一个令牌的纳秒数
+     */
+    private final long interval;
+    /**
+     * 桶满时能连续取出的令牌对应的纳秒数
+     */
+    private final long tolerance;
+
+    /**
+     * @param perSecond 平均每秒补充的令牌数
+     * @param burst     桶的容量
+     */
+    RateLimit(int perSecond, int burst) {
+        if (perSecond < 1)
+            throw new IllegalArgumentException("perSecond < 1");
+        if (burst < 1)
+            throw new IllegalArgumentException("burst < 1");
+        interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+        tolerance = interval * burst;
+    }
+
+    /**
+     * @param tat 桶的状态，新的桶用当前时间表示满
+     * @return 0表示现在可以取n个令牌，否则是还要等待的纳秒数
+     */
+    long delay(long tat, long now, long n) {
+        if (tat - now <= 0)
+            return 0;
+        long wait = tat + n * interval - tolerance - now;
+        return wait <= 0 ? 0 : Math.min(wait, tat - now);
+    }
+
+    /**
+     * 取出n个令牌，调用者先用{@link #delay}确认可以取
+     *
+     * @return 桶的新状态
+     */
+    long charge(long tat, long now, long n) {
+        return (tat - now > 0 ? tat : now) + n * interval;
+    }
+}
@@ -0,0 +1,63 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 分片推送（类型22，见{@link PushServer#CHUNK_LAST}）的重组，{@link PushClient}和{@link PushClientEngine}共用。
+ * 不是线程安全的，只在接收线程上使用。
+ */
+final class Reassembler {
+    /**
+     * 最多同时重组的分片推送数，超过时丢弃最早的，发送者中途断开的推送不会一直占着内存
+     */
+    private static final int MAX_STREAMS = 16;
+
+    private final Map<Long, Stream> streams = new LinkedHashMap<Long, Stream>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    private static class Stream {
+        private ByteBuffer data;
+        private int next = 0;
+    }
+
+    /**
+     * 分片不连续或者超过maxSize时丢弃整条推送
+     *
+     * @return 收完最后一片时返回整条推送，position为0；否则返回null
+     */
+    ByteBuffer add(long stream, int index, boolean last, ByteBuffer chunk, int maxSize) {
+        Stream r = streams.remove(stream);
+        if (index == 0) {
+            r = new Stream();
+            r.data = ByteBuffer.allocate(Math.min(maxSize, Math.max(chunk.remaining(), 4096)));
+        } else if (r == null || r.next != index) {
+            return null;
+        }
+        if (r.data.remaining() < chunk.remaining()) {
+            int capacity = r.data.capacity();
+            while (capacity - r.data.position() < chunk.remaining() && capacity < maxSize) {
+                capacity = (int) Math.min(maxSize, capacity * 2L);
+            }
+            if (capacity - r.data.position() < chunk.remaining())
+                return null;
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            r.data.flip();
+            larger.put(r.data);
+            r.data = larger;
+        }
+        r.data.put(chunk);
+        ++r.next;
+        if (!last) {
+            streams.put(stream, r);
+            return null;
+        }
+        r.data.flip();
+        return r.data;
+    }
+}
@@ -0,0 +1,115 @@
+package shxhzhxx;
+
+/**
+ * 哈希时间轮，不是线程安全的，由所属的reactor在selector循环中推进。
+ * <p>
+ * 每个槽是一个侵入式双向链表，定时对象自己就是链表节点，添加和取消都是O(1)且不分配内存；
+ * 超过一圈的超时记录绝对的到期tick，转到时还没到期就留在槽里等下一圈。
+ */
+final class TimingWheel {
+    /**
+     * 需要定时的对象继承这个类
+     */
+    static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private long deadline;
+        private boolean scheduled;
+
+        boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    interface Handler {
+        void onTimeout(Timeout timeout);
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    private long tick;
+    private long lastMillis;
+    private int size = 0;
+
+    /**
+     * @param slots 槽数，向上取到2的幂
+     */
+    TimingWheel(long tickMillis, int slots, long nowMillis) {
+        int n = 1;
+        while (n < slots) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[n];
+        this.mask = n - 1;
+        this.lastMillis = nowMillis;
+        this.tick = 0;
+    }
+
+    long tickMillis() {
+        return tickMillis;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 在delayMillis之后（按tick向上取整）到期，已经在轮上的先取消
+     */
+    void schedule(Timeout timeout, long delayMillis) {
+        if (timeout.scheduled)
+            cancel(timeout);
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        timeout.deadline = tick + ticks;
+        int slot = (int) (timeout.deadline & mask);
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        slots[slot] = timeout;
+        timeout.scheduled = true;
+        ++size;
+    }
+
+    void cancel(Timeout timeout) {
+        if (!timeout.scheduled)
+            return;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadline & mask)] = timeout.next;
+        }
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.scheduled = false;
+        --size;
+    }
+
+    /**
+     * 推进到nowMillis，依次回调到期的对象，回调中可以重新schedule或cancel任意对象
+     */
+    void advance(long nowMillis, Handler handler) {
+        long ticks = (nowMillis - lastMillis) / tickMillis;
+        if (ticks <= 0)
+            return;
+        lastMillis += ticks * tickMillis;
+        //落后超过一圈时每个槽只需要扫一次
+        long target = tick + ticks;
+        long from = Math.max(tick + 1, target - mask);
+        tick = target;
+        for (long t = from; t <= target; ++t) {
+            Timeout timeout = slots[(int) (t & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= target) {
+                    cancel(timeout);
+                    handler.onTimeout(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+}
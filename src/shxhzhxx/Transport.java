@@ -0,0 +1,32 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 连接的I/O模型。{@link PushServer}负责监听端口和accept，之后连接的读、协议处理和写都交给transport。
+ * <p>
+ * 默认是selector线程（{@link PushServer.Reactor}），支持全部协议；{@link BlockingTransport}每个连接一个线程、阻塞读写，
+ * 只支持最初的几个命令。按部署选择，见{@link PushServer#setThreadPerConnection}。
+ */
+interface Transport {
+    /**
+     * 在accept之前调用一次，失败时服务端不会启动
+     */
+    void start() throws IOException;
+
+    /**
+     * 接手一个刚accept的连接，在accept的线程上调用，不能阻塞
+     */
+    void register(SocketChannel channel) throws IOException;
+
+    /**
+     * 见{@link PushServer#getStats()}
+     */
+    String stats();
+
+    /**
+     * 关闭所有连接，之后所有线程都会退出
+     */
+    void shutdown();
+}
@@ -0,0 +1,73 @@
+package shxhzhxx;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 没有测试框架，每个测试类里以test开头、没有参数的static方法是一个测试，失败时抛出异常。
+ * 每个测试在本机回环上启动自己的服务端，见{@link Loopback}。
+ * <p>
+ * 运行：java shxhzhxx.AllTests [类名...]，不带参数时运行全部，有失败时退出码为1。
+ */
+public final class AllTests {
+    private static final String[] ALL = {
+            "OutboundTest",
+            "FramingTest",
+            "GroupTest",
+            "OfflineStoreTest",
+            "ProtocolV2Test",
+            "HeartbeatTest",
+            "StatsTest",
+            "ClusterTest",
+            "EngineTest",
+            "AsyncSendTest",
+            "ReconnectTest",
+            "CompressionTest",
+            "ChunkTest",
+            "BroadcastTest",
+            "RateLimitTest",
+            "PriorityTest",
+            "TransportTest",
+            "BufferPoolTest",
+            "IntMapTest",
+            "PayloadTest",
+            "InlineReactorTest",
+            "MainTest",
+            "LogTest",
+            "ViewTest",
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<String> failed = new ArrayList<>();
+        int passed = 0;
+        for (String name : args.length > 0 ? args : ALL) {
+            Method[] methods = Class.forName("shxhzhxx." + name).getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+                        || method.getParameterCount() != 0)
+                    continue;
+                String test = name + "." + method.getName();
+                long start = System.nanoTime();
+                try {
+                    method.setAccessible(true);
+                    method.invoke(null);
+                    ++passed;
+                    System.out.printf("ok   %s (%d ms)%n", test, (System.nanoTime() - start) / 1000000);
+                } catch (InvocationTargetException e) {
+                    failed.add(test);
+                    System.out.printf("FAIL %s%n", test);
+                    e.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.printf("%d passed, %d failed %s%n", passed, failed.size(), failed.isEmpty() ? "" : failed);
+        //服务端和客户端的线程不会自己退出
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,120 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushClient#sendAsync}的合并写
+ */
+final class AsyncSendTest {
+    static void testBatchedInOrder() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = Loopback.client(port, recorder, 0);
+        try (Loopback.Wire receiver = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 5000; ++i) {
+                futures.add(client.sendAsync(7, message(i, 100)));
+            }
+            for (int i = 0; i < 5000; ++i) {
+                check(receive(receiver) == i, "push %d out of order", i);
+                check(futures.get(i).get(Loopback.TIMEOUT, TimeUnit.MILLISECONDS) > 0, "future %d", i);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 同步发送和异步的合并写在不同的线程上，消息不能互相穿插
+     */
+    static void testSyncAndAsyncDoNotInterleave() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setOutboundLimit(8 << 20, PushServer.OverflowPolicy.CLOSE);
+        Loopback.start(server, port);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = Loopback.client(port, recorder, 0);
+        try (Loopback.Wire receiver = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            Thread sync = new Thread(() -> {
+                for (int i = 0; i < 2000 && client.send(7, message(-1, 900)) > 0; ++i) {
+                    Thread.yield();
+                }
+            });
+            Thread async = new Thread(() -> {
+                for (int i = 0; i < 2000; ++i) {
+                    CompletableFuture<Integer> future = client.sendAsync(7, message(i, 900));
+                    //积压不能超过异步发送队列的上限
+                    if (i % 100 == 99 && future.join() < 0)
+                        return;
+                }
+            });
+            sync.start();
+            async.start();
+            int next = 0;
+            for (int i = 0; i < 4000; ++i) {
+                int index = receive(receiver);
+                if (index >= 0)
+                    check(index == next++, "async push %d out of order", index);
+            }
+            check(next == 2000, "async pushes: %d", next);
+            sync.join();
+            async.join();
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * flush立即写出，不等linger
+     */
+    static void testFlush() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.setSendBatching(1 << 20, 1, TimeUnit.MINUTES);
+        client.start();
+        recorder.await(PushClient.State.CONNECTED);
+        try (Loopback.Wire receiver = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            //连接上之后写线程会把重连期间暂存的消息写一次，等它过去
+            Thread.sleep(100);
+            CompletableFuture<Integer> future = client.sendAsync(7, message(0, 10));
+            Thread.sleep(200);
+            check(!future.isDone(), "written before linger");
+            client.flush();
+            check(future.isDone() && future.get() > 0, "not written by flush");
+            check(receive(receiver) == 0, "flushed push");
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * [序号][填充]，填充是序号的低8位，收到时检查每个字节，穿插的消息会被发现
+     */
+    private static byte[] message(int index, int size) {
+        ByteBuffer message = ByteBuffer.allocate(size);
+        message.putInt(index);
+        while (message.hasRemaining()) {
+            message.put((byte) index);
+        }
+        return message.array();
+    }
+
+    private static int receive(Loopback.Wire receiver) throws Exception {
+        ByteBuffer push = receiver.read();
+        int index = push.getInt();
+        while (push.hasRemaining()) {
+            check(push.get() == (byte) index, "corrupted push %d", index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,74 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 广播cmd 21：分多轮写给所有绑定了id的连接，用类型21报告进度
+ */
+final class BroadcastTest {
+    static void testBroadcastInRounds() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setBroadcastBudget(4);
+        Loopback.start(server, port);
+        Loopback.Wire[] wires = new Loopback.Wire[50];
+        try (Loopback.Wire unbound = new Loopback.Wire(port); Loopback.Wire sender = new Loopback.Wire(port)) {
+            for (int i = 0; i < wires.length; ++i) {
+                wires[i] = new Loopback.Wire(port);
+                wires[i].send(1, i + 1).send(0).read();
+            }
+            check(sender.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            sender.send(21, 9, bytes("all"));
+            for (Loopback.Wire wire : wires) {
+                check(text(wire.read()).equals("all"), "missed the broadcast");
+            }
+            int delivered = -1;
+            for (boolean done = false; !done; ) {
+                ByteBuffer progress = sender.read();
+                check(progress.get() == 21 && progress.getInt() == 9, "progress type and tag");
+                int count = progress.getInt();
+                check(count >= delivered, "progress went back");
+                delivered = count;
+                check(progress.getInt() == 0, "nodes");
+                done = (progress.get() & PushServer.BROADCAST_DONE) != 0;
+            }
+            check(delivered == wires.length, "delivered %d", delivered);
+            check(unbound.send(0).read().remaining() == 0, "unbound connection received the broadcast");
+        } finally {
+            for (Loopback.Wire wire : wires) {
+                if (wire != null)
+                    wire.close();
+            }
+        }
+    }
+
+    static void testPushClientProgress() throws Exception {
+        int port = Loopback.start(1024, 2);
+        BlockingQueue<int[]> reports = new LinkedBlockingQueue<>();
+        Loopback.Recorder recorder = new Loopback.Recorder() {
+            @Override
+            public void onBroadcastProgress(int tag, int delivered, int nodes, boolean done) {
+                if (done)
+                    reports.add(new int[]{tag, delivered});
+            }
+        };
+        PushClient client = Loopback.client(port, recorder, 1);
+        try (Loopback.Wire other = new Loopback.Wire(port)) {
+            other.send(1, 2).send(0).read();
+            int tag = client.broadcast(bytes("all"));
+            check(text(other.read()).equals("all"), "missed the broadcast");
+            check(new String(recorder.next()).equals("all"), "sender missed its own broadcast");
+            int[] report = reports.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS);
+            check(report != null && report[0] == tag && report[1] == 2, "final progress");
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link BufferPool}的分级、复用和计数
+ */
+final class BufferPoolTest {
+    static void testSizeClasses() {
+        BufferPool pool = new BufferPool(1024);
+        int[][] cases = {{1, 64}, {64, 64}, {65, 128}, {500, 512}, {513, 1024}, {1024, 1024}};
+        for (int[] c : cases) {
+            ByteBuffer buffer = pool.acquire(c[0]);
+            check(buffer.isDirect() && buffer.capacity() == c[1], "acquire(%d): capacity %d", c[0], buffer.capacity());
+            check(buffer.position() == 0 && buffer.limit() == buffer.capacity(), "acquire(%d) not cleared", c[0]);
+            pool.release(buffer);
+        }
+        //超过最大级别的直接分配堆内存，归还时忽略
+        ByteBuffer large = pool.acquire(1025);
+        check(!large.isDirect() && large.capacity() == 1025, "oversize buffer");
+        long inUse = pool.getInUseBytes();
+        pool.release(large);
+        check(pool.getInUseBytes() == inUse, "oversize buffer counted");
+    }
+
+    static void testReuseAfterRelease() {
+        BufferPool pool = new BufferPool(1024);
+        ByteBuffer a = pool.acquire(100);
+        a.put((byte) 1).flip();
+        pool.release(a);
+        long allocated = pool.getAllocatedBytes();
+        boolean reused = false;
+        //一块slab切出的缓冲区用完之前不会再申请
+        for (int i = 0; i < 1024 * 1024 / 128; ++i) {
+            ByteBuffer buffer = pool.acquire(128);
+            reused |= buffer == a;
+            check(buffer.position() == 0 && buffer.limit() == 128, "reused buffer not cleared");
+        }
+        check(reused, "released buffer not reused");
+        check(pool.getAllocatedBytes() == allocated, "slab allocated while free buffers left");
+        pool.acquire(128);
+        check(pool.getAllocatedBytes() == allocated + 1024 * 1024, "no new slab when the class is empty");
+    }
+
+    static void testSlicesDoNotOverlap() {
+        BufferPool pool = new BufferPool(1024);
+        Map<ByteBuffer, Integer> owners = new IdentityHashMap<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            ByteBuffer buffer = pool.acquire(64);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) i);
+            }
+            owners.put(buffer, i);
+            buffers.add(buffer);
+        }
+        for (ByteBuffer buffer : buffers) {
+            int owner = owners.get(buffer);
+            for (int i = 0; i < buffer.capacity(); ++i) {
+                check(buffer.get(i) == (byte) owner, "buffer %d overwritten", owner);
+            }
+        }
+    }
+
+    static void testInUseBytes() {
+        BufferPool pool = new BufferPool(1024);
+        ByteBuffer a = pool.acquire(10), b = pool.acquire(700);
+        check(pool.getInUseBytes() == 64 + 1024, "in use: %d", pool.getInUseBytes());
+        pool.release(a);
+        pool.release(b);
+        check(pool.getInUseBytes() == 0, "in use after release: %d", pool.getInUseBytes());
+        //不是池里切出来的direct缓冲区不入池
+        pool.release(ByteBuffer.allocateDirect(100));
+        check(pool.getInUseBytes() == 0, "foreign buffer counted");
+    }
+}
@@ -0,0 +1,84 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 超过maxMessageSize的推送分片发送，见{@link PushServer#CHUNK_LAST}
+ */
+final class ChunkTest {
+    /**
+     * 服务端把id换成发送者的编号后原样转发每一片
+     */
+    static void testChunkRelay() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire sender = ProtocolV2Test.bindV2(port, 1); Loopback.Wire receiver = ProtocolV2Test.bindV2(port, 2)) {
+            for (int i = 0; i < 3; ++i) {
+                sender.send(22, 2, 5, i, i == 2 ? PushServer.CHUNK_LAST : 0, new byte[]{(byte) i, 1, 2});
+            }
+            int source = 0;
+            for (int i = 0; i < 3; ++i) {
+                ByteBuffer chunk = receiver.read();
+                check(chunk.get() == 22, "type");
+                int from = chunk.getInt();
+                check(i == 0 || from == source, "source changed");
+                source = from;
+                check(chunk.getInt() == 5 && chunk.getInt() == i, "stream and index");
+                check(chunk.get() == (i == 2 ? PushServer.CHUNK_LAST : 0), "flags");
+                check(chunk.remaining() == 3 && chunk.get() == i, "data");
+            }
+        }
+    }
+
+    static void testV1SenderRejected() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire sender = new Loopback.Wire(port)) {
+            sender.send(22, 2, 5, 0, PushServer.CHUNK_LAST, new byte[3]);
+            check(sender.closedWithin(Loopback.TIMEOUT), "chunk from a v1 connection accepted");
+        }
+    }
+
+    static void testPushClientReassembles() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Loopback.Recorder a = new Loopback.Recorder(), b = new Loopback.Recorder();
+        PushClient ca = Loopback.client(port, a, 1);
+        PushClient cb = Loopback.client(port, b, 2);
+        try {
+            byte[] large = large();
+            check(ca.sendLarge(2, large) == large.length, "sendLarge");
+            check(Arrays.equals(b.next(), large), "reassembled push");
+        } finally {
+            ca.close();
+            cb.close();
+        }
+    }
+
+    static void testEngineReassembles() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClientEngine engine = new PushClientEngine(1);
+        engine.start();
+        Loopback.Recorder a = new Loopback.Recorder(), b = new Loopback.Recorder();
+        PushClient ca = Loopback.client(port, a, 1);
+        try {
+            PushClientEngine.Session session = engine.connect("127.0.0.1", port, b);
+            b.await(PushClient.State.CONNECTED);
+            session.bind(2);
+            b.await(PushClient.State.BIND);
+            byte[] large = large();
+            check(ca.sendLarge(2, large) == large.length, "sendLarge");
+            check(Arrays.equals(b.next(), large), "reassembled push");
+        } finally {
+            ca.close();
+            engine.shutdown();
+        }
+    }
+
+    private static byte[] large() {
+        byte[] large = new byte[100000];
+        new Random(1).nextBytes(large);
+        return large;
+    }
+}
@@ -0,0 +1,212 @@
+package shxhzhxx;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 两个节点的集群，见{@link PushServer#setCluster}
+ */
+final class ClusterTest {
+    private static final long KEY = 42;
+
+    static void testForwardToRemoteIds() throws Exception {
+        int[] ports = start();
+        Loopback.Recorder a = new Loopback.Recorder(), b = new Loopback.Recorder(), c = new Loopback.Recorder();
+        PushClient ca = Loopback.client(ports[0], a, 1);
+        PushClient cb = Loopback.client(ports[1], b, 2);
+        PushClient cc = Loopback.client(ports[1], c, 3);
+        try {
+            awaitRoute(ca, a, 2, b);
+            awaitRoute(ca, a, 3, c);
+            ca.send(2, bytes("single"));
+            check(new String(b.next()).equals("single"), "single push to a remote id");
+            //多推按节点拆分，每个节点只转发一次
+            ca.send(new int[]{1, 2, 3}, bytes("multi"));
+            check(new String(a.next()).equals("multi"), "local target of a multi push");
+            check(new String(b.next()).equals("multi"), "remote target of a multi push");
+            check(new String(c.next()).equals("multi"), "remote target of a multi push");
+        } finally {
+            ca.close();
+            cb.close();
+            cc.close();
+        }
+    }
+
+    /**
+     * 同一个id在另一个节点上绑定时，本节点上的连接被断开
+     */
+    static void testBindOnOtherNodeClosesLocal() throws Exception {
+        int[] ports = start();
+        Loopback.Recorder first = new Loopback.Recorder(), s = new Loopback.Recorder();
+        PushClient cf = Loopback.client(ports[0], first, 5);
+        PushClient cs = Loopback.client(ports[1], s, 9);
+        try (Loopback.Wire second = new Loopback.Wire(ports[1])) {
+            //两个节点同时绑定同一个id时谁留下来是不确定的，先等另一个节点知道了原来的绑定
+            awaitRoute(cs, s, 5, first);
+            second.send(1, 5).send(0).read();
+            first.await(PushClient.State.ERROR);
+            check(!second.closedWithin(200), "new binding closed");
+        } finally {
+            cf.close();
+            cs.close();
+        }
+    }
+
+    static void testWrongKeyRejected() throws Exception {
+        int[] ports = start();
+        try (Loopback.Wire wire = new Loopback.Wire(ports[0])) {
+            wire.send(15, 1, KEY + 1);
+            check(wire.closedWithin(Loopback.TIMEOUT), "cluster hello with a wrong key accepted");
+        }
+    }
+
+    /**
+     * 节点1是测试自己：它的端口上的连接收到本节点的ClusterLink发来的消息，连到本节点的peer代表节点1发消息
+     */
+    static void testLinkCmdsOut() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            fake.setSoTimeout((int) Loopback.TIMEOUT);
+            int port = startWithFake(fake.getLocalPort());
+            try (Socket link = fake.accept(); Loopback.Wire peer = new Loopback.Wire(port);
+                 Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire s = new Loopback.Wire(port)) {
+                link.setSoTimeout((int) Loopback.TIMEOUT);
+                DataInputStream in = new DataInputStream(link.getInputStream());
+                ByteBuffer frame = linkFrame(in);
+                check(frame.get() == 15 && frame.getInt() == 0 && frame.getLong() == KEY, "hello");
+                a.send(1, 7).send(0).read();
+                frame = linkFrame(in);
+                check(frame.get() == 16 && frame.getInt() == 7 && !frame.hasRemaining(), "bind");
+                //echo的回复说明之前的bind已经在peer的reactor上处理完
+                peer.send(15, 1, KEY).send(16, 20, 21).send(0).read();
+                check(s.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+                ByteBuffer result = s.send(12, 1, 20, bytes("single")).read();
+                check(result.get() == 12 && result.getInt() == 1 && result.get() == PushServer.RESULT_FORWARDED, "single push result");
+                frame = linkFrame(in);
+                check(frame.get() == 19 && frame.getInt() == 20 && GroupTest.text(frame).equals("single"), "forwarded single push");
+                //多推拆分：本节点的目标直接推送，节点1的目标合成一条cmd 18
+                s.send(3, 3, 7, 20, 21, bytes("multi"));
+                check(GroupTest.text(a.read()).equals("multi"), "local target of a multi push");
+                frame = linkFrame(in);
+                check(frame.get() == 18 && frame.getInt() == 2, "forwarded multi push");
+                check(frame.getInt() == 20 && frame.getInt() == 21 && GroupTest.text(frame).equals("multi"), "forwarded multi push ids");
+                s.send(2 | PushServer.PRIORITY, 21, bytes("urgent"));
+                frame = linkFrame(in);
+                check(frame.get() == (byte) (19 | PushServer.PRIORITY) && frame.getInt() == 21, "forwarded urgent push");
+                s.send(21, 5, bytes("all"));
+                check(GroupTest.text(a.read()).equals("all"), "local target of a broadcast");
+                frame = linkFrame(in);
+                check(frame.get() == 23 && GroupTest.text(frame).equals("all"), "forwarded broadcast");
+                ByteBuffer progress;
+                do {
+                    progress = s.read();
+                    check(progress.get() == 21 && progress.getInt() == 5, "broadcast progress");
+                    progress.getInt();
+                    check(progress.getInt() == 1, "nodes");
+                } while ((progress.get() & PushServer.BROADCAST_DONE) == 0);
+                a.socket.close();
+                frame = linkFrame(in);
+                check(frame.get() == 17 && frame.getInt() == 7, "unbind");
+            }
+        }
+    }
+
+    static void testLinkCmdsIn() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            fake.setSoTimeout((int) Loopback.TIMEOUT);
+            int port = startWithFake(fake.getLocalPort());
+            try (Socket link = fake.accept(); Loopback.Wire peer = new Loopback.Wire(port);
+                 Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire s = new Loopback.Wire(port)) {
+                link.setSoTimeout((int) Loopback.TIMEOUT);
+                check(linkFrame(new DataInputStream(link.getInputStream())).get() == 15, "hello");
+                a.send(1, 7).send(0).read();
+                peer.send(15, 1, KEY);
+                peer.send(19, 7, bytes("single"));
+                check(GroupTest.text(a.read()).equals("single"), "forwarded single push");
+                peer.send(18, 1, 7, bytes("multi"));
+                check(GroupTest.text(a.read()).equals("multi"), "forwarded multi push");
+                peer.send(23, bytes("all"));
+                check(GroupTest.text(a.read()).equals("all"), "forwarded broadcast");
+                //节点1撤销绑定之后按不在线处理
+                check(s.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+                peer.send(16, 30).send(0).read();
+                check(s.send(12, 1, 30, bytes("x")).read().get(5) == PushServer.RESULT_FORWARDED, "remote id not routed");
+                peer.send(17, 30).send(0).read();
+                check(s.send(12, 2, 30, bytes("x")).read().get(5) == PushServer.RESULT_OFFLINE, "unbound remote id still routed");
+            }
+            //不是节点的连接不能发节点之间的消息
+            for (int cmd : new int[]{16, 17, 19, 23}) {
+                try (Loopback.Wire wire = new Loopback.Wire(port)) {
+                    wire.send(cmd, 7, bytes("x"));
+                    check(wire.closedWithin(Loopback.TIMEOUT), "cmd %d from a non-peer accepted", cmd);
+                }
+            }
+        }
+    }
+
+    /**
+     * [len]之后的内容，position在cmd上
+     */
+    private static ByteBuffer linkFrame(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        check(len >= 5, "invalid len: %d", len);
+        byte[] body = new byte[len - 4];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    /**
+     * 两个节点的集群中的节点0，节点1的地址是fakePort
+     *
+     * @return 节点0的端口
+     */
+    private static int startWithFake(int fakePort) throws Exception {
+        int port = Loopback.freePort();
+        InetSocketAddress[] nodes = {new InetSocketAddress("127.0.0.1", port), new InetSocketAddress("127.0.0.1", fakePort)};
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setCluster(0, nodes, KEY);
+        Loopback.start(server, port);
+        return port;
+    }
+
+    /**
+     * 节点之间异步通知绑定的id，用带结果的推送等到id的位置已经同步到发送者的节点，target收到这次推送后返回
+     */
+    private static void awaitRoute(PushClient sender, Loopback.Recorder recorder, int id, Loopback.Recorder target)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + Loopback.TIMEOUT;
+        for (; ; ) {
+            recorder.results.clear();
+            int tag = sender.sendWithResult(id, bytes("route"));
+            int[] result = recorder.results.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS);
+            check(result != null && result[0] == tag, "no result");
+            if (result[1] == PushServer.RESULT_FORWARDED) {
+                check(new String(target.next()).equals("route"), "forwarded push");
+                return;
+            }
+            check(System.currentTimeMillis() < deadline, "id %d not routed", id);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * @return 两个节点的端口
+     */
+    private static int[] start() throws Exception {
+        int[] ports = {Loopback.freePort(), Loopback.freePort()};
+        InetSocketAddress[] nodes = {new InetSocketAddress("127.0.0.1", ports[0]), new InetSocketAddress("127.0.0.1", ports[1])};
+        for (int i = 0; i < 2; ++i) {
+            PushServer server = new PushServer(ports[i], 1024, 2);
+            server.setCluster(i, nodes, KEY);
+            Loopback.start(server, ports[i]);
+        }
+        return ports;
+    }
+}
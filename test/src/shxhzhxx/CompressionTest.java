@@ -0,0 +1,86 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 协商了{@link PushServer#FEATURE_DEFLATE}的连接收到压缩的推送
+ */
+final class CompressionTest {
+    private static final int FEATURES = PushServer.FEATURE_V2 | PushServer.FEATURE_DEFLATE;
+
+    static void testCompressedPush() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire plain = new Loopback.Wire(port);
+             Loopback.Wire s = new Loopback.Wire(port)) {
+            check(a.negotiate(FEATURES) == FEATURES, "deflate not granted");
+            check(a.send(1, 7).read().get() == 1, "bind ack");
+            check(plain.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            check(plain.send(1, 8).read().get() == 1, "bind ack");
+            byte[] text = new byte[900];
+            Arrays.fill(text, (byte) 'x');
+            s.send(3, 2, 7, 8, text);
+            ByteBuffer push = a.read();
+            check(push.get() == 20 && push.getInt() == 1, "compressed push header");
+            check(push.remaining() < text.length, "not smaller: %d", push.remaining());
+            check(Arrays.equals(inflate(push), text), "inflated content");
+            //同一个多推，没有协商压缩的目标收到原始的内容
+            push = plain.read();
+            check(push.get() == 2 && push.getInt() == 1 && push.remaining() == text.length, "plain push");
+        }
+    }
+
+    /**
+     * 压缩后不会变小的推送仍然是类型2
+     */
+    static void testIncompressibleSentPlain() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire s = new Loopback.Wire(port)) {
+            check(a.negotiate(FEATURES) == FEATURES, "deflate not granted");
+            check(a.send(1, 7).read().get() == 1, "bind ack");
+            byte[] random = new byte[900];
+            new Random(1).nextBytes(random);
+            s.send(2, 7, random).send(2, 7, new byte[10]);
+            ByteBuffer push = a.read();
+            check(push.get() == 2 && push.getInt() == 1 && push.remaining() == random.length, "incompressible push");
+            push = a.read();
+            check(push.get() == 2 && push.getInt() == 2 && push.remaining() == 10, "short push");
+        }
+    }
+
+    static void testPushClientInflates() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.useCompression();
+        client.start();
+        recorder.await(PushClient.State.CONNECTED);
+        client.bind(7);
+        recorder.await(PushClient.State.BIND);
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            byte[] text = new byte[900];
+            Arrays.fill(text, (byte) 'y');
+            s.send(2, 7, text);
+            check(Arrays.equals(recorder.next(), text), "inflated push");
+        } finally {
+            client.close();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer compressed) throws Exception {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), compressed.position(), compressed.remaining());
+            byte[] out = new byte[4096];
+            int size = inflater.inflate(out);
+            check(inflater.finished(), "truncated zlib stream");
+            return Arrays.copyOf(out, size);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package shxhzhxx;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushClientEngine}：多个session共用少数几个线程
+ */
+final class EngineTest {
+    static void testSessionsPushAndResults() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClientEngine engine = new PushClientEngine(2);
+        engine.start();
+        try {
+            Loopback.Recorder[] recorders = new Loopback.Recorder[20];
+            PushClientEngine.Session[] sessions = new PushClientEngine.Session[recorders.length];
+            for (int i = 0; i < sessions.length; ++i) {
+                recorders[i] = new Loopback.Recorder();
+                sessions[i] = engine.connect("127.0.0.1", port, recorders[i]);
+            }
+            int[] ids = new int[sessions.length - 1];
+            for (int i = 0; i < sessions.length; ++i) {
+                recorders[i].await(PushClient.State.CONNECTED);
+                if (i > 0) {
+                    sessions[i].bind(i);
+                    recorders[i].await(PushClient.State.BIND);
+                    ids[i - 1] = i;
+                }
+            }
+            check(sessions[0].send(ids, bytes("all")) > 0, "multi push rejected");
+            for (int i = 1; i < sessions.length; ++i) {
+                check(new String(recorders[i].next()).equals("all"), "session %d missed the multi push", i);
+            }
+            Set<Integer> tags = new HashSet<>();
+            for (int i = 1; i < sessions.length; ++i) {
+                tags.add(sessions[0].sendWithResult(i, bytes("r")));
+            }
+            for (int i = 1; i < sessions.length; ++i) {
+                int[] result = recorders[0].results.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS);
+                check(result != null && tags.remove(result[0]) && result[1] == PushServer.RESULT_DELIVERED,
+                        "push result %d", i);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    static void testGetIp() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClientEngine engine = new PushClientEngine(1);
+        engine.start();
+        try {
+            BlockingQueue<String> ips = new LinkedBlockingQueue<>();
+            Loopback.Recorder recorder = new Loopback.Recorder() {
+                @Override
+                public void onReceiveIp(String ip) {
+                    ips.add(ip);
+                }
+            };
+            PushClientEngine.Session session = engine.connect("127.0.0.1", port, recorder);
+            recorder.await(PushClient.State.CONNECTED);
+            session.getIp();
+            check("127.0.0.1".equals(ips.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS)), "ip");
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * 关闭engine时所有session变为ERROR
+     */
+    static void testShutdown() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClientEngine engine = new PushClientEngine(1);
+        engine.start();
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        engine.connect("127.0.0.1", port, recorder);
+        recorder.await(PushClient.State.CONNECTED);
+        engine.shutdown();
+        recorder.await(PushClient.State.ERROR);
+    }
+}
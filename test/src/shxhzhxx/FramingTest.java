@@ -0,0 +1,69 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 一次读到的数据里有多个完整的消息、或者消息被拆开在多次读里
+ */
+final class FramingTest {
+    /**
+     * 所有消息一次写出，每个都按顺序处理
+     */
+    static void testPipelinedFrames() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire wire = new Loopback.Wire(port)) {
+            ByteBuffer all = ByteBuffer.allocate(500 * 13);
+            for (int i = 0; i < 500; ++i) {
+                all.put(Loopback.frame(0, i, i));
+            }
+            all.flip();
+            wire.send(all);
+            for (int i = 0; i < 500; ++i) {
+                ByteBuffer echo = wire.read();
+                check(echo.remaining() == 8 && echo.getInt() == i && echo.getInt() == i, "echo %d", i);
+            }
+        }
+    }
+
+    /**
+     * 消息在任意位置被拆开，包括[len]中间
+     */
+    static void testSplitFrames() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire receiver = new Loopback.Wire(port); Loopback.Wire sender = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            ByteBuffer all = ByteBuffer.allocate(200 * 1014);
+            for (int i = 0; i < 200; ++i) {
+                byte[] data = new byte[1005];
+                data[0] = (byte) i;
+                data[1004] = (byte) i;
+                all.put(Loopback.frame(2, 7, data));
+            }
+            all.flip();
+            int chunk = 1;
+            while (all.hasRemaining()) {
+                ByteBuffer part = all.duplicate();
+                part.limit(Math.min(all.limit(), all.position() + chunk));
+                sender.send(part);
+                all.position(part.limit());
+                chunk = chunk * 3 % 1777 + 1;
+            }
+            for (int i = 0; i < 200; ++i) {
+                ByteBuffer push = receiver.read();
+                check(push.remaining() == 1005 && push.get(0) == (byte) i && push.get(1004) == (byte) i, "push %d", i);
+            }
+        }
+    }
+
+    static void testInvalidLenCloses() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire wire = new Loopback.Wire(port)) {
+            ByteBuffer frame = ByteBuffer.allocate(5);
+            frame.putInt(2048).put((byte) 0).flip();
+            wire.send(frame);
+            check(wire.closedWithin(Loopback.TIMEOUT), "not closed on len > maxMessageSize");
+        }
+    }
+}
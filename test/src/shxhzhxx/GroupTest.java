@@ -0,0 +1,67 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 分组：cmd 6创建、7加入、8离开、9发布、10删除。同一个连接上echo的回复说明之前的命令都已经处理完
+ */
+final class GroupTest {
+    static void testPublishToMembers() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = bind(port, 7); Loopback.Wire b = bind(port, 8); Loopback.Wire c = bind(port, 9);
+             Loopback.Wire s = new Loopback.Wire(port)) {
+            s.send(6, 100).send(7, 100, 7, 8).send(9, 100, bytes("hi")).send(0).read();
+            check(text(a.read()).equals("hi") && text(b.read()).equals("hi"), "members missed the publish");
+            s.send(8, 100, 7).send(9, 100, bytes("again")).send(0).read();
+            check(text(b.read()).equals("again"), "member missed the publish");
+            //c从来没有加入，a已经离开，它们收到的第一个消息应该是自己的echo
+            check(a.send(0).read().remaining() == 0, "left member received a publish");
+            check(c.send(0).read().remaining() == 0, "non member received a publish");
+        }
+    }
+
+    /**
+     * 加入不存在的分组时创建，不需要先发cmd 6
+     */
+    static void testJoinCreatesGroup() throws Exception {
+        int port = Loopback.start(1024, 4);
+        try (Loopback.Wire a = bind(port, 7); Loopback.Wire s = new Loopback.Wire(port)) {
+            a.send(7, 200).send(0).read();
+            s.send(9, 200, bytes("hi")).send(0).read();
+            check(text(a.read()).equals("hi"), "self join without create missed the publish");
+        }
+    }
+
+    static void testDeleteGroup() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = bind(port, 7); Loopback.Wire s = new Loopback.Wire(port)) {
+            s.send(7, 300, 7).send(10, 300).send(9, 300, bytes("hi")).send(0).read();
+            check(a.send(0).read().remaining() == 0, "publish to a deleted group was delivered");
+        }
+    }
+
+    static void testGroupZeroRejected() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = bind(port, 7)) {
+            a.send(7, 0);
+            check(a.closedWithin(Loopback.TIMEOUT), "join group 0 was accepted");
+        }
+    }
+
+    private static Loopback.Wire bind(int port, int id) throws Exception {
+        Loopback.Wire wire = new Loopback.Wire(port);
+        wire.send(1, id).send(0).read();
+        return wire;
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String text(ByteBuffer buffer) {
+        return new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+    }
+}
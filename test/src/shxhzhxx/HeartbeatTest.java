@@ -0,0 +1,81 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 空闲连接的清理和心跳cmd 13，见{@link PushServer#setIdleTimeout}
+ */
+final class HeartbeatTest {
+    static void testIdleEvicted() throws Exception {
+        int port = start(1);
+        try (Loopback.Wire a = new Loopback.Wire(port)) {
+            a.send(1, 7).send(0).read();
+            check(a.closedWithin(Loopback.TIMEOUT), "idle connection not evicted");
+        }
+        //被清理的id不再在线，推送给它的消息被丢弃，不会让之后绑定的连接收到
+        try (Loopback.Wire s = new Loopback.Wire(port); Loopback.Wire b = new Loopback.Wire(port)) {
+            s.send(2, 7, 1).send(0).read();
+            check(b.send(1, 7).send(0).read().remaining() == 0, "push to an evicted id");
+        }
+    }
+
+    static void testHeartbeatKeepsAlive() throws Exception {
+        int port = start(1);
+        try (Loopback.Wire a = new Loopback.Wire(port)) {
+            for (int i = 0; i < 8; ++i) {
+                ByteBuffer reply = a.send(13).read();
+                check(reply.remaining() == 0, "v1 heartbeat reply is an empty message");
+                Thread.sleep(300);
+            }
+            check(!a.closedWithin(100), "closed while sending heartbeats");
+        }
+    }
+
+    /**
+     * 心跳带上的空闲时间只对这个连接生效，服务端没有设置空闲时间时也会清理
+     */
+    static void testClientIdleTimeout() throws Exception {
+        int port = start(0);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire b = new Loopback.Wire(port)) {
+            check(a.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            check(a.send(13, 1).read().get() == 13, "v2 heartbeat reply");
+            check(a.closedWithin(Loopback.TIMEOUT), "client idle timeout ignored");
+            check(!b.closedWithin(1500), "other connections evicted");
+        }
+    }
+
+    /**
+     * PushClient的心跳让连接在服务端的空闲时间之后仍然在线
+     */
+    static void testPushClientHeartbeat() throws Exception {
+        int port = start(1);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.setHeartbeat(300, TimeUnit.MILLISECONDS);
+        client.start();
+        recorder.await(PushClient.State.CONNECTED);
+        client.bind(7);
+        recorder.await(PushClient.State.BIND);
+        try {
+            Thread.sleep(2500);
+            check(recorder.states.isEmpty(), "state changed to %s", recorder.states.peek());
+            try (Loopback.Wire s = new Loopback.Wire(port)) {
+                s.send(2, 7, 1);
+                check(recorder.next().length == 4, "push after idle timeout");
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private static int start(long idleSeconds) throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setIdleTimeout(idleSeconds, TimeUnit.SECONDS);
+        Loopback.start(server, port);
+        return port;
+    }
+}
@@ -0,0 +1,50 @@
+package shxhzhxx;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * bench模块的基准测试不启动reactor线程，在调用线程上直接驱动{@link PushServer.Reactor#read}，
+ * 这里用真实的连接检查这些包内可见的入口在没有selector时也能完成解析、绑定和回复
+ */
+final class InlineReactorTest {
+    static void testReadOnCallingThread() throws Exception {
+        PushServer server = new PushServer(0, 1024);
+        PushServer.Reactor reactor = server.new Reactor(0);
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+                 SocketChannel accepted = listener.accept()) {
+                accepted.configureBlocking(false);
+                PushServer.Attachment at = server.new Attachment(accepted, reactor);
+                //bind和echo在同一次读里
+                ByteBuffer frames = ByteBuffer.allocate(9 + 9);
+                frames.putInt(9).put((byte) 1).putInt(7);
+                frames.putInt(9).put((byte) 0).putInt(42);
+                frames.flip();
+                while (frames.hasRemaining()) {
+                    client.write(frames);
+                }
+                long deadline = System.currentTimeMillis() + Loopback.TIMEOUT;
+                while (server.lookup(7) != at) {
+                    check(System.currentTimeMillis() < deadline, "bind not processed");
+                    reactor.read(at);
+                }
+                check(at.id == 7, "attachment id %d", at.id);
+                ByteBuffer echo = ByteBuffer.allocate(8);
+                while (echo.hasRemaining()) {
+                    check(client.read(echo) >= 0, "closed by the server");
+                }
+                echo.flip();
+                check(echo.getInt() == 8 && echo.getInt() == 42, "echo reply");
+                //bindId替换之前的绑定并返回它
+                PushServer.Attachment other = server.new Attachment(accepted, reactor);
+                check(server.bindId(7, other) == at && server.lookup(7) == other, "bindId");
+            }
+        }
+    }
+}
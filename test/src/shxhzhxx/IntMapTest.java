@@ -0,0 +1,107 @@
+package shxhzhxx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link IntMap}，特别是渐进扩容期间新旧两张表同时存在时的查找、替换和删除
+ */
+final class IntMapTest {
+    /**
+     * 和HashMap对照的随机操作，每一步之后检查所有key
+     */
+    static void testRandomAgainstHashMap() {
+        Random random = new Random(1);
+        IntMap<Integer> map = new IntMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int step = 0; step < 20000; ++step) {
+            int key = 1 + random.nextInt(2000);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                //remove(key, value)按引用比较，两边放同一个对象
+                Integer value = step;
+                check(same(map.put(key, value), expected.put(key, value)), "put(%d) at step %d", key, step);
+            } else if (op < 8) {
+                check(same(map.remove(key), expected.remove(key)), "remove(%d) at step %d", key, step);
+            } else {
+                Integer value = expected.get(key);
+                if (value != null && random.nextBoolean()) {
+                    check(map.remove(key, value), "remove(%d, current) at step %d", key, step);
+                    expected.remove(key);
+                } else {
+                    check(!map.remove(key, -1), "remove(%d, other) at step %d", key, step);
+                }
+            }
+            if (step % 100 == 0)
+                checkContent(map, expected);
+        }
+        checkContent(map, expected);
+    }
+
+    /**
+     * 每次put只搬一小段，扩容刚开始时大部分元素还在旧表里
+     */
+    static void testLookupDuringMigration() {
+        IntMap<Integer> map = new IntMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int key = 1; key <= 5000; ++key) {
+            map.put(key, key);
+            expected.put(key, key);
+            if (key % 7 == 0)
+                checkContent(map, expected);
+        }
+        //旧表里的元素被替换和删除之后不会在搬迁时复活
+        for (int key = 1; key <= 5000; key += 2) {
+            check(map.put(key, -key) == key, "replace %d", key);
+            expected.put(key, -key);
+        }
+        for (int key = 2; key <= 5000; key += 2) {
+            check(map.remove(key) == key, "remove %d", key);
+            expected.remove(key);
+        }
+        for (int key = 5001; key <= 9000; ++key) {
+            map.put(key, key);
+            expected.put(key, key);
+        }
+        checkContent(map, expected);
+    }
+
+    static void testZeroKeyRejected() {
+        IntMap<Integer> map = new IntMap<>();
+        try {
+            map.put(0, 1);
+            check(false, "key 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    static void testClear() {
+        IntMap<Integer> map = new IntMap<>(4);
+        for (int key = 1; key <= 100; ++key) {
+            map.put(key, key);
+        }
+        map.clear();
+        check(map.size() == 0 && map.keys().length == 0 && map.get(1) == null, "not cleared");
+        map.put(7, 7);
+        check(map.get(7) == 7 && map.size() == 1, "put after clear");
+    }
+
+    private static void checkContent(IntMap<Integer> map, Map<Integer, Integer> expected) {
+        check(map.size() == expected.size(), "size %d, expected %d", map.size(), expected.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            check(same(map.get(entry.getKey()), entry.getValue()), "get(%d)", entry.getKey());
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        int[] expectedKeys = expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        check(Arrays.equals(keys, expectedKeys), "keys differ");
+    }
+
+    private static boolean same(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,78 @@
+package shxhzhxx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link Log}的格式化、按格式串限流和缓冲区满时的丢弃
+ */
+final class LogTest {
+    private static final Pattern SUPPRESSED = Pattern.compile("\\((\\d+) similar suppressed\\)");
+
+    static void testFormat() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Log log = new Log("test", new PrintStream(bytes, true), 16);
+        log.log("no args");
+        log.log("one %d", 1);
+        log.log("two %d %d", 2, 3);
+        log.log("object %s", "x");
+        log.log("bad %d", "not a number");
+        log.setEnabled(false);
+        log.log("disabled");
+        log.start();
+        log.close();
+        String[] lines = bytes.toString().split("\n");
+        check(lines.length == 5, "%d lines", lines.length);
+        check(lines[0].endsWith("[main] no args"), "line: %s", lines[0]);
+        check(lines[1].endsWith("one 1") && lines[2].endsWith("two 2 3") && lines[3].endsWith("object x"), "formatted lines");
+        check(lines[4].contains("bad %d (bad format:"), "bad format: %s", lines[4]);
+    }
+
+    /**
+     * 同一个格式串每秒前10条都输出，之后每100条输出一条，被抑制的条数在下一次输出时报告
+     */
+    static void testRateLimitPerSite() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Log log = new Log("test", new PrintStream(bytes, true), 1024);
+        for (int i = 0; i < 1000; ++i) {
+            log.log("flood %d", i);
+        }
+        //下一个限流窗口，报告剩下的被抑制的条数
+        Thread.sleep(1100);
+        log.log("flood %d", 1000);
+        log.start();
+        log.close();
+        String[] lines = bytes.toString().split("\n");
+        long reported = 0;
+        for (String line : lines) {
+            check(line.contains("flood "), "line: %s", line);
+            Matcher matcher = SUPPRESSED.matcher(line);
+            if (matcher.find())
+                reported += Long.parseLong(matcher.group(1));
+        }
+        //前1000条可能跨过一个窗口的边界
+        check(lines.length >= 20 && lines.length <= 40, "%d lines", lines.length);
+        check(lines.length + reported == 1001, "%d lines, %d reported as suppressed", lines.length, reported);
+        check(lines[0].endsWith("flood 0") && lines[9].endsWith("flood 9"), "burst not written in order");
+    }
+
+    static void testDropWhenFull() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Log log = new Log("test", new PrintStream(bytes, true), 4);
+        for (int i = 0; i < 10; ++i) {
+            log.log("full %d", i);
+        }
+        log.start();
+        log.close();
+        String[] lines = bytes.toString().split("\n");
+        check(lines.length == 5, "%d lines", lines.length);
+        for (int i = 0; i < 4; ++i) {
+            check(lines[i].endsWith("full " + i), "line %d: %s", i, lines[i]);
+        }
+        check(lines[4].endsWith("[test] 6 log events dropped"), "drop report: %s", lines[4]);
+    }
+}
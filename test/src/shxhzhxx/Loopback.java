@@ -0,0 +1,253 @@
+package shxhzhxx;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的本机回环：在空闲端口上启动{@link PushServer}，用{@link Wire}按协议收发原始的消息，用{@link Recorder}记录{@link PushClient}的回调。
+ * 服务端没有公开的关闭方法，所有线程随测试进程一起退出，见{@link AllTests}。
+ */
+final class Loopback {
+    /**
+     * 等待一个回复或者回调的最长时间，毫秒
+     */
+    static final long TIMEOUT = 3000;
+
+    private Loopback() {
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 在后台线程上启动server，等到port可以连接时返回
+     */
+    static void start(PushServer server, int port) throws Exception {
+        server.setLogEnabled(false);
+        Thread thread = new Thread(server::start, "PushServer-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        awaitListening(port);
+    }
+
+    /**
+     * 等到port可以连接
+     */
+    static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (; ; ) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * 用默认设置启动
+     *
+     * @return 端口
+     */
+    static int start(int maxMessageSize, int reactorCount) throws Exception {
+        int port = freePort();
+        start(new PushServer(port, maxMessageSize, reactorCount), port);
+        return port;
+    }
+
+    static void check(boolean condition, String format, Object... args) {
+        if (!condition)
+            throw new AssertionError(String.format(format, args));
+    }
+
+    /**
+     * [len][cmd][fields]，fields可以是Integer、Long、Byte和byte[]
+     */
+    static ByteBuffer frame(int cmd, Object... fields) {
+        int len = 5;
+        for (Object field : fields) {
+            len += field instanceof Integer ? 4 : field instanceof Long ? 8 : field instanceof Byte ? 1 : ((byte[]) field).length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(len);
+        frame.putInt(len).put((byte) cmd);
+        for (Object field : fields) {
+            if (field instanceof Integer)
+                frame.putInt((Integer) field);
+            else if (field instanceof Long)
+                frame.putLong((Long) field);
+            else if (field instanceof Byte)
+                frame.put((Byte) field);
+            else
+                frame.put((byte[]) field);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 阻塞的原始连接，读超过{@link #TIMEOUT}时抛出SocketTimeoutException
+     */
+    static final class Wire implements Closeable {
+        final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        Wire(int port) throws IOException {
+            this(port, 0);
+        }
+
+        /**
+         * @param receiveBuffer SO_RCVBUF，为0时用系统默认值，小的缓冲可以模拟读得慢的连接
+         */
+        Wire(int port, int receiveBuffer) throws IOException {
+            socket = new Socket();
+            if (receiveBuffer > 0)
+                socket.setReceiveBufferSize(receiveBuffer);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            socket.setSoTimeout((int) TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        Wire send(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+            return this;
+        }
+
+        Wire send(int cmd, Object... fields) throws IOException {
+            return send(frame(cmd, fields));
+        }
+
+        /**
+         * @return [len]之后的内容
+         */
+        ByteBuffer read() throws IOException {
+            int len = in.readInt();
+            check(len >= 4, "invalid len: %d", len);
+            byte[] body = new byte[len - 4];
+            in.readFully(body);
+            return ByteBuffer.wrap(body);
+        }
+
+        /**
+         * 协商特性，见{@link PushServer#FEATURE_V2}
+         *
+         * @return 服务端同意的特性
+         */
+        int negotiate(int features) throws IOException {
+            ByteBuffer reply = send(4, features).read();
+            check(reply.remaining() == 8, "get buffer size reply: %d bytes", reply.remaining());
+            reply.getInt();
+            return reply.getInt();
+        }
+
+        /**
+         * 在timeout毫秒内被服务端断开时返回true，期间收到的消息都丢弃
+         */
+        boolean closedWithin(long timeout) throws IOException {
+            socket.setSoTimeout((int) timeout);
+            try {
+                for (; ; ) {
+                    read();
+                }
+            } catch (EOFException | SocketException e) {
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                if (!socket.isClosed())
+                    socket.setSoTimeout((int) TIMEOUT);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * 记录回调，测试线程用poll等待
+     */
+    static class Recorder implements PushClient.Callback {
+        final BlockingQueue<PushClient.State> states = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]> data = new LinkedBlockingQueue<>();
+        final BlockingQueue<int[]> results = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onStateChange(PushClient.State state) {
+            states.add(state);
+        }
+
+        @Override
+        public void onReceiveData(byte[] data) {
+            this.data.add(data);
+        }
+
+        @Override
+        public void onPushResult(int tag, byte status) {
+            results.add(new int[]{tag, status});
+        }
+
+        /**
+         * 等到state，跳过之前的其他状态
+         */
+        void await(PushClient.State state) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            for (; ; ) {
+                PushClient.State next = states.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                check(next != null, "timeout waiting for %s", state);
+                if (next == state)
+                    return;
+            }
+        }
+
+        byte[] next() throws InterruptedException {
+            byte[] next = data.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            check(next != null, "timeout waiting for data");
+            return next;
+        }
+
+        /**
+         * 等待timeout毫秒，确认这期间没有收到推送
+         */
+        void none(long timeout) throws InterruptedException {
+            byte[] next = data.poll(timeout, TimeUnit.MILLISECONDS);
+            check(next == null, "unexpected data: %d bytes", next == null ? 0 : next.length);
+        }
+    }
+
+    /**
+     * 启动一个PushClient，等到连接上再返回；id不为0时同时绑定，等到BIND再返回
+     */
+    static PushClient client(int port, Recorder recorder, int id) throws InterruptedException {
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.start();
+        recorder.await(PushClient.State.CONNECTED);
+        if (id != 0) {
+            client.bind(id);
+            recorder.await(PushClient.State.BIND);
+        }
+        return client;
+    }
+}
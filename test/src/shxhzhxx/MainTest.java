@@ -0,0 +1,30 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushServer#main}按参数启动服务端，压测工具在bench模块里
+ */
+final class MainTest {
+    static void testArguments() throws Exception {
+        int port = Loopback.freePort();
+        Thread thread = new Thread(() -> PushServer.main(new String[]{String.valueOf(port), "2048", "2"}), "PushServer-main");
+        thread.setDaemon(true);
+        thread.start();
+        Loopback.awaitListening(port);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire s = new Loopback.Wire(port)) {
+            ByteBuffer size = a.send(4).read();
+            check(size.getInt() == 2048, "maxMessageSize");
+            a.send(1, 7).send(0).read();
+            byte[] large = new byte[1500];
+            s.send(2, 7, large);
+            check(a.read().remaining() == large.length, "push larger than the default maxMessageSize");
+            s.send(2, 7, bytes("small"));
+            check(text(a.read()).equals("small"), "push");
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package shxhzhxx;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 离线存储：推送给不在线的id时保存，绑定后先重放，见{@link PushServer#setOfflineStore}
+ */
+final class OfflineStoreTest {
+    static void testReplayOnBind() throws Exception {
+        int port = start(16);
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            for (int i = 0; i < 5; ++i) {
+                s.send(2, 7, bytes("m" + i));
+            }
+            s.send(0).read();
+            try (Loopback.Wire a = new Loopback.Wire(port)) {
+                a.send(1, 7);
+                for (int i = 0; i < 5; ++i) {
+                    String push = text(a.read());
+                    check(push.equals("m" + i), "replayed %s, expected m%d", push, i);
+                }
+                s.send(2, 7, bytes("live"));
+                check(text(a.read()).equals("live"), "live push after replay");
+            }
+        }
+    }
+
+    /**
+     * 超过perIdCap时丢弃最早的
+     */
+    static void testPerIdCap() throws Exception {
+        int port = start(3);
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            for (int i = 0; i < 5; ++i) {
+                s.send(2, 8, bytes("m" + i));
+            }
+            s.send(0).read();
+            //存储线程异步追加，绑定早于追加时每条都会立即重放，不经过perIdCap
+            Thread.sleep(300);
+            try (Loopback.Wire a = new Loopback.Wire(port)) {
+                a.send(1, 8);
+                for (int i = 2; i < 5; ++i) {
+                    String push = text(a.read());
+                    check(push.equals("m" + i), "replayed %s, expected m%d", push, i);
+                }
+                check(a.send(0).read().remaining() == 0, "more than perIdCap replayed");
+            }
+        }
+    }
+
+    /**
+     * 带结果的推送在目标不在线时报告已存储
+     */
+    static void testResultStored() throws Exception {
+        int port = start(16);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = Loopback.client(port, recorder, 0);
+        try {
+            int tag = client.sendWithResult(9, bytes("stored"));
+            int[] result = recorder.results.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS);
+            check(result != null && result[0] == tag && result[1] == PushServer.RESULT_STORED, "no RESULT_STORED");
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 绑定后在重放之前就断开，这期间到达的推送都有结果，存下来的在下次绑定时重放
+     */
+    static void testCloseBeforeReplay() throws Exception {
+        int port = start(128);
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            check(s.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            s.send(2, 7, bytes("offline"));
+            s.send(0).read();
+            Thread.sleep(300);
+            try (Loopback.Wire a = new Loopback.Wire(port)) {
+                a.send(1, 7);
+            }
+            for (int tag = 0; tag < 100; ++tag) {
+                s.send(12, tag, 7, bytes("t" + tag));
+            }
+            Set<String> stored = new HashSet<>();
+            stored.add("offline");
+            for (int i = 0; i < 100; ++i) {
+                ByteBuffer result = s.read();
+                check(result.get() == 12, "result type");
+                int tag = result.getInt();
+                byte status = result.get();
+                //v1连接上写失败的是RESULT_LOST
+                check(status == PushServer.RESULT_STORED || status == PushServer.RESULT_WRITTEN
+                        || status == PushServer.RESULT_LOST, "tag %d: status %d", tag, status);
+                if (status == PushServer.RESULT_STORED)
+                    stored.add("t" + tag);
+            }
+            Thread.sleep(300);
+            try (Loopback.Wire b = new Loopback.Wire(port)) {
+                b.send(1, 7);
+                Set<String> replayed = new HashSet<>();
+                for (int i = 0; i < stored.size(); ++i) {
+                    replayed.add(text(b.read()));
+                }
+                check(replayed.equals(stored), "replayed %s, stored %s", replayed, stored);
+                check(b.send(0).read().remaining() == 0, "replayed more than stored");
+            }
+        }
+    }
+
+    private static int start(int perIdCap) throws Exception {
+        File dir = Files.createTempDirectory("push-store").toFile();
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setOfflineStore(dir, 1, TimeUnit.MINUTES, perIdCap);
+        Loopback.start(server, port);
+        return port;
+    }
+}
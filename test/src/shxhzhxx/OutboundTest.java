@@ -0,0 +1,112 @@
+package shxhzhxx;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 发送队列和溢出策略，见{@link PushServer#setOutboundLimit}
+ */
+final class OutboundTest {
+    private static final int FRAME = 1000;
+
+    /**
+     * 内核发送缓冲放不下时没写完的推送留在发送队列里，连接不会被断开，读的一方最终按顺序收到全部推送
+     */
+    static void testPartialWriteIsQueued() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setSendBufferSize(4096);
+        server.setOutboundLimit(8 << 20, PushServer.OverflowPolicy.CLOSE);
+        Loopback.start(server, port);
+        try (Loopback.Wire slow = new Loopback.Wire(port, 4096); Loopback.Wire sender = new Loopback.Wire(port)) {
+            //echo的回复说明之前的bind已经生效
+            slow.send(1, 7).send(0).read();
+            flood(sender, 7, 2000);
+            List<Integer> received = drain(slow);
+            check(received.size() == 2000, "received %d of 2000", received.size());
+            for (int i = 0; i < received.size(); ++i) {
+                check(received.get(i) == i, "out of order at %d: %d", i, received.get(i));
+            }
+        }
+    }
+
+    static void testOverflowClose() throws Exception {
+        Loopback.Wire slow = overflow(PushServer.OverflowPolicy.CLOSE);
+        check(slow.closedWithin(Loopback.TIMEOUT), "not closed on overflow");
+    }
+
+    static void testOverflowDropNewest() throws Exception {
+        checkDropped(overflow(PushServer.OverflowPolicy.DROP_NEWEST));
+    }
+
+    static void testOverflowDropOldest() throws Exception {
+        checkDropped(overflow(PushServer.OverflowPolicy.DROP_OLDEST));
+    }
+
+    private static void checkDropped(Loopback.Wire slow) throws IOException {
+        try {
+            List<Integer> received = drain(slow);
+            check(!received.isEmpty() && received.size() < 5000, "received %d of 5000", received.size());
+            for (int i = 1; i < received.size(); ++i) {
+                check(received.get(i) > received.get(i - 1), "out of order at %d", i);
+            }
+            check(!slow.closedWithin(200), "closed on overflow");
+        } finally {
+            slow.close();
+        }
+    }
+
+    /**
+     * 给一个不读的连接推送远超过发送队列上限的数据
+     */
+    private static Loopback.Wire overflow(PushServer.OverflowPolicy policy) throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setSendBufferSize(4096);
+        server.setOutboundLimit(64 * 1024, policy);
+        Loopback.start(server, port);
+        Loopback.Wire slow = new Loopback.Wire(port, 4096);
+        try (Loopback.Wire sender = new Loopback.Wire(port)) {
+            slow.send(1, 7).send(0).read();
+            flood(sender, 7, 5000);
+            sender.send(0).read();//推送都已经处理完
+        }
+        return slow;
+    }
+
+    /**
+     * count个单推，内容是[序号][填充]
+     */
+    static void flood(Loopback.Wire sender, int id, int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer frame = Loopback.frame(2, id, i, new byte[FRAME - 13]);
+            sender.send(frame);
+        }
+    }
+
+    /**
+     * 读到200毫秒内没有新的推送为止，检查每个推送的长度
+     *
+     * @return 收到的序号
+     */
+    static List<Integer> drain(Loopback.Wire wire) throws IOException {
+        List<Integer> received = new ArrayList<>();
+        wire.socket.setSoTimeout(200);
+        try {
+            for (; ; ) {
+                ByteBuffer push = wire.read();
+                check(push.remaining() == FRAME - 9, "push of %d bytes", push.remaining());
+                received.add(push.getInt());
+            }
+        } catch (SocketTimeoutException e) {
+            return received;
+        } finally {
+            wire.socket.setSoTimeout((int) Loopback.TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link Payload}的引用计数：最后一个持有者释放时才归还给池，压缩后的内容跟着一起释放
+ */
+final class PayloadTest {
+    static void testCopyAndView() {
+        BufferPool pool = new BufferPool(1024);
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5});
+        src.position(1);
+        Payload payload = Payload.copyOf(pool, src);
+        check(!src.hasRemaining(), "src not consumed");
+        check(payload.size() == 4, "size %d", payload.size());
+        ByteBuffer view = payload.view();
+        check(view.isReadOnly() && view.position() == 0 && view.get(0) == 2 && view.get(3) == 5, "view content");
+        try {
+            view.put(0, (byte) 0);
+            check(false, "view is writable");
+        } catch (ReadOnlyBufferException expected) {
+        }
+        //每个视图各自的position
+        view.get();
+        check(payload.view().position() == 0, "views share position");
+        payload.release();
+        check(pool.getInUseBytes() == 0, "not returned to the pool");
+    }
+
+    static void testReleasedByLastHolder() {
+        BufferPool pool = new BufferPool(1024);
+        Payload payload = Payload.copyOf(pool, ByteBuffer.wrap(new byte[100]));
+        long inUse = pool.getInUseBytes();
+        check(inUse == 128, "in use %d", inUse);
+        for (int i = 0; i < 3; ++i) {
+            check(payload.retain() == payload, "retain");
+        }
+        for (int i = 0; i < 3; ++i) {
+            payload.release();
+            check(pool.getInUseBytes() == inUse, "returned with %d holders left", 3 - i);
+        }
+        payload.release();
+        check(pool.getInUseBytes() == 0, "not returned after the last release");
+    }
+
+    /**
+     * 多个线程各自retain/release，归还恰好一次
+     */
+    static void testConcurrentRelease() throws Exception {
+        BufferPool pool = new BufferPool(1024);
+        for (int round = 0; round < 100; ++round) {
+            Payload payload = Payload.copyOf(pool, ByteBuffer.wrap(new byte[100]));
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; ++i) {
+                payload.retain();
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 1000; ++j) {
+                        payload.retain();
+                        payload.release();
+                    }
+                    payload.release();
+                });
+                threads[i].start();
+            }
+            payload.release();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            check(pool.getInUseBytes() == 0, "round %d: in use %d", round, pool.getInUseBytes());
+        }
+    }
+
+    static void testCompressedSharedAndReleased() {
+        BufferPool pool = new BufferPool(1024);
+        Compressor compressor = new Compressor(pool, 1024);
+        try {
+            byte[] text = new byte[500];
+            Arrays.fill(text, (byte) 'x');
+            Payload payload = Payload.copyOf(pool, ByteBuffer.wrap(text));
+            Payload compressed = payload.compressed(compressor);
+            check(compressed != null && compressed.size() < text.length, "not compressed");
+            check(payload.compressed(compressor) == compressed, "compressed twice");
+            payload.release();
+            check(pool.getInUseBytes() == 0, "compressed content not released with the payload");
+            //不值得压缩的只尝试一次
+            Payload tiny = Payload.copyOf(pool, ByteBuffer.wrap(new byte[10]));
+            check(tiny.compressed(compressor) == null && tiny.compressed(compressor) == null, "short payload compressed");
+            tiny.release();
+            check(pool.getInUseBytes() == 0, "short payload not returned");
+        } finally {
+            compressor.end();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 推送类cmd上的{@link PushServer#PRIORITY}
+ */
+final class PriorityTest {
+    static void testPriorityPushDelivered() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire b = new Loopback.Wire(port);
+             Loopback.Wire s = new Loopback.Wire(port)) {
+            a.send(1, 7).send(0).read();
+            b.send(1, 8).send(0).read();
+            s.send(2 | PushServer.PRIORITY, 7, bytes("urgent"));
+            check(text(a.read()).equals("urgent"), "urgent push");
+            s.send(3 | PushServer.PRIORITY, 2, 7, 8, bytes("both"));
+            check(text(a.read()).equals("both") && text(b.read()).equals("both"), "urgent multi push");
+        }
+    }
+
+    /**
+     * 不是推送类的cmd带上这一位按未知的cmd处理
+     */
+    static void testPriorityOnOtherCmdRejected() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire wire = new Loopback.Wire(port)) {
+            wire.send(1 | PushServer.PRIORITY, 7);
+            check(wire.closedWithin(Loopback.TIMEOUT), "bind with the priority bit accepted");
+        }
+    }
+
+    /**
+     * 接收方不读，普通推送在服务端排队，之后的紧急推送排在它们前面
+     */
+    static void testOvertakesQueuedBulk() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setSendBufferSize(4096);
+        server.setOutboundLimit(8 << 20, PushServer.OverflowPolicy.CLOSE);
+        Loopback.start(server, port);
+        int bulk = 500;
+        try (Loopback.Wire receiver = new Loopback.Wire(port, 4096); Loopback.Wire sender = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            byte[] data = new byte[900];
+            for (int i = 0; i < bulk; ++i) {
+                sender.send(2, 7, data);
+            }
+            sender.send(2 | PushServer.PRIORITY, 7, bytes("urgent"));
+            //echo在所有推送之后处理，收到时推送都已经排好了队
+            sender.send(0).read();
+            int position = -1;
+            for (int i = 0; i <= bulk; ++i) {
+                ByteBuffer push = receiver.read();
+                if (push.remaining() != data.length) {
+                    check(position < 0 && text(push).equals("urgent"), "unexpected push");
+                    position = i;
+                }
+            }
+            check(position >= 0 && position < bulk / 2, "urgent push at %d", position);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package shxhzhxx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * v2协议：bind确认、推送的seq和累计确认，见{@link PushServer#FEATURE_V2}
+ */
+final class ProtocolV2Test {
+    static void testBindAckAndSeq() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire s = new Loopback.Wire(port)) {
+            check(a.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            ByteBuffer ack = a.send(1, 7).read();
+            check(ack.get() == 1 && ack.getInt() == 7, "bind ack");
+            for (int i = 0; i < 3; ++i) {
+                s.send(2, 7, bytes("m" + i));
+            }
+            for (int i = 1; i <= 3; ++i) {
+                ByteBuffer push = a.read();
+                check(push.get() == 2 && push.getInt() == i, "push %d: seq", i);
+                check(text(push).equals("m" + (i - 1)), "push %d: data", i);
+            }
+            ByteBuffer echo = a.send(0, 42).read();
+            check(echo.get() == 0 && echo.getInt() == 42, "v2 echo");
+        }
+    }
+
+    /**
+     * 断开时没有确认的推送放回离线存储，重新绑定后再收到一次；确认过的不会
+     */
+    static void testUnackedRequeued() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setOfflineStore(Files.createTempDirectory("push-store").toFile(), 1, TimeUnit.MINUTES, 16);
+        Loopback.start(server, port);
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            try (Loopback.Wire a = bindV2(port, 7)) {
+                s.send(2, 7, bytes("acked")).send(2, 7, bytes("unacked"));
+                check(a.read().getInt(1) == 1 && a.read().getInt(1) == 2, "seq");
+                a.send(11, 1).send(0).read();
+            }
+            try (Loopback.Wire a = bindV2(port, 7)) {
+                ByteBuffer push = a.read();
+                check(push.get() == 2 && push.getInt() == 1, "replayed seq");
+                check(text(push).equals("unacked"), "replayed %s", text(push));
+                ByteBuffer echo = a.send(0).read();
+                check(echo.get() == 0, "acked push replayed");
+            }
+        }
+    }
+
+    /**
+     * 目标在推送途中断开：每个cmd 12都有结果，报告已存储的在重新绑定后都能收到
+     */
+    static void testReceiptsWhenTargetCloses() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setOfflineStore(Files.createTempDirectory("push-store").toFile(), 1, TimeUnit.MINUTES, 1024);
+        Loopback.start(server, port);
+        int count = 500;
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            check(s.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+            try (Loopback.Wire a = bindV2(port, 7)) {
+                for (int tag = 0; tag < count; ++tag) {
+                    s.send(12, tag, 7, bytes("t" + tag));
+                    if (tag == count / 10) {
+                        a.read();
+                        a.socket.setSoLinger(true, 0);
+                        a.socket.close();
+                    }
+                }
+            }
+            Set<String> stored = new HashSet<>();
+            for (int i = 0; i < count; ++i) {
+                ByteBuffer result = s.read();
+                check(result.get() == 12, "result type");
+                int tag = result.getInt();
+                byte status = result.get();
+                check(status != PushServer.RESULT_LOST && status != PushServer.RESULT_OFFLINE, "tag %d: status %d", tag, status);
+                if (status == PushServer.RESULT_STORED)
+                    stored.add("t" + tag);
+            }
+            check(!stored.isEmpty(), "nothing stored");
+            //存储线程异步追加
+            Thread.sleep(300);
+            try (Loopback.Wire a = bindV2(port, 7)) {
+                Set<String> replayed = new HashSet<>();
+                for (int i = 0; i < stored.size(); ++i) {
+                    ByteBuffer push = a.read();
+                    check(push.get() == 2, "replay type");
+                    push.getInt();
+                    replayed.add(text(push));
+                }
+                check(replayed.equals(stored), "replayed %d of %d stored", replayed.size(), stored.size());
+            }
+        }
+    }
+
+    static void testAckWithoutV2Closes() throws Exception {
+        int port = Loopback.start(1024, 2);
+        try (Loopback.Wire a = new Loopback.Wire(port)) {
+            a.send(1, 7).send(11, 1);
+            check(a.closedWithin(Loopback.TIMEOUT), "v1 ack accepted");
+        }
+    }
+
+    /**
+     * 旧的服务端收到带特性的get buffer size会断开，PushClient换旧协议重连
+     */
+    static void testFallbackToV1() throws Exception {
+        ServerSocket old = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try {
+                for (; ; ) {
+                    Socket socket = old.accept();
+                    Thread serve = new Thread(() -> legacyServe(socket), "legacy-conn");
+                    serve.setDaemon(true);
+                    serve.start();
+                }
+            } catch (IOException e) {
+                //closed
+            }
+        }, "legacy-server");
+        thread.setDaemon(true);
+        thread.start();
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = Loopback.client(old.getLocalPort(), recorder, 7);
+        client.close();
+        old.close();
+    }
+
+    /**
+     * 最初版本的服务端：只认不带参数的get buffer size，echo原样返回，其他命令忽略
+     */
+    private static void legacyServe(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            for (; ; ) {
+                int len = in.readInt();
+                byte[] body = new byte[len - 4];
+                in.readFully(body);
+                if (body[0] == 4 && len != 5) {
+                    return;
+                } else if (body[0] == 4) {
+                    out.writeInt(8);
+                    out.writeInt(1024);
+                } else if (body[0] == 0) {
+                    out.writeInt(len - 1);
+                    out.write(body, 1, body.length - 1);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            //closed
+        }
+    }
+
+    static Loopback.Wire bindV2(int port, int id) throws IOException {
+        Loopback.Wire wire = new Loopback.Wire(port);
+        check(wire.negotiate(PushServer.FEATURE_V2) == PushServer.FEATURE_V2, "v2 not granted");
+        check(wire.send(1, id).read().get() == 1, "bind ack");
+        return wire;
+    }
+}
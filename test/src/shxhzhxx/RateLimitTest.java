@@ -0,0 +1,66 @@
+package shxhzhxx;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushServer#setRateLimit}和{@link PushServer#setFanOutLimit}：超过时暂停读，消息不会丢
+ */
+final class RateLimitTest {
+    static void testPausesReading() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setRateLimit(2, 10, 1);
+        Loopback.start(server, port);
+        try (Loopback.Wire receiver = new Loopback.Wire(port); Loopback.Wire sender = new Loopback.Wire(port);
+             Loopback.Wire other = new Loopback.Wire(port)) {
+            receiver.send(1, 7).send(0).read();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 6; ++i) {
+                sender.send(2, 7, bytes("limited" + i));
+            }
+            check(text(receiver.read()).equals("limited0"), "first push");
+            //每个连接各自的桶，另一个连接不受影响
+            other.send(2, 7, bytes("other"));
+            check(text(receiver.read()).equals("other"), "other connection was limited");
+            for (int i = 1; i < 6; ++i) {
+                check(text(receiver.read()).equals("limited" + i), "push %d lost or reordered", i);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            check(elapsed >= 400, "not limited: %d ms", elapsed);
+        }
+    }
+
+    /**
+     * 多推按id数计算，超出burst的消息在桶满时放行，之后按超出的量暂停
+     */
+    static void testFanOutLimit() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setFanOutLimit(10, 2);
+        Loopback.start(server, port);
+        Loopback.Wire[] receivers = new Loopback.Wire[4];
+        try (Loopback.Wire sender = new Loopback.Wire(port)) {
+            for (int i = 0; i < receivers.length; ++i) {
+                receivers[i] = new Loopback.Wire(port);
+                receivers[i].send(1, i + 1).send(0).read();
+            }
+            long start = System.currentTimeMillis();
+            sender.send(3, 4, 1, 2, 3, 4, bytes("first")).send(3, 4, 1, 2, 3, 4, bytes("second"));
+            for (Loopback.Wire receiver : receivers) {
+                check(text(receiver.read()).equals("first"), "first multi push");
+            }
+            for (Loopback.Wire receiver : receivers) {
+                check(text(receiver.read()).equals("second"), "second multi push");
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            check(elapsed >= 150, "not limited: %d ms", elapsed);
+        } finally {
+            for (Loopback.Wire receiver : receivers) {
+                if (receiver != null)
+                    receiver.close();
+            }
+        }
+    }
+}
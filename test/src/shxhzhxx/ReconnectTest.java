@@ -0,0 +1,81 @@
+package shxhzhxx;
+
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushClient#setReconnect}：断开后重连、重新绑定、写出期间暂存的推送
+ */
+final class ReconnectTest {
+    /**
+     * 用另一个连接绑定同一个id把客户端挤掉
+     */
+    static void testRebindAndResume() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.setReconnect(500, 1000, TimeUnit.MILLISECONDS, 0);
+        client.start();
+        recorder.await(PushClient.State.CONNECTED);
+        client.bind(7);
+        recorder.await(PushClient.State.BIND);
+        try (Loopback.Wire receiver = new Loopback.Wire(port); Loopback.Wire thief = new Loopback.Wire(port)) {
+            receiver.send(1, 8).send(0).read();
+            thief.send(1, 7).send(0).read();
+            recorder.await(PushClient.State.RECONNECTING);
+            check(client.send(8, bytes("queued")) > 0, "send while reconnecting");
+            recorder.await(PushClient.State.CONNECTED);
+            recorder.await(PushClient.State.BIND);
+            check(GroupTest.text(receiver.read()).equals("queued"), "queued push after reconnect");
+            //重新绑定挤掉了另一个连接
+            check(thief.closedWithin(Loopback.TIMEOUT), "rebind did not take the id back");
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 在onStateChange(CONNECTED)里bind的客户端，重连后不能再自动发一次bind，否则服务器回复already bind后断开，无限重连
+     */
+    static void testBindFromCallback() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClient[] holder = new PushClient[1];
+        Loopback.Recorder recorder = new Loopback.Recorder() {
+            @Override
+            public void onStateChange(PushClient.State state) {
+                if (state == PushClient.State.CONNECTED)
+                    holder[0].bind(7);
+                super.onStateChange(state);
+            }
+        };
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        holder[0] = client;
+        client.setReconnect(100, 200, TimeUnit.MILLISECONDS, 0);
+        client.start();
+        try (Loopback.Wire thief = new Loopback.Wire(port)) {
+            recorder.await(PushClient.State.BIND);
+            thief.send(1, 7).send(0).read();
+            recorder.await(PushClient.State.RECONNECTING);
+            recorder.await(PushClient.State.BIND);
+            check(thief.closedWithin(Loopback.TIMEOUT), "bind from the callback did not take the id back");
+            //只被挤掉一次，之后保持绑定
+            PushClient.State next = recorder.states.poll(1000, TimeUnit.MILLISECONDS);
+            check(next == null, "state changed to %s after the rebind", next);
+        } finally {
+            client.close();
+        }
+    }
+
+    static void testGiveUpAfterMaxAttempts() throws Exception {
+        int port = Loopback.freePort();
+        Loopback.Recorder recorder = new Loopback.Recorder();
+        PushClient client = new PushClient("127.0.0.1", port, recorder);
+        client.setReconnect(10, 20, TimeUnit.MILLISECONDS, 2);
+        client.start();
+        recorder.await(PushClient.State.RECONNECTING);
+        recorder.await(PushClient.State.ERROR);
+        check(client.send(8, bytes("x")) < 0, "send after giving up");
+    }
+}
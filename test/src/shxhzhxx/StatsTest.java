@@ -0,0 +1,150 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 统计快照cmd 14，格式见{@link Metrics#write}
+ */
+final class StatsTest {
+    static void testSnapshot() throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        Loopback.start(server, port);
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire b = new Loopback.Wire(port);
+             Loopback.Wire s = new Loopback.Wire(port)) {
+            a.send(1, 7).send(0).read();
+            b.send(1, 8).send(0).read();
+            s.send(2, 7, 1).send(2, 7, 2).send(2, 7, 3).send(2, 99, 4).send(0).read();
+            for (int i = 0; i < 3; ++i) {
+                a.read();
+            }
+            ByteBuffer snapshot = s.send(14).read();
+            snapshot.getInt();
+            check(snapshot.getInt() == 2, "ids");
+            snapshot.position(12 + 8 * 4);//offlineDropped
+            check(snapshot.getLong() == 1, "offline dropped");
+            snapshot.position(12 + 8 * 14);//收到的消息
+            long pushes = 0;
+            for (int n = snapshot.getInt(); n > 0; --n) {
+                byte cmd = snapshot.get();
+                long count = snapshot.getLong();
+                if (cmd == 2)
+                    pushes = count;
+            }
+            check(pushes == 4, "frames in for cmd 2: %d", pushes);
+            check(server.getStats().contains("ids: 2"), "text stats: %s", server.getStats());
+        }
+    }
+
+    /**
+     * 不经过服务端，直接检查{@link Metrics#write}的每个字段和合并
+     */
+    static void testEncoding() {
+        Metrics a = new Metrics(), b = new Metrics();
+        a.opened = 5;
+        a.closed = 2;
+        b.opened = 1;
+        long[] counters = new long[14];
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] = 100 + i;
+        }
+        a.bytesIn = counters[0];
+        a.bytesOut = counters[1];
+        a.offlineDropped = counters[2];
+        a.offlineStored = counters[3];
+        a.overflowDropped = counters[4];
+        a.partialWriteCloses = counters[5];
+        a.idleEvicted = counters[6];
+        a.frameIn(40);
+        b.frameIn(40);
+        a.forwarded = counters[8];
+        a.forwardDropped = counters[9];
+        a.throttled = counters[10];
+        a.fanOutThrottled = counters[11];
+        a.frameIn(2);
+        b.frameIn(2);
+        b.frameIn(31);
+        b.framesOut[21] = 3;
+        a.dispatchNanos.record(1000);
+        b.dispatchNanos.record(3000);
+        b.fanOut.record(4);
+        a.merge(b);
+        BufferPool pool = new BufferPool(1024);
+        pool.acquire(100);
+        ByteBuffer dst = ByteBuffer.allocate(Metrics.maxSize());
+        a.write(dst, 9, 3, pool);
+        dst.flip();
+        check(dst.getInt() == 4 && dst.getInt() == 9 && dst.getInt() == 3, "connections, ids, groups");
+        check(dst.getLong() == 128 && dst.getLong() == pool.getAllocatedBytes(), "pool");
+        for (int i = 0; i < 7; ++i) {
+            check(dst.getLong() == counters[i], "counter %d", i);
+        }
+        check(dst.getLong() == 2, "unknown frames in");
+        for (int i = 8; i < 12; ++i) {
+            check(dst.getLong() == counters[i], "counter %d", i);
+        }
+        check(dst.position() == 12 + 8 * 14, "fixed part: %d bytes", dst.position());
+        check(dst.getInt() == 2, "frames in entries");
+        check(dst.get() == 2 && dst.getLong() == 2, "cmd 2 frames in");
+        check(dst.get() == 31 && dst.getLong() == 1, "cmd 31 frames in");
+        check(dst.getInt() == 1 && dst.get() == 21 && dst.getLong() == 3, "frames out");
+        check(dst.getLong() == 2 && dst.getLong() == 4000 && dst.getLong() == 3000, "dispatch count, sum, max");
+        check(dst.getLong() == 1023 && dst.getLong() == 3000 && dst.getLong() == 3000, "dispatch percentiles");
+        check(dst.getLong() == 1 && dst.getLong() == 4 && dst.getLong() == 4, "fan out count, sum, max");
+        check(dst.getLong() == 4 && dst.getLong() == 4 && dst.getLong() == 4, "fan out percentiles");
+        check(!dst.hasRemaining(), "%d trailing bytes", dst.remaining());
+    }
+
+    /**
+     * 所有cmd和类型都有计数时也不超过{@link Metrics#maxSize}
+     */
+    static void testMaxSize() {
+        Metrics metrics = new Metrics();
+        for (int i = 0; i < Metrics.OPCODES; ++i) {
+            metrics.frameIn(i);
+            metrics.framesOut[i] = 1;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(Metrics.maxSize());
+        metrics.write(dst, 0, 0, new BufferPool(1024));
+        check(!dst.hasRemaining(), "maxSize %d, written %d", Metrics.maxSize(), dst.position());
+    }
+
+    static void testHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        check(histogram.percentile(0.5) == 0, "empty histogram");
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        check(histogram.count == 101 && histogram.sum == 5050 && histogram.max == 100, "count, sum, max");
+        //取所在桶的上界，不超过最大值
+        check(histogram.percentile(0.5) == 63, "p50 %d", histogram.percentile(0.5));
+        check(histogram.percentile(0.99) == 100, "p99 %d", histogram.percentile(0.99));
+        check(histogram.percentile(0.01) == 1, "p1 %d", histogram.percentile(0.01));
+    }
+
+    static void testPushClientStats() throws Exception {
+        int port = Loopback.start(1024, 2);
+        BlockingQueue<byte[]> snapshots = new LinkedBlockingQueue<>();
+        Loopback.Recorder recorder = new Loopback.Recorder() {
+            @Override
+            public void onReceiveStats(byte[] snapshot) {
+                snapshots.add(snapshot);
+            }
+        };
+        PushClient client = Loopback.client(port, recorder, 7);
+        try {
+            client.getStats();
+            byte[] snapshot = snapshots.poll(Loopback.TIMEOUT, TimeUnit.MILLISECONDS);
+            check(snapshot != null, "no stats");
+            check(ByteBuffer.wrap(snapshot).getInt(4) == 1, "ids");
+        } finally {
+            client.close();
+        }
+    }
+}
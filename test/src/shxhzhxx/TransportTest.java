@@ -0,0 +1,131 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static shxhzhxx.GroupTest.bytes;
+import static shxhzhxx.GroupTest.text;
+import static shxhzhxx.Loopback.check;
+
+/**
+ * 两种传输层的相同行为，以及{@link PushServer#setThreadPerConnection}的发送队列和不支持的cmd
+ */
+final class TransportTest {
+    static void testPushSelector() throws Exception {
+        checkPush(start(false, 16 * 1024, PushServer.OverflowPolicy.CLOSE));
+    }
+
+    static void testPushThreadPerConnection() throws Exception {
+        checkPush(start(true, 16 * 1024, PushServer.OverflowPolicy.CLOSE));
+    }
+
+    /**
+     * 单推、空的单推和多推，空的推送是只有[len]的帧
+     */
+    private static void checkPush(int port) throws Exception {
+        try (Loopback.Wire a = new Loopback.Wire(port); Loopback.Wire b = new Loopback.Wire(port);
+             Loopback.Wire s = new Loopback.Wire(port)) {
+            a.send(1, 7).send(0).read();
+            b.send(1, 8).send(0).read();
+            s.send(2, 7, bytes("single"));
+            check(text(a.read()).equals("single"), "push");
+            s.send(2, 7);
+            check(a.read().remaining() == 0, "empty push");
+            s.send(3, 2, 7, 8, bytes("multi"));
+            check(text(a.read()).equals("multi") && text(b.read()).equals("multi"), "multi push");
+            //空推送之后两边的帧都没有错位
+            check(text(s.send(0, bytes("echo")).read()).equals("echo"), "echo");
+        }
+    }
+
+    static void testThreadOverflowClose() throws Exception {
+        int port = start(true, 64 * 1024, PushServer.OverflowPolicy.CLOSE);
+        try (Loopback.Wire slow = new Loopback.Wire(port, 4096); Loopback.Wire sender = new Loopback.Wire(port)) {
+            slow.send(1, 7).send(0).read();
+            OutboundTest.flood(sender, 7, 5000);
+            sender.send(0).read();
+            check(slow.closedWithin(Loopback.TIMEOUT), "not closed on overflow");
+        }
+    }
+
+    static void testThreadOverflowDrop() throws Exception {
+        int port = start(true, 64 * 1024, PushServer.OverflowPolicy.DROP_OLDEST);
+        try (Loopback.Wire slow = new Loopback.Wire(port, 4096); Loopback.Wire sender = new Loopback.Wire(port)) {
+            slow.send(1, 7).send(0).read();
+            OutboundTest.flood(sender, 7, 5000);
+            sender.send(0).read();
+            List<Integer> received = OutboundTest.drain(slow);
+            check(!received.isEmpty() && received.size() < 5000, "received %d of 5000", received.size());
+            for (int i = 1; i < received.size(); ++i) {
+                check(received.get(i) > received.get(i - 1), "out of order at %d", i);
+            }
+            check(!slow.closedWithin(200), "closed on overflow");
+        }
+    }
+
+    /**
+     * 写线程只在有推送排队时运行，空闲之后退出，下一个推送再启动
+     */
+    static void testThreadWriterExitsWhenIdle() throws Exception {
+        int port = start(true, 16 * 1024, PushServer.OverflowPolicy.CLOSE);
+        int before = connThreads();
+        Loopback.Wire[] wires = new Loopback.Wire[10];
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            for (int i = 0; i < wires.length; ++i) {
+                wires[i] = new Loopback.Wire(port);
+                wires[i].send(1, i + 1).send(0).read();
+            }
+            for (int round = 0; round < 2; ++round) {
+                for (int i = 0; i < wires.length; ++i) {
+                    s.send(2, i + 1, bytes("round " + round));
+                    check(text(wires[i].read()).equals("round " + round), "push %d in round %d", i, round);
+                }
+                Thread.sleep(1500);
+                //每个连接只剩读线程，s的读线程也算在内
+                int threads = connThreads() - before;
+                check(threads <= wires.length + 1, "%d threads for %d connections after idle", threads, wires.length + 1);
+            }
+        } finally {
+            for (Loopback.Wire wire : wires) {
+                if (wire != null)
+                    wire.close();
+            }
+        }
+    }
+
+    private static int connThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("PushServer-conn-"))
+                ++count;
+        }
+        return count;
+    }
+
+    static void testThreadUnsupportedCmd() throws Exception {
+        int port = start(true, 16 * 1024, PushServer.OverflowPolicy.CLOSE);
+        try (Loopback.Wire wire = new Loopback.Wire(port)) {
+            //分组的cmd需要reactor
+            wire.send(6, 1);
+            check(wire.closedWithin(Loopback.TIMEOUT), "unsupported cmd accepted");
+        }
+    }
+
+    static void testThreadNoFeatures() throws Exception {
+        int port = start(true, 16 * 1024, PushServer.OverflowPolicy.CLOSE);
+        try (Loopback.Wire wire = new Loopback.Wire(port)) {
+            check(wire.negotiate(PushServer.FEATURE_V2 | PushServer.FEATURE_DEFLATE) == 0, "features granted");
+            ByteBuffer reply = wire.send(4).read();
+            check(reply.remaining() == 4 && reply.getInt() == 1024, "v1 get buffer size");
+        }
+    }
+
+    private static int start(boolean threadPerConnection, int outboundLimit, PushServer.OverflowPolicy policy) throws Exception {
+        int port = Loopback.freePort();
+        PushServer server = new PushServer(port, 1024, 2);
+        server.setThreadPerConnection(threadPerConnection);
+        server.setOutboundLimit(outboundLimit, policy);
+        Loopback.start(server, port);
+        return port;
+    }
+}
@@ -0,0 +1,110 @@
+package shxhzhxx;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static shxhzhxx.Loopback.check;
+
+/**
+ * {@link PushClient}和{@link PushClientEngine}交给回调的是只读视图，一次读到的多个消息共用同一个视图
+ */
+final class ViewTest {
+    private static final int COUNT = 200;
+
+    static void testPushClientViews() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Views views = new Views();
+        PushClient client = new PushClient("127.0.0.1", port, views);
+        client.start();
+        try {
+            views.await(PushClient.State.CONNECTED);
+            client.bind(7);
+            views.await(PushClient.State.BIND);
+            pushAndCheck(port, views);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 解压后的内容也是只读视图
+     */
+    static void testPushClientInflatedViews() throws Exception {
+        int port = Loopback.start(1024, 2);
+        Views views = new Views();
+        PushClient client = new PushClient("127.0.0.1", port, views);
+        client.useCompression();
+        client.start();
+        try {
+            views.await(PushClient.State.CONNECTED);
+            client.bind(7);
+            views.await(PushClient.State.BIND);
+            try (Loopback.Wire s = new Loopback.Wire(port)) {
+                byte[] text = new byte[900];
+                for (int i = 0; i < 10; ++i) {
+                    Arrays.fill(text, (byte) ('a' + i));
+                    s.send(2, 7, text);
+                }
+                for (int i = 0; i < 10; ++i) {
+                    Arrays.fill(text, (byte) ('a' + i));
+                    check(Arrays.equals(views.next(), text), "inflated push %d", i);
+                }
+            }
+            check(!views.writable, "writable view delivered");
+        } finally {
+            client.close();
+        }
+    }
+
+    static void testEngineViews() throws Exception {
+        int port = Loopback.start(1024, 2);
+        PushClientEngine engine = new PushClientEngine(1);
+        engine.start();
+        try {
+            Views views = new Views();
+            PushClientEngine.Session session = engine.connect("127.0.0.1", port, views);
+            views.await(PushClient.State.CONNECTED);
+            session.bind(7);
+            views.await(PushClient.State.BIND);
+            pushAndCheck(port, views);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * 一次写出COUNT个长度不同的推送，接收端多半在一次读里拿到多个
+     */
+    private static void pushAndCheck(int port, Views views) throws Exception {
+        try (Loopback.Wire s = new Loopback.Wire(port)) {
+            for (int i = 0; i < COUNT; ++i) {
+                s.send(2, 7, content(i));
+            }
+            for (int i = 0; i < COUNT; ++i) {
+                check(Arrays.equals(views.next(), content(i)), "push %d", i);
+            }
+        }
+        check(!views.writable, "writable view delivered");
+    }
+
+    private static byte[] content(int i) {
+        byte[] data = new byte[1 + i % 37];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    /**
+     * 读完视图里的内容，确认下一个消息的视图不受影响
+     */
+    private static final class Views extends Loopback.Recorder {
+        volatile boolean writable;
+
+        @Override
+        public void onReceiveData(ByteBuffer data) {
+            writable |= !data.isReadOnly();
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            onReceiveData(copy);
+        }
+    }
+}